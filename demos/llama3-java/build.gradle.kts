@@ -10,6 +10,12 @@ val prompt = providers.gradleProperty("prompt")
 
 // Standard source directory (Llama3.java in src/main/java/com/skowronski/talk/jvmai/)
 
+dependencies {
+  testImplementation(platform("org.junit:junit-bom:5.11.4"))
+  testImplementation("org.junit.jupiter:junit-jupiter")
+  testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+}
+
 tasks.withType<JavaCompile> {
   options.compilerArgs.addAll(listOf(
     "--add-modules", "jdk.incubator.vector"
@@ -24,6 +30,13 @@ application {
   )
 }
 
+// The root build disables the tests of the demos, these run on a small synthetic model
+tasks.test {
+  enabled = true
+  useJUnitPlatform()
+  jvmArgs(application.applicationDefaultJvmArgs)
+}
+
 // Run with JDK 21 (slow Vector API - ~0.3 tokens/sec, for comparison)
 tasks.register<JavaExec>("llama21") {
   group = "application"
@@ -37,6 +50,13 @@ tasks.register<JavaExec>("llama21") {
   mainClass.set(application.mainClass)
   jvmArgs(application.applicationDefaultJvmArgs)
   args = listOf("--instruct", "-m", modelPath.get(), "-p", prompt.get(), "--max-tokens", "32")
+
+  doFirst {
+    // Use the CDS archive recorded by cdsTrain21, if any.
+    if (cdsArchive21.get().asFile.exists()) {
+      jvmArgs("-XX:SharedArchiveFile=${cdsArchive21.get().asFile}")
+    }
+  }
 }
 
 // Run with JDK 25 (best performance)
@@ -54,6 +74,185 @@ tasks.register<JavaExec>("llama25") {
   args = listOf("--instruct", "-m", modelPath.get(), "-p", prompt.get(), "--max-tokens", "32")
 }
 
+// Startup acceleration: record the classes and method profiles of a synthetic warmup run
+// (--warmup-only) into a JDK 25 AOT cache (Leyden), then start with it.
+val aotCache = layout.buildDirectory.file("llama3.aot")
+
+tasks.register<JavaExec>("aotTrain") {
+  group = "application"
+  description = "Record a JDK 25 AOT cache from a synthetic warmup workload"
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set(application.mainClass)
+  jvmArgs(application.applicationDefaultJvmArgs)
+  jvmArgs("-XX:AOTCacheOutput=${aotCache.get().asFile}")
+  args = listOf("--warmup-only", "-m", modelPath.get())
+  inputs.files(classpath)
+  inputs.file(modelPath)
+  outputs.file(aotCache)
+}
+
+tasks.register<JavaExec>("runAot") {
+  group = "application"
+  description = "Run with JDK 25 using the AOT cache recorded by aotTrain"
+  dependsOn("aotTrain")
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set(application.mainClass)
+  jvmArgs(application.applicationDefaultJvmArgs)
+  jvmArgs("-XX:AOTCache=${aotCache.get().asFile}")
+  args = listOf("--instruct", "-m", modelPath.get(), "-p", prompt.get(), "--max-tokens", "32", "--warmup", "16")
+}
+
+// JDK 21 has no AOT cache, a dynamic CDS archive still removes most of the class loading
+val cdsArchive21 = layout.buildDirectory.file("llama3-jdk21.jsa")
+
+tasks.register<JavaExec>("cdsTrain21") {
+  group = "application"
+  description = "Record a JDK 21 dynamic CDS archive from a synthetic warmup workload"
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(21))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set(application.mainClass)
+  jvmArgs(application.applicationDefaultJvmArgs)
+  jvmArgs("-XX:ArchiveClassesAtExit=${cdsArchive21.get().asFile}")
+  args = listOf("--warmup-only", "-m", modelPath.get())
+  inputs.files(classpath)
+  inputs.file(modelPath)
+  outputs.file(cdsArchive21)
+}
+
+// Offline re-quantization: -Pquantize=Q8_0|Q4_0|F16|BF16|F32, writes <model>-<type>.gguf next to the model
+val quantizeType = providers.gradleProperty("quantize").orElse("Q8_0")
+
+tasks.register<JavaExec>("quantize") {
+  group = "application"
+  description = "Re-quantize the model (-Pmodel) into a new GGUF file"
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set("com.skowronski.talk.jvmai.GGUFQuantizer")
+  jvmArgs(application.applicationDefaultJvmArgs)
+  val output = modelPath.get().removeSuffix(".gguf") + "-" + quantizeType.get() + ".gguf"
+  args = listOf("-i", modelPath.get(), "-o", output, "-t", quantizeType.get(), "--layer-order")
+}
+
+// Hermetic benchmarks: a random-weight model of any shape, no download needed.
+// Shape and type via -Psynthetic="--dim 4096 --hidden-dim 14336 --layers 32 -t Q4_0" (defaults: Llama 3.2 1B, Q8_0)
+val syntheticArgs = providers.gradleProperty("synthetic").orElse("")
+val syntheticModel = layout.buildDirectory.file("synthetic.gguf")
+
+tasks.register<JavaExec>("syntheticModel") {
+  group = "benchmarking"
+  description = "Generate a random-weight Llama 3 model (build/synthetic.gguf)"
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set("com.skowronski.talk.jvmai.SyntheticModel")
+  jvmArgs(application.applicationDefaultJvmArgs)
+  args = listOf("-o", syntheticModel.get().asFile.path) + syntheticArgs.get().split(" ").filter { it.isNotBlank() }
+  inputs.property("synthetic", syntheticArgs)
+  inputs.files(classpath)
+  outputs.file(syntheticModel)
+}
+
+tasks.register<JavaExec>("runSynthetic") {
+  group = "benchmarking"
+  description = "Run with JDK 25 on the synthetic model"
+  dependsOn("syntheticModel")
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set(application.mainClass)
+  jvmArgs(application.applicationDefaultJvmArgs)
+  args = listOf("-m", syntheticModel.get().asFile.path, "-p", prompt.get(), "--max-tokens", "256", "--stream", "false")
+}
+
+// Offline corpus tokenization: -Pcorpus=<file or directory> -PcorpusOutput=<prefix> (default build/corpus)
+tasks.register<JavaExec>("tokenizeCorpus") {
+  group = "application"
+  description = "Tokenize a corpus into <prefix>.tokens/<prefix>.idx with the model's tokenizer"
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set("com.skowronski.talk.jvmai.CorpusTokenizer")
+  jvmArgs(application.applicationDefaultJvmArgs)
+  jvmArgs("-Dllama.ChunkCache=65536")
+  val corpusOutput = providers.gradleProperty("corpusOutput").orElse(layout.buildDirectory.file("corpus").get().asFile.path)
+  args = listOf("-m", modelPath.get(), "-o", corpusOutput.get(), providers.gradleProperty("corpus").orElse(".").get())
+}
+
+// Perplexity evaluation: -Ptext=<file> -Pcontext=<window tokens> (default 512)
+tasks.register<JavaExec>("perplexity") {
+  group = "application"
+  description = "Evaluate the perplexity of the model over a text file"
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set(application.mainClass)
+  jvmArgs(application.applicationDefaultJvmArgs)
+  args = listOf("-m", modelPath.get(), "--perplexity", providers.gradleProperty("text").orElse("wiki.test.raw").get(),
+    "--max-tokens", providers.gradleProperty("context").orElse("512").get())
+}
+
+// Chunked prefill under mixed load: -Pbudget=<tokens per step> (default 64) on the synthetic model
+tasks.register<JavaExec>("scheduler") {
+  group = "benchmarking"
+  description = "Inter-token latency of decoding sessions while a long prompt is ingested in chunks"
+  dependsOn("syntheticModel")
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set("com.skowronski.talk.jvmai.Scheduler")
+  jvmArgs(application.applicationDefaultJvmArgs)
+  args = listOf("-m", syntheticModel.get().asFile.path, "--budget", providers.gradleProperty("budget").orElse("64").get())
+}
+
+// Document KV cache under a RAG load: time to first token with the documents spliced vs ingested in full
+tasks.register<JavaExec>("documentCache") {
+  group = "benchmarking"
+  description = "Time to first token of RAG prompts with the retrieved documents spliced from the cache"
+  dependsOn("syntheticModel")
+
+  javaLauncher.set(javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(25))
+  })
+
+  classpath = sourceSets.main.get().runtimeClasspath
+  mainClass.set("com.skowronski.talk.jvmai.DocumentCache")
+  jvmArgs(application.applicationDefaultJvmArgs)
+  args = listOf("-m", syntheticModel.get().asFile.path)
+}
+
 // Master task - run both llama versions
 tasks.register("llama") {
   group = "application"
@@ -0,0 +1,294 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Approximate output head: an IVF (inverted file) index over the rows of the classifier, for large vocabularies.
+ *
+ * <p>
+ * Nearly all the probability mass of the next token sits in a few hundred rows of {@code wcls}, yet the classifier
+ * computes the dot products of all of them. The rows are clustered once, at load time, and decoding scores the cluster
+ * centroids first, then computes the exact dot products of the rows of the best clusters only. The other logits are
+ * -infinity. A centroid is the mean direction of its rows scaled to the largest row norm, it estimates the best row
+ * of the cluster rather than the mean one, the mean of a large cluster is shrunk by averaging.
+ *
+ * <p>
+ * Clustering is k-means on a random projection of the rows (64 dimensions), trained on a sample then applied to all
+ * rows. Enable with {@code -Dllama.ApproximateHead=true}; {@code -Dllama.ApproximateHead.clusters} (default 1.5 sqrt
+ * of the vocabulary size) and {@code -Dllama.ApproximateHead.probes} (clusters scored exactly, default 1/16 of them)
+ * trade recall for speed. {@code -Dllama.ApproximateHead.report=true} also runs the exact head on every token and
+ * reports recall, probability mass and time of both.
+ */
+final class ApproximateHead {
+    static final boolean ENABLED = Boolean.getBoolean("llama.ApproximateHead");
+    static final boolean REPORT = Boolean.getBoolean("llama.ApproximateHead.report");
+
+    private static final int PROJECTED_DIM = 64;
+    private static final int SAMPLES_PER_CLUSTER = 32;
+    private static final int ITERATIONS = 10;
+    private static final int REPORT_TOP_K = 40;
+
+    private final FloatTensor weights;
+    private final int dim;
+    private final int vocabularySize;
+    final int clusters;
+    final int probes;
+    // (clusters, dim) mean direction of the rows of each cluster, scaled to the largest row norm
+    private final FloatTensor centroids;
+    // rows grouped by cluster, the rows of cluster c are rows[clusterStart[c], clusterStart[c + 1])
+    private final int[] rows;
+    private final int[] clusterStart;
+
+    // report
+    private FloatTensor exactLogits;
+    private TopLogits exactTop;
+    // the rows scored for the measured token, cleared after
+    private boolean[] isScored;
+    private long tokens;
+    private long scoredRows;
+    private long top1Hits;
+    private double recall;
+    private double mass;
+    private long approximateNanos;
+    private long exactNanos;
+
+    private ApproximateHead(FloatTensor weights, int vocabularySize, int dim, FloatTensor centroids, int[] rows, int[] clusterStart, int probes) {
+        this.weights = weights;
+        this.vocabularySize = vocabularySize;
+        this.dim = dim;
+        this.centroids = centroids;
+        this.rows = rows;
+        this.clusterStart = clusterStart;
+        this.clusters = clusterStart.length - 1;
+        this.probes = Math.min(probes, clusters);
+    }
+
+    static ApproximateHead build(FloatTensor weights, int vocabularySize, int dim) {
+        int clusters = Integer.getInteger("llama.ApproximateHead.clusters", (int) Math.round(1.5 * Math.sqrt(vocabularySize)));
+        int probes = Integer.getInteger("llama.ApproximateHead.probes", Math.max(1, clusters / 16));
+        if (clusters < 1 || clusters > vocabularySize || probes < 1) {
+            throw new IllegalArgumentException("Invalid approximate head: " + clusters + " clusters, " + probes + " probes");
+        }
+        try (var ignored = Timer.log("Build approximate head (" + clusters + " clusters, " + probes + " probes)")) {
+            return build(weights, vocabularySize, dim, clusters, probes, 42);
+        }
+    }
+
+    static ApproximateHead build(FloatTensor weights, int vocabularySize, int dim, int clusters, int probes, long seed) {
+        Random random = new Random(seed);
+        int projectedDim = Math.min(PROJECTED_DIM, dim);
+        float[] projected = project(weights, vocabularySize, dim, projectedDim, random);
+
+        // k-means on a sample, initialized with distinct sample rows.
+        int[] sample = sample(vocabularySize, Math.min(vocabularySize, clusters * SAMPLES_PER_CLUSTER), random);
+        float[] means = new float[clusters * projectedDim];
+        for (int c = 0; c < clusters; c++) {
+            System.arraycopy(projected, sample[c] * projectedDim, means, c * projectedDim, projectedDim);
+        }
+        int[] assignment = new int[sample.length];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            Parallel.parallelFor(0, sample.length, i -> assignment[i] = nearest(projected, sample[i], means, clusters, projectedDim));
+            float[] sums = new float[clusters * projectedDim];
+            int[] counts = new int[clusters];
+            for (int i = 0; i < sample.length; i++) {
+                int c = assignment[i];
+                counts[c]++;
+                for (int j = 0; j < projectedDim; j++) {
+                    sums[c * projectedDim + j] += projected[sample[i] * projectedDim + j];
+                }
+            }
+            for (int c = 0; c < clusters; c++) {
+                if (counts[c] == 0) {
+                    // Empty cluster, re-seeded with a random sample row.
+                    System.arraycopy(projected, sample[random.nextInt(sample.length)] * projectedDim, means, c * projectedDim, projectedDim);
+                } else {
+                    for (int j = 0; j < projectedDim; j++) {
+                        means[c * projectedDim + j] = sums[c * projectedDim + j] / counts[c];
+                    }
+                }
+            }
+        }
+
+        // All the rows, grouped by cluster (counting sort), empty clusters dropped.
+        int[] clusterOf = new int[vocabularySize];
+        Parallel.parallelFor(0, vocabularySize, row -> clusterOf[row] = nearest(projected, row, means, clusters, projectedDim));
+        int[] counts = new int[clusters];
+        for (int c : clusterOf) {
+            counts[c]++;
+        }
+        int[] renumbered = new int[clusters];
+        int nonEmpty = 0;
+        for (int c = 0; c < clusters; c++) {
+            renumbered[c] = counts[c] > 0 ? nonEmpty++ : -1;
+        }
+        int[] clusterStart = new int[nonEmpty + 1];
+        for (int c = 0; c < clusters; c++) {
+            if (counts[c] > 0) {
+                clusterStart[renumbered[c] + 1] = counts[c];
+            }
+        }
+        for (int c = 0; c < nonEmpty; c++) {
+            clusterStart[c + 1] += clusterStart[c];
+        }
+        int[] rows = new int[vocabularySize];
+        int[] next = Arrays.copyOf(clusterStart, nonEmpty);
+        for (int row = 0; row < vocabularySize; row++) {
+            clusterOf[row] = renumbered[clusterOf[row]];
+            rows[next[clusterOf[row]]++] = row;
+        }
+
+        // Full dimension centroids: each row is dequantized once, its norm is the (vectorized) dot product of the
+        // quantized row with its dequantized copy.
+        FloatTensor centroids = ArrayFloatTensor.allocate(nonEmpty, dim);
+        Parallel.parallelFor(0, nonEmpty, c -> {
+            FloatTensor dequantized = ArrayFloatTensor.allocate(dim);
+            float maxNorm = 0f;
+            for (int i = clusterStart[c]; i < clusterStart[c + 1]; i++) {
+                int row = rows[i];
+                weights.copyTo(row * dim, dequantized, 0, dim);
+                centroids.addInPlace(c * dim, dequantized, 0, dim);
+                maxNorm = Math.max(maxNorm, (float) Math.sqrt(weights.dot(row * dim, dequantized, 0, dim)));
+            }
+            float norm = (float) Math.sqrt(centroids.dot(c * dim, centroids, c * dim, dim));
+            if (norm > 0f) {
+                float scale = maxNorm / norm;
+                centroids.mapInPlace(c * dim, dim, value -> value * scale);
+            }
+        });
+        return new ApproximateHead(weights, vocabularySize, dim, centroids, rows, clusterStart, probes);
+    }
+
+    /**
+     * Rows projected on {@code projectedDim} random gaussian directions, as is if they are not larger.
+     */
+    private static float[] project(FloatTensor weights, int vocabularySize, int dim, int projectedDim, Random random) {
+        float[] projected = new float[vocabularySize * projectedDim];
+        if (projectedDim == dim) {
+            Parallel.parallelFor(0, vocabularySize, row -> {
+                for (int j = 0; j < dim; j++) {
+                    projected[row * dim + j] = weights.getFloat(row * dim + j);
+                }
+            });
+            return projected;
+        }
+        FloatTensor directions = ArrayFloatTensor.allocate(projectedDim, dim);
+        for (int i = 0; i < projectedDim * dim; i++) {
+            directions.setFloat(i, (float) random.nextGaussian());
+        }
+        Parallel.parallelFor(0, vocabularySize, row -> {
+            for (int j = 0; j < projectedDim; j++) {
+                projected[row * projectedDim + j] = weights.dot(row * dim, directions, j * dim, dim);
+            }
+        });
+        return projected;
+    }
+
+    private static int[] sample(int n, int size, Random random) {
+        int[] permutation = new int[n];
+        for (int i = 0; i < n; i++) {
+            permutation[i] = i;
+        }
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(n - i);
+            int tmp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = tmp;
+        }
+        return Arrays.copyOf(permutation, size);
+    }
+
+    private static int nearest(float[] projected, int row, float[] means, int clusters, int projectedDim) {
+        int best = 0;
+        float bestDistance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < clusters; c++) {
+            float distance = 0f;
+            for (int j = 0; j < projectedDim; j++) {
+                float d = projected[row * projectedDim + j] - means[c * projectedDim + j];
+                distance += d * d;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    FloatTensor allocateScores() {
+        return ArrayFloatTensor.allocate(clusters);
+    }
+
+    /**
+     * Collects the rows of the {@link #probes} clusters whose centroids score best against {@code x} into
+     * {@code out}, returns their number. {@code scores} is a scratch buffer from {@link #allocateScores()}.
+     */
+    int probe(FloatTensor x, FloatTensor scores, int[] out) {
+        centroids.matmul(x, scores, clusters, dim);
+        int count = 0;
+        for (int p = 0; p < probes; p++) {
+            int best = scores.argmax();
+            scores.setFloat(best, Float.NEGATIVE_INFINITY);
+            int start = clusterStart[best];
+            int length = clusterStart[best + 1] - start;
+            System.arraycopy(rows, start, out, count, length);
+            count += length;
+        }
+        return count;
+    }
+
+    /**
+     * Compares the rows scored for {@code x} to the exact head, for the {@link #REPORT report}: whether they include
+     * the most likely token, the fraction of the exact top 40 they include and their exact probability mass.
+     */
+    void measure(FloatTensor x, int[] scored, int count, long nanos) {
+        if (exactLogits == null) {
+            exactLogits = ArrayFloatTensor.allocate(vocabularySize);
+            exactTop = new TopLogits(Math.min(REPORT_TOP_K, vocabularySize), vocabularySize);
+            isScored = new boolean[vocabularySize];
+        }
+        long start = System.nanoTime();
+        weights.matmul(x, exactLogits, vocabularySize, dim);
+        exactNanos += System.nanoTime() - start;
+        approximateNanos += nanos;
+        exactTop.select(weights, x, null, vocabularySize, dim);
+
+        for (int i = 0; i < count; i++) {
+            isScored[scored[i]] = true;
+        }
+        float max = exactTop.logits[0];
+        double total = 0.0;
+        double scoredTotal = 0.0;
+        for (int row = 0; row < vocabularySize; row++) {
+            double weight = Math.exp(exactLogits.getFloat(row) - max);
+            total += weight;
+            if (isScored[row]) {
+                scoredTotal += weight;
+            }
+        }
+        int hits = 0;
+        for (int i = 0; i < exactTop.count; i++) {
+            if (isScored[exactTop.tokens[i]]) {
+                hits++;
+            }
+        }
+        tokens++;
+        scoredRows += count;
+        top1Hits += isScored[exactTop.tokens[0]] ? 1 : 0;
+        recall += (double) hits / exactTop.count;
+        mass += scoredTotal / total;
+        for (int i = 0; i < count; i++) {
+            isScored[scored[i]] = false;
+        }
+    }
+
+    String report() {
+        if (tokens == 0) {
+            return String.format("approximate head: %d clusters, %d probes", clusters, probes);
+        }
+        return String.format("approximate head: %d clusters, %d probes, %.1f%% of the rows scored; over %d tokens: top-1 %.1f%%, recall@%d %.1f%%, probability mass %.1f%%, %.2f ms vs %.2f ms exact",
+                clusters, probes, 100.0 * scoredRows / tokens / vocabularySize, tokens,
+                100.0 * top1Hits / tokens, exactTop.count, 100.0 * recall / tokens, 100.0 * mass / tokens,
+                approximateNanos / 1e6 / tokens, exactNanos / 1e6 / tokens);
+    }
+}
@@ -0,0 +1,125 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.*;
+
+/**
+ * Byte pair merges of a single chunk in O(n log n), instead of rescanning all pairs after every merge.
+ * <p>
+ * Symbols form a doubly linked list over an array, candidate merges sit in a binary min-heap of {@code rank << 32 | position}
+ * longs. The lowest rank is merged first, ties go to the leftmost pair (tiktoken's rule); heap entries invalidated by
+ * earlier merges are detected on removal and skipped. The rank of a merge is the index of the merged token.
+ * Scratch arrays are reused across chunks, an instance must not be shared between threads.
+ */
+final class BytePairEncoder {
+    private static final int REMOVED = -1;
+
+    private final MergeTable merges;
+    private int[] symbols = new int[64];
+    private int[] previous = new int[64];
+    private int[] next = new int[64];
+    private long[] heap = new long[128];
+    private int heapSize;
+
+    BytePairEncoder(MergeTable merges) {
+        this.merges = merges;
+    }
+
+    /**
+     * Returns the symbols array, with room for at least {@code length} symbols, to be filled before {@link #merge(int)}.
+     */
+    int[] symbols(int length) {
+        if (symbols.length < length) {
+            int capacity = Math.max(length, symbols.length * 2);
+            symbols = new int[capacity];
+            previous = new int[capacity];
+            next = new int[capacity];
+        }
+        return symbols;
+    }
+
+    /**
+     * Applies all the possible merges to {@code symbols[0, length)}, in place. Returns the number of resulting tokens.
+     */
+    int merge(int length) {
+        if (length < 2) {
+            return length;
+        }
+        heapSize = 0;
+        for (int i = 0; i < length; i++) {
+            previous[i] = i - 1;
+            next[i] = i + 1;
+        }
+        for (int i = 0; i + 1 < length; i++) {
+            pushCandidate(i, i + 1);
+        }
+        while (heapSize > 0) {
+            long top = pop();
+            int rank = (int) (top >>> 32);
+            int left = (int) top;
+            int right = next[left];
+            // stale: one of the symbols was merged into something else since
+            if (symbols[left] == REMOVED || right >= length || merges.get(symbols[left], symbols[right]) != rank) {
+                continue;
+            }
+            symbols[left] = rank;
+            symbols[right] = REMOVED;
+            next[left] = next[right];
+            if (next[left] < length) {
+                previous[next[left]] = left;
+                pushCandidate(left, next[left]);
+            }
+            if (previous[left] >= 0) {
+                pushCandidate(previous[left], left);
+            }
+        }
+        // the first symbol is never removed, merges always keep the left one
+        int count = 0;
+        for (int i = 0; i < length; i = next[i]) {
+            symbols[count++] = symbols[i];
+        }
+        return count;
+    }
+
+    private void pushCandidate(int left, int right) {
+        int rank = merges.get(symbols[left], symbols[right]);
+        if (rank >= 0) {
+            push(((long) rank << 32) | left);
+        }
+    }
+
+    private void push(long value) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    private long pop() {
+        long top = heap[0];
+        long last = heap[--heapSize];
+        int i = 0;
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (last <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+}
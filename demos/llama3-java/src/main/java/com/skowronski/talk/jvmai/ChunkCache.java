@@ -0,0 +1,100 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of chunk encodings (pre-tokenized chunk to BPE token ids), shared by concurrent encoders.
+ * <p>
+ * Text repeats the same words, whitespace runs and chat template fragments, so most chunks are hits.
+ * Set-associative (4 ways per set) with CLOCK eviction within a set. Lookups are lock-free and allocation-free, they
+ * compare the chunk in place and only set a reference bit. Entries are immutable, a racing insert may drop another one,
+ * which only costs a miss. Disabled by default, a chat prompt is too short to amortize it: enabled with
+ * {@code -Dllama.ChunkCache=<entries>} (e.g. 65536, for bulk tokenization), hit rate printed on exit with
+ * {@code -Dllama.ChunkCacheStats=true}.
+ */
+final class ChunkCache {
+    static final int CAPACITY = Integer.getInteger("llama.ChunkCache", 0);
+    static final int MAX_CHUNK_LENGTH = 64;
+    private static final int WAYS = 4;
+
+    private record Entry(String chunk, int hash, int[] ids) {
+    }
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final byte[] referenced;
+    private final byte[] hands;
+    private final int setMask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ChunkCache(int capacity) {
+        int sets = Integer.highestOneBit(Math.max(1, capacity / WAYS));
+        this.entries = new AtomicReferenceArray<>(sets * WAYS);
+        this.referenced = new byte[sets * WAYS];
+        this.hands = new byte[sets];
+        this.setMask = sets - 1;
+    }
+
+    static int hash(String text, int start, int end) {
+        int hash = 0x811C9DC5; // FNV-1a
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ text.charAt(i)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private int firstSlot(int hash) {
+        return ((hash ^ (hash >>> 16)) & setMask) * WAYS;
+    }
+
+    /**
+     * Returns the cached token ids of {@code text[start, end)}, or null. The returned array must not be modified.
+     */
+    int[] get(String text, int start, int end, int hash) {
+        int first = firstSlot(hash);
+        for (int slot = first; slot < first + WAYS; slot++) {
+            Entry entry = entries.get(slot);
+            if (entry != null && entry.hash() == hash && entry.chunk().length() == end - start
+                    && text.regionMatches(start, entry.chunk(), 0, end - start)) {
+                referenced[slot] = 1;
+                hits.increment();
+                return entry.ids();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(String chunk, int hash, int[] ids) {
+        int first = firstSlot(hash);
+        int set = first / WAYS;
+        // second chance: skip (and clear) recently referenced entries
+        int hand = hands[set];
+        for (int i = 0; i < 2 * WAYS; i++, hand = (hand + 1) % WAYS) {
+            int slot = first + hand;
+            if (entries.get(slot) == null || referenced[slot] == 0) {
+                break;
+            }
+            referenced[slot] = 0;
+        }
+        entries.set(first + hand, new Entry(chunk, hash, ids));
+        referenced[first + hand] = 0;
+        hands[set] = (byte) ((hand + 1) % WAYS);
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hits = hits();
+        long lookups = hits + misses();
+        return String.format("chunk cache: %d entries, %d lookups, %.1f%% hits", entries.length(), lookups, lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+    }
+}
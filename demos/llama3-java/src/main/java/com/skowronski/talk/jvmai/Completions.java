@@ -0,0 +1,278 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Several completions of one prompt, decoded together: the prompt is ingested once, then its state is
+ * {@link Llama.State#fork forked}, the forks share its KV cache copy-on-write, and they are advanced by batched decode
+ * steps, one token of each per step (see {@link Llama#forward(Llama, Llama.State, int[], Llama.State[], int[])}).
+ *
+ * <p>
+ * {@link #sample} draws n independent samples, each with its own sampler. {@link #beamSearch} looks for the most likely
+ * completions, keeping the {@code width} best partial completions at each step; a beam continued by several others is
+ * shared by them, copy-on-write, and no state is allocated after the first step. Scores are natural log-probabilities
+ * of the generated tokens, the stop token included, under the unmodified logits (no temperature nor penalties).
+ */
+final class Completions {
+
+    record Completion(IntList tokens, double logProbability) {
+    }
+
+    private static final class Beam {
+        final Llama.State state;
+        final IntList tokens;
+        final double logProbability;
+
+        Beam(Llama.State state, IntList tokens, double logProbability) {
+            this.state = state;
+            this.tokens = tokens;
+            this.logProbability = logProbability;
+        }
+    }
+
+    private Completions() {
+    }
+
+    /**
+     * {@code n} samples completing {@code prompt}, each drawn by {@code samplers.apply(i)}.
+     *
+     * @param maxTokens positions limit, prompt included, as in {@link Llama#generateTokens}
+     */
+    static List<Completion> sample(Llama model, Llama.State state, IntList prompt, int n, int maxTokens, BitSet stopTokens, IntFunction<Sampler> samplers) {
+        int vocabularySize = model.configuration().vocabularySize;
+        int limit = limit(model, maxTokens);
+        ingest(model, state, prompt, limit);
+        Llama.State[] sequences = new Llama.State[n];
+        Sampler[] sequenceSamplers = new Sampler[n];
+        IntList[] tokens = new IntList[n];
+        double[] logProbabilities = new double[n];
+        List<Integer> active = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            sequences[i] = state.fork(prompt.size(), 1);
+            state.logits.copyTo(0, sequences[i].logits, 0, vocabularySize);
+            sequenceSamplers[i] = samplers.apply(i);
+            tokens[i] = new IntList();
+            active.add(i);
+        }
+        // samplers may modify the logits, they sample from a copy
+        ArrayFloatTensor scratch = (ArrayFloatTensor) ArrayFloatTensor.allocate(vocabularySize);
+        for (int position = prompt.size(); !active.isEmpty(); position++) {
+            List<Integer> next = new ArrayList<>(active.size());
+            for (int i : active) {
+                float[] logits = ((ArrayFloatTensor) sequences[i].logits).values;
+                System.arraycopy(logits, 0, scratch.values, 0, vocabularySize);
+                int token = sequenceSamplers[i].sampleToken(scratch);
+                sequenceSamplers[i].accept(token);
+                logProbabilities[i] += logits[token] - Llama.logSumExp(logits, vocabularySize);
+                tokens[i].add(token);
+                if (!stopTokens.get(token) && position < limit) {
+                    next.add(i);
+                }
+            }
+            Llama.State[] batch = new Llama.State[next.size()];
+            int[] batchTokens = new int[next.size()];
+            for (int b = 0; b < next.size(); b++) {
+                batch[b] = sequences[next.get(b)];
+                batchTokens[b] = tokens[next.get(b)].getLast();
+            }
+            decode(model, state, batchTokens, batch, position);
+            active = next;
+        }
+        List<Completion> completions = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            sequences[i].kvCache.release();
+            completions.add(new Completion(tokens[i], logProbabilities[i]));
+        }
+        return completions;
+    }
+
+    /**
+     * The {@code width} most likely completions of {@code prompt} found by beam search, in decreasing log-probability.
+     * The search ends when no partial completion can beat the {@code width} complete ones any more (log-probabilities
+     * only decrease), or at the positions limit, where the partial completions are returned as they are.
+     *
+     * @param maxTokens positions limit, prompt included, as in {@link Llama#generateTokens}
+     */
+    static List<Completion> beamSearch(Llama model, Llama.State state, IntList prompt, int width, int maxTokens, BitSet stopTokens) {
+        int vocabularySize = model.configuration().vocabularySize;
+        int limit = limit(model, maxTokens);
+        ingest(model, state, prompt, limit);
+        List<Completion> complete = new ArrayList<>();
+        // the prompt is the single beam of the first step
+        List<Beam> beams = new ArrayList<>(width);
+        beams.add(new Beam(state, new IntList(), 0.0));
+        ArrayDeque<Llama.State> spares = new ArrayDeque<>(width);
+        for (int i = 0; i < width; i++) {
+            spares.add(state.fork(0, 1));
+        }
+
+        int[] candidateBeams = new int[width * width];
+        int[] candidateTokens = new int[width * width];
+        double[] candidateScores = new double[width * width];
+        int[] topTokens = new int[width];
+        float[] topLogits = new float[width];
+        for (int position = prompt.size(); !beams.isEmpty(); position++) {
+            // the best continuations of each beam
+            int candidates = 0;
+            for (int b = 0; b < beams.size(); b++) {
+                Beam beam = beams.get(b);
+                float[] logits = ((ArrayFloatTensor) beam.state.logits).values;
+                float logSumExp = Llama.logSumExp(logits, vocabularySize);
+                int count = largest(logits, vocabularySize, topTokens, topLogits);
+                for (int i = 0; i < count; i++) {
+                    candidateBeams[candidates] = b;
+                    candidateTokens[candidates] = topTokens[i];
+                    candidateScores[candidates++] = beam.logProbability + topLogits[i] - logSumExp;
+                }
+            }
+            Integer[] order = new Integer[candidates];
+            for (int i = 0; i < candidates; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(i -> -candidateScores[i]));
+
+            // the best width candidates become the next beams, a finished one is complete
+            List<Integer> selected = new ArrayList<>(width);
+            for (int c : order) {
+                if (selected.size() == width) {
+                    break;
+                }
+                if (stopTokens.get(candidateTokens[c]) || position >= limit) {
+                    complete.add(new Completion(extend(beams.get(candidateBeams[c]).tokens, candidateTokens[c]), candidateScores[c]));
+                } else {
+                    selected.add(c);
+                }
+            }
+            complete.sort(Comparator.comparingDouble(completion -> -completion.logProbability()));
+            if (complete.size() >= width) {
+                complete.subList(width, complete.size()).clear();
+                if (selected.isEmpty() || complete.getLast().logProbability() >= candidateScores[selected.getFirst()]) {
+                    break;
+                }
+            }
+
+            // a beam continued once keeps its state, the other continuations fork it into spare states
+            boolean[] continued = new boolean[beams.size()];
+            for (int c : selected) {
+                continued[candidateBeams[c]] = true;
+            }
+            for (int b = 0; b < beams.size(); b++) {
+                if (!continued[b] && beams.get(b).state != state) {
+                    beams.get(b).state.kvCache.release();
+                    spares.add(beams.get(b).state);
+                }
+            }
+            boolean[] reused = new boolean[beams.size()];
+            List<Beam> next = new ArrayList<>(selected.size());
+            for (int c : selected) {
+                Beam parent = beams.get(candidateBeams[c]);
+                Llama.State beamState;
+                if (!reused[candidateBeams[c]] && parent.state != state) {
+                    reused[candidateBeams[c]] = true;
+                    beamState = parent.state;
+                } else {
+                    beamState = spares.removeFirst();
+                    KVCache shared = parent.state.kvCache.fork(position);
+                    beamState.kvCache.release();
+                    beamState.kvCache = shared;
+                }
+                next.add(new Beam(beamState, extend(parent.tokens, candidateTokens[c]), candidateScores[c]));
+            }
+            Llama.State[] batch = new Llama.State[next.size()];
+            int[] batchTokens = new int[next.size()];
+            for (int b = 0; b < next.size(); b++) {
+                batch[b] = next.get(b).state;
+                batchTokens[b] = next.get(b).tokens.getLast();
+            }
+            decode(model, state, batchTokens, batch, position);
+            beams = next;
+        }
+        for (Beam beam : beams) {
+            if (beam.state != state) {
+                beam.state.kvCache.release();
+            }
+        }
+        for (Llama.State spare : spares) {
+            spare.kvCache.release();
+        }
+        return complete;
+    }
+
+    private static int limit(Llama model, int maxTokens) {
+        int contextLength = model.configuration().contextLength;
+        return maxTokens < 0 || contextLength < maxTokens ? contextLength : maxTokens;
+    }
+
+    /**
+     * Ingests the prompt, in batches, and computes all the logits of its last token.
+     */
+    private static void ingest(Llama model, Llama.State state, IntList prompt, int limit) {
+        if (prompt.isEmpty() || prompt.size() > limit) {
+            throw new IllegalArgumentException("Prompt of " + prompt.size() + " tokens doesn't fit in " + limit + " positions");
+        }
+        state.restrictLogits(null, 0);
+        state.selectTopLogits(0);
+        for (int position = 0; position < prompt.size(); position += state.batchsize) {
+            int nTokens = Math.min(state.batchsize, prompt.size() - position);
+            int[] tokens = state.tokenBuffer(nTokens);
+            for (int i = 0; i < nTokens; i++) {
+                tokens[i] = prompt.get(position + i);
+            }
+            Llama.forward(model, state, tokens, position, position + nTokens == prompt.size());
+        }
+    }
+
+    /**
+     * Ingests {@code tokens[i]} in {@code sequences[i]} at {@code position}, in batched decode steps of up to the
+     * state's batchsize sequences.
+     */
+    private static void decode(Llama model, Llama.State state, int[] tokens, Llama.State[] sequences, int position) {
+        int[] positions = new int[state.batchsize];
+        Arrays.fill(positions, position);
+        for (int from = 0; from < tokens.length; from += state.batchsize) {
+            int count = Math.min(state.batchsize, tokens.length - from);
+            int[] batch = state.tokenBuffer(count);
+            System.arraycopy(tokens, from, batch, 0, count);
+            Llama.forward(model, state, batch, Arrays.copyOfRange(sequences, from, from + count), positions);
+        }
+    }
+
+    /**
+     * Indices of the {@code tokens.length} largest logits, in decreasing order, into {@code tokens} and
+     * {@code logits}; ties prefer the lowest token.
+     *
+     * @return the number of tokens selected, the smallest of {@code tokens.length} and {@code size}
+     */
+    private static int largest(float[] values, int size, int[] tokens, float[] logits) {
+        int count = 0;
+        for (int token = 0; token < size; token++) {
+            float value = values[token];
+            if (count == tokens.length && value <= logits[count - 1]) {
+                continue;
+            }
+            int i = Math.min(count, tokens.length - 1);
+            while (i > 0 && logits[i - 1] < value) {
+                tokens[i] = tokens[i - 1];
+                logits[i] = logits[i - 1];
+                i--;
+            }
+            tokens[i] = token;
+            logits[i] = value;
+            count = Math.min(count + 1, tokens.length);
+        }
+        return count;
+    }
+
+    private static IntList extend(IntList tokens, int token) {
+        IntList extended = new IntList(tokens.size() + 1);
+        extended.addAll(tokens);
+        extended.add(token);
+        return extended;
+    }
+}
@@ -0,0 +1,340 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Tokenizes a corpus (files or directories, one document per file) into a binary token file, in parallel.
+ *
+ * <p>
+ * Output: {@code <output>.tokens}, the token ids as little-endian int32, and {@code <output>.idx}, {@code documents + 1}
+ * little-endian int64 offsets (in tokens) of the documents in the token file. Both can be memory-mapped as is.
+ *
+ * <p>
+ * Input files are memory-mapped and cut into blocks at split points that don't change the pre-tokenization (see
+ * {@link Llama3PreTokenizer#isSafeSplit(char, char)}), so the result is identical to encoding each file at once. Blocks
+ * are encoded on all cores, each worker with its own buffers, and written in order to the memory-mapped output.
+ */
+final class CorpusTokenizer {
+    private static final int BLOCK_SIZE = 1 << 20;
+    // Blocks are cut before this size if possible, larger blocks are only produced if there's no split point.
+    private static final int MAX_SPLIT_SEARCH = 1 << 16;
+    private static final long OUTPUT_WINDOW_SIZE = 64L << 20;
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private static final char[] BYTE_TO_CHAR = new char[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            BYTE_TO_CHAR[b] = (char) (int) Tokenizer.BYTE_ENCODER.get(b);
+        }
+    }
+
+    record Options(Path modelPath, List<Path> inputs, Path output, int threads) {
+
+        static void printUsage(PrintStream out) {
+            out.println("Usage:  CorpusTokenizer --model <model.gguf> --output <prefix> <file or directory>...");
+            out.println();
+            out.println("Options:");
+            out.println("  --model, -m <path>            required, GGUF model whose tokenizer is used");
+            out.println("  --output, -o <prefix>         required, writes <prefix>.tokens and <prefix>.idx");
+            out.println("  --threads <int>               number of encoding threads, default all cores");
+        }
+
+        static Options parseOptions(String[] args) {
+            Path modelPath = null;
+            Path output = null;
+            int threads = Runtime.getRuntime().availableProcessors();
+            List<Path> inputs = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                String optionName = args[i];
+                switch (optionName) {
+                    case "--help", "-h" -> {
+                        printUsage(System.out);
+                        System.exit(0);
+                    }
+                    case "--model", "-m", "--output", "-o", "--threads" -> {
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("Missing argument for option " + optionName);
+                        }
+                        String nextArg = args[++i];
+                        switch (optionName) {
+                            case "--model", "-m" -> modelPath = Path.of(nextArg);
+                            case "--output", "-o" -> output = Path.of(nextArg);
+                            default -> threads = Integer.parseInt(nextArg);
+                        }
+                    }
+                    default -> {
+                        if (optionName.startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option: " + optionName);
+                        }
+                        inputs.add(Path.of(optionName));
+                    }
+                }
+            }
+            if (modelPath == null || output == null || inputs.isEmpty()) {
+                printUsage(System.err);
+                throw new IllegalArgumentException("--model, --output and at least one input are required");
+            }
+            return new Options(modelPath, List.copyOf(inputs), output, threads);
+        }
+    }
+
+    private record Block(MemorySegment file, long from, long to, boolean lastOfDocument) {
+    }
+
+    private record PendingBlock(Future<int[]> tokens, long bytes, boolean lastOfDocument) {
+    }
+
+    /**
+     * Per-thread buffers, reused across blocks.
+     */
+    private static final class Worker {
+        byte[] bytes = new byte[0];
+        char[] chars = new char[0];
+        final IntList ids = new IntList(BLOCK_SIZE / 2);
+
+        int[] encode(Tokenizer tokenizer, Block block) {
+            int length = Math.toIntExact(block.to() - block.from());
+            if (bytes.length < length) {
+                bytes = new byte[length];
+                chars = new char[length];
+            }
+            MemorySegment.copy(block.file(), ValueLayout.JAVA_BYTE, block.from(), bytes, 0, length);
+            for (int i = 0; i < length; i++) {
+                chars[i] = BYTE_TO_CHAR[bytes[i] & 0xFF];
+            }
+            ids.clear();
+            tokenizer.encodeOrdinary(new String(chars, 0, length), ids);
+            return ids.toArray();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        Options options = Options.parseOptions(args);
+        Tokenizer tokenizer = ModelLoader.loadModel(options.modelPath(), -1, false).tokenizer();
+        if (!Llama3PreTokenizer.PATTERN.equals(tokenizer.regexPattern())) {
+            throw new IllegalArgumentException("only the Llama 3 pre-tokenization is supported");
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (Path input : options.inputs()) {
+            try (Stream<Path> walk = Files.walk(input)) {
+                walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+            }
+        }
+        long totalBytes = 0;
+        for (Path file : files) {
+            totalBytes += Files.size(file);
+        }
+        System.err.printf("Tokenizing %d files, %.1f MB, %d threads%n", files.size(), totalBytes / 1e6, options.threads());
+
+        ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+        ExecutorService executor = Executors.newFixedThreadPool(options.threads(), runnable -> {
+            Thread thread = new Thread(runnable, "corpus-tokenizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Path tokensPath = options.output().resolveSibling(options.output().getFileName() + ".tokens");
+        Path indexPath = options.output().resolveSibling(options.output().getFileName() + ".idx");
+        long[] documentOffsets = new long[files.size() + 1];
+        int documentCount = 0;
+        Progress progress = new Progress(totalBytes);
+
+        try (var ignored = Timer.log("Tokenize corpus");
+             Arena arena = Arena.ofShared();
+             TokenWriter writer = new TokenWriter(tokensPath)) {
+            ArrayDeque<PendingBlock> pending = new ArrayDeque<>();
+            for (Path file : files) {
+                MemorySegment segment;
+                try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    segment = fileChannel.size() == 0 ? MemorySegment.NULL : fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+                }
+                long size = segment.byteSize();
+                long from = 0;
+                do {
+                    long to = nextSplit(segment, from);
+                    Block block = new Block(segment, from, to, to == size);
+                    pending.add(new PendingBlock(executor.submit(() -> workers.get().encode(tokenizer, block)), to - from, block.lastOfDocument()));
+                    // Bounded read-ahead, written in order.
+                    while (pending.size() > 2 * options.threads()) {
+                        documentCount = write(pending.removeFirst(), writer, documentOffsets, documentCount, progress);
+                    }
+                    from = to;
+                } while (from < size);
+            }
+            while (!pending.isEmpty()) {
+                documentCount = write(pending.removeFirst(), writer, documentOffsets, documentCount, progress);
+            }
+            progress.report(writer.tokenCount(), true);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assert documentCount == files.size();
+        ByteBuffer index = ByteBuffer.allocate(documentOffsets.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        index.asLongBuffer().put(documentOffsets);
+        try (FileChannel fileChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (index.hasRemaining()) {
+                fileChannel.write(index);
+            }
+        }
+        System.err.printf("Wrote %s (%d tokens) and %s (%d documents)%n", tokensPath, documentOffsets[files.size()], indexPath, files.size());
+    }
+
+    /**
+     * Encodes a memory-mapped file block by block, on the calling thread, passing the tokens of each block in order to
+     * {@code consumer}: the result is identical to encoding the file at once, without holding it as a string. Files are
+     * cut only with the Llama 3 pre-tokenization, other tokenizers get a single block.
+     */
+    static void encode(Tokenizer tokenizer, MemorySegment file, Consumer<int[]> consumer) {
+        boolean splittable = Llama3PreTokenizer.PATTERN.equals(tokenizer.regexPattern());
+        Worker worker = new Worker();
+        long size = file.byteSize();
+        for (long from = 0; from < size; ) {
+            long to = splittable ? nextSplit(file, from) : size;
+            consumer.accept(worker.encode(tokenizer, new Block(file, from, to, to == size)));
+            from = to;
+        }
+    }
+
+    private static int write(PendingBlock block, TokenWriter writer, long[] documentOffsets, int documentCount, Progress progress) throws IOException, InterruptedException, ExecutionException {
+        writer.write(block.tokens().get());
+        progress.add(block.bytes());
+        progress.report(writer.tokenCount(), false);
+        if (block.lastOfDocument()) {
+            documentOffsets[++documentCount] = writer.tokenCount();
+        }
+        return documentCount;
+    }
+
+    /**
+     * End of the block starting at {@code from}: the last safe split point before {@code from + BLOCK_SIZE}, the first
+     * one after it if there's none, or the end of the file.
+     */
+    private static long nextSplit(MemorySegment file, long from) {
+        long size = file.byteSize();
+        long target = from + BLOCK_SIZE;
+        if (target >= size) {
+            return size;
+        }
+        for (long i = target; i > Math.max(from + 1, target - MAX_SPLIT_SEARCH); i--) {
+            if (isSafeSplit(file, i)) {
+                return i;
+            }
+        }
+        for (long i = target + 1; i < size; i++) {
+            if (isSafeSplit(file, i)) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    private static boolean isSafeSplit(MemorySegment file, long index) {
+        char before = BYTE_TO_CHAR[file.get(ValueLayout.JAVA_BYTE, index - 1) & 0xFF];
+        char after = BYTE_TO_CHAR[file.get(ValueLayout.JAVA_BYTE, index) & 0xFF];
+        return Llama3PreTokenizer.isSafeSplit(before, after);
+    }
+
+    /**
+     * Appends int32 tokens to a file through a sliding memory-mapped window.
+     */
+    private static final class TokenWriter implements AutoCloseable {
+        private final FileChannel fileChannel;
+        private Arena arena;
+        private MemorySegment window;
+        private long windowStart;
+        private long position; // in bytes
+
+        TokenWriter(Path path) throws IOException {
+            this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void write(int[] tokens) throws IOException {
+            int written = 0;
+            while (written < tokens.length) {
+                if (window == null || position == windowStart + window.byteSize()) {
+                    remap();
+                }
+                int count = (int) Math.min(tokens.length - written, (windowStart + window.byteSize() - position) / Integer.BYTES);
+                MemorySegment.copy(tokens, written, window, INT_LE, position - windowStart, count);
+                written += count;
+                position += (long) count * Integer.BYTES;
+            }
+        }
+
+        private void remap() throws IOException {
+            unmap();
+            arena = Arena.ofConfined();
+            windowStart = position;
+            window = fileChannel.map(FileChannel.MapMode.READ_WRITE, windowStart, OUTPUT_WINDOW_SIZE, arena);
+        }
+
+        private void unmap() {
+            if (arena != null) {
+                window.force();
+                arena.close();
+                arena = null;
+                window = null;
+            }
+        }
+
+        long tokenCount() {
+            return position / Integer.BYTES;
+        }
+
+        @Override
+        public void close() throws IOException {
+            unmap();
+            // mapping extends the file by whole windows
+            fileChannel.truncate(position);
+            fileChannel.close();
+        }
+    }
+
+    private static final class Progress {
+        private final long totalBytes;
+        private final long startNanos = System.nanoTime();
+        private long bytes;
+        private long lastReportNanos = startNanos;
+
+        Progress(long totalBytes) {
+            this.totalBytes = totalBytes;
+        }
+
+        void add(long bytes) {
+            this.bytes += bytes;
+        }
+
+        void report(long tokens, boolean force) {
+            long now = System.nanoTime();
+            if (!force && now - lastReportNanos < 1_000_000_000L) {
+                return;
+            }
+            lastReportNanos = now;
+            double seconds = Math.max(1e-9, (now - startNanos) / 1e9);
+            System.err.printf("%.1f / %.1f MB (%.0f%%), %.1f MB/s, %d tokens, %.0f tokens/s%n",
+                    bytes / 1e6, totalBytes / 1e6, totalBytes == 0 ? 100.0 : 100.0 * bytes / totalBytes,
+                    bytes / 1e6 / seconds, tokens, tokens / seconds);
+        }
+    }
+}
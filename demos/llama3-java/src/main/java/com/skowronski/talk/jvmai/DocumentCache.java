@@ -0,0 +1,355 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Position-independent KV cache of document chunks, for retrieval-augmented prompts, which assemble the same retrieved
+ * chunks in different orders and at different positions: a prefix cache rarely hits, this one does wherever the chunk
+ * lands in the prompt.
+ *
+ * <p>
+ * A chunk is encoded once, alone after a fixed prefix (the begin-of-text token, the attention sink, and e.g. a system
+ * prompt), and its keys and values are kept with the position they were computed at. {@link #prefill} splices it into a
+ * state at any position: its rows are copied into the KV cache and its keys rotated by the RoPE delta (see
+ * {@link Llama#rotateKey}), only the other segments of the prompt, the glue tokens and the query, are ingested. This is
+ * an approximation: the tokens of a spliced chunk only attended to the prefix and to the chunk itself, not to the
+ * segments preceding it in the prompt; the tokens following it attend to all of it.
+ *
+ * <p>
+ * Chunks are evicted least recently used past {@code capacityTokens} cached tokens, a token costs
+ * {@code 2 * numberOfLayers * kvDim} floats. Thread-safe, chunks are encoded one at a time.
+ */
+final class DocumentCache {
+
+    /**
+     * A prompt segment, spliced from the cache if it is a {@code document}, ingested otherwise.
+     */
+    record Segment(IntList tokens, boolean document) {
+        static Segment text(IntList tokens) {
+            return new Segment(tokens, false);
+        }
+
+        static Segment document(IntList tokens) {
+            return new Segment(tokens, true);
+        }
+    }
+
+    /**
+     * Keys and values of a chunk, {@code (n_layer, tokens, kv_dim)}, computed from {@code basePosition} on.
+     */
+    record Chunk(int basePosition, int length, FloatTensor[] keys, FloatTensor[] values) {
+    }
+
+    private record Key(int[] tokens) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && Arrays.equals(tokens, key.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tokens);
+        }
+    }
+
+    private final Llama model;
+    private final int kvDim;
+    private final int basePosition;
+    private final int capacityTokens;
+    // encodes the chunks, after the prefix, ingested once
+    private final Llama.State state;
+    // in access order, the eldest is the least recently used
+    private final LinkedHashMap<Key, Chunk> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedTokens;
+    private long hits;
+    private long misses;
+
+    DocumentCache(Llama model, IntList prefix, int batchsize, int capacityTokens) {
+        Llama.Configuration config = model.configuration();
+        if (prefix.size() >= config.contextLength) {
+            throw new IllegalArgumentException("Prefix of " + prefix.size() + " tokens doesn't fit in " + config.contextLength + " positions");
+        }
+        this.model = model;
+        this.kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        this.basePosition = prefix.size();
+        this.capacityTokens = capacityTokens;
+        this.state = model.createNewState(batchsize);
+        ingest(state, 0, prefix);
+    }
+
+    /**
+     * The cached chunk of {@code tokens}, encoded on a miss.
+     */
+    synchronized Chunk chunk(IntList tokens) {
+        Key key = new Key(tokens.toArray());
+        Chunk chunk = chunks.get(key);
+        if (chunk != null) {
+            hits++;
+            return chunk;
+        }
+        misses++;
+        chunk = encode(tokens);
+        chunks.put(key, chunk);
+        cachedTokens += chunk.length();
+        for (Iterator<Chunk> eldest = chunks.values().iterator(); cachedTokens > capacityTokens && chunks.size() > 1; ) {
+            cachedTokens -= eldest.next().length();
+            eldest.remove();
+        }
+        return chunk;
+    }
+
+    private Chunk encode(IntList tokens) {
+        int contextLength = model.configuration().contextLength;
+        if (basePosition + tokens.size() > contextLength) {
+            throw new IllegalArgumentException("Chunk of " + tokens.size() + " tokens doesn't fit in " + (contextLength - basePosition) + " positions after the prefix");
+        }
+        ingest(state, basePosition, tokens);
+        int layers = model.configuration().numberOfLayers;
+        FloatTensor[] keys = Llama.allocate(layers, tokens.size(), kvDim);
+        FloatTensor[] values = Llama.allocate(layers, tokens.size(), kvDim);
+        Parallel.parallelFor(0, layers, l -> {
+            for (int t = 0; t < tokens.size(); t++) {
+                KVCache.Page page = state.kvCache.page(basePosition + t);
+                int offset = ((basePosition + t) & KVCache.PAGE_MASK) * kvDim;
+                page.keys[l].copyTo(offset, keys[l], t * kvDim, kvDim);
+                page.values[l].copyTo(offset, values[l], t * kvDim, kvDim);
+            }
+        });
+        return new Chunk(basePosition, tokens.size(), keys, values);
+    }
+
+    /**
+     * Writes {@code chunk} at positions {@code [position, position + length)} of {@code target}, its keys rotated to
+     * their new positions.
+     */
+    void splice(Llama.State target, Chunk chunk, int position) {
+        Llama.Configuration config = model.configuration();
+        int delta = position - chunk.basePosition();
+        target.kvCache.prepareWrite(position, position + chunk.length());
+        Parallel.parallelFor(0, config.numberOfLayers, l -> {
+            for (int t = 0; t < chunk.length(); t++) {
+                KVCache.Page page = target.kvCache.page(position + t);
+                int offset = ((position + t) & KVCache.PAGE_MASK) * kvDim;
+                chunk.keys()[l].copyTo(t * kvDim, page.keys[l], offset, kvDim);
+                chunk.values()[l].copyTo(t * kvDim, page.values[l], offset, kvDim);
+                if (delta != 0) {
+                    Llama.rotateKey(model.weights(), config.headSize, page.keys[l], offset, kvDim, delta);
+                }
+            }
+        });
+    }
+
+    /**
+     * Ingests the {@code segments} of a prompt in {@code target} from {@code startPosition}: documents are spliced from
+     * the cache (encoded on a miss), the other segments are ingested, in batches. No logits are computed: the query,
+     * last, is left to {@link Llama#generateTokens}, which ingests it and computes its logits.
+     *
+     * @return the position following the segments
+     */
+    int prefill(Llama.State target, int startPosition, List<Segment> segments) {
+        int position = startPosition;
+        for (Segment segment : segments) {
+            if (position + segment.tokens().size() > model.configuration().contextLength) {
+                throw new IllegalArgumentException("Prompt doesn't fit in " + model.configuration().contextLength + " positions");
+            }
+            if (segment.document()) {
+                splice(target, chunk(segment.tokens()), position);
+            } else {
+                ingest(target, position, segment.tokens());
+            }
+            position += segment.tokens().size();
+        }
+        return position;
+    }
+
+    private void ingest(Llama.State target, int startPosition, IntList tokens) {
+        for (int i = 0; i < tokens.size(); i += target.batchsize) {
+            int nTokens = Math.min(target.batchsize, tokens.size() - i);
+            int[] batch = target.tokenBuffer(nTokens);
+            for (int j = 0; j < nTokens; j++) {
+                batch[j] = tokens.get(i + j);
+            }
+            Llama.forward(model, target, batch, startPosition + i, false);
+        }
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized int cachedTokens() {
+        return cachedTokens;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DocumentCache{chunks=%d, tokens=%d, hits=%d, misses=%d}", chunks.size(), cachedTokens, hits, misses);
+    }
+
+    record Options(Path modelPath, int documents, int documentTokens, int queries, int documentsPerQuery, int contextLength) {
+
+        static void printUsage(PrintStream out) {
+            out.println("Usage:  DocumentCache --model <model.gguf> [options]");
+            out.println();
+            out.println("RAG load: each query retrieves a few documents of a corpus, in a random order, followed by a question;");
+            out.println("reports the time to first token with the documents spliced from the (warm) cache and ingested in full,");
+            out.println("and how often both predict the same first token.");
+            out.println();
+            out.println("Options:");
+            out.println("  --model, -m <path>            required, path to .gguf file");
+            out.println("  --documents <int>             documents in the corpus, default 16");
+            out.println("  --document-tokens <int>       tokens per document, default 256");
+            out.println("  --queries <int>               queries, default 32");
+            out.println("  --per-query <int>             documents per query, default 4");
+            out.println("  --context <int>               context length, default documents per query * (document tokens + 16) + 64");
+        }
+
+        static Options parseOptions(String[] args) {
+            Path modelPath = null;
+            int documents = 16;
+            int documentTokens = 256;
+            int queries = 32;
+            int documentsPerQuery = 4;
+            int contextLength = -1;
+            for (int i = 0; i < args.length; i++) {
+                String optionName = args[i];
+                switch (optionName) {
+                    case "--help", "-h" -> {
+                        printUsage(System.out);
+                        System.exit(0);
+                    }
+                    case "--model", "-m", "--documents", "--document-tokens", "--queries", "--per-query", "--context" -> {
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("Missing argument for option " + optionName);
+                        }
+                        String nextArg = args[++i];
+                        switch (optionName) {
+                            case "--model", "-m" -> modelPath = Path.of(nextArg);
+                            case "--documents" -> documents = Integer.parseInt(nextArg);
+                            case "--document-tokens" -> documentTokens = Integer.parseInt(nextArg);
+                            case "--queries" -> queries = Integer.parseInt(nextArg);
+                            case "--per-query" -> documentsPerQuery = Integer.parseInt(nextArg);
+                            default -> contextLength = Integer.parseInt(nextArg);
+                        }
+                    }
+                    default -> throw new IllegalArgumentException("Unknown option: " + optionName);
+                }
+            }
+            if (modelPath == null) {
+                printUsage(System.err);
+                throw new IllegalArgumentException("--model is required");
+            }
+            if (documentsPerQuery > documents) {
+                throw new IllegalArgumentException("--per-query must be at most --documents");
+            }
+            if (contextLength < 0) {
+                contextLength = documentsPerQuery * (documentTokens + 16) + 64;
+            }
+            return new Options(modelPath, documents, documentTokens, queries, documentsPerQuery, contextLength);
+        }
+    }
+
+    private static final int BATCH_SIZE = 16;
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parseOptions(args);
+        Llama model = ModelLoader.loadModel(options.modelPath(), options.contextLength(), true);
+        int vocabularySize = model.configuration().vocabularySize;
+        int beginOfText = model.tokenizer().getSpecialTokens().get("<|begin_of_text|>");
+        Random random = new Random(42);
+        // random tokens: the content doesn't matter, the load does
+        List<IntList> corpus = new ArrayList<>();
+        for (int d = 0; d < options.documents(); d++) {
+            corpus.add(randomTokens(random, options.documentTokens(), vocabularySize));
+        }
+        IntList prefix = new IntList();
+        prefix.add(beginOfText);
+        DocumentCache cache = new DocumentCache(model, prefix, BATCH_SIZE, Integer.MAX_VALUE);
+        // encoded upfront, the queries measure the cached path
+        long startEncode = System.nanoTime();
+        for (IntList document : corpus) {
+            cache.chunk(document);
+        }
+        System.out.printf("encoded %d documents: %.1f ms%n", corpus.size(), (System.nanoTime() - startEncode) / 1e6);
+        Llama.State spliced = model.createNewState(BATCH_SIZE);
+        Llama.State full = model.createNewState(BATCH_SIZE);
+        long splicedNanos = 0;
+        long fullNanos = 0;
+        int agreements = 0;
+        List<Integer> order = new ArrayList<>();
+        for (int d = 0; d < options.documents(); d++) {
+            order.add(d);
+        }
+        for (int q = 0; q < options.queries(); q++) {
+            Collections.shuffle(order, random);
+            List<Segment> segments = new ArrayList<>();
+            IntList header = new IntList();
+            header.add(beginOfText);
+            header.addAll(randomTokens(random, 8, vocabularySize));
+            segments.add(Segment.text(header));
+            for (int d = 0; d < options.documentsPerQuery(); d++) {
+                segments.add(Segment.document(corpus.get(order.get(d))));
+                segments.add(Segment.text(randomTokens(random, 4, vocabularySize)));
+            }
+            IntList question = randomTokens(random, 16, vocabularySize);
+
+            long startNanos = System.nanoTime();
+            int position = cache.prefill(spliced, 0, segments);
+            int splicedToken = firstToken(model, spliced, position, question);
+            splicedNanos += System.nanoTime() - startNanos;
+
+            IntList prompt = new IntList();
+            for (Segment segment : segments) {
+                prompt.addAll(segment.tokens());
+            }
+            startNanos = System.nanoTime();
+            cache.ingest(full, 0, prompt);
+            int fullToken = firstToken(model, full, prompt.size(), question);
+            fullNanos += System.nanoTime() - startNanos;
+            if (splicedToken == fullToken) {
+                agreements++;
+            }
+        }
+        System.out.printf("%d queries of %d documents (%d tokens each) out of %d%n",
+                options.queries(), options.documentsPerQuery(), options.documentTokens(), options.documents());
+        System.out.printf("time to first token: spliced %.1f ms, full prefill %.1f ms%n",
+                splicedNanos / 1e6 / options.queries(), fullNanos / 1e6 / options.queries());
+        System.out.printf("same first token: %d/%d, %s%n", agreements, options.queries(), cache);
+    }
+
+    /**
+     * Ingests {@code tokens} from {@code position} on, and returns the most likely token following them.
+     */
+    private static int firstToken(Llama model, Llama.State state, int position, IntList tokens) {
+        for (int i = 0; i < tokens.size(); i += state.batchsize) {
+            int nTokens = Math.min(state.batchsize, tokens.size() - i);
+            int[] batch = state.tokenBuffer(nTokens);
+            for (int j = 0; j < nTokens; j++) {
+                batch[j] = tokens.get(i + j);
+            }
+            Llama.forward(model, state, batch, position + i, i + nTokens == tokens.size());
+        }
+        return state.logits.argmax();
+    }
+
+    private static IntList randomTokens(Random random, int count, int vocabularySize) {
+        IntList tokens = new IntList(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(random.nextInt(Math.min(vocabularySize, 1 << 14)));
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,7 @@
+package com.skowronski.talk.jvmai;
+
+import java.lang.foreign.MemorySegment;
+
+record GGMLTensorEntry(MemorySegment mappedFile, String name, GGMLType ggmlType, int[] shape,
+                       MemorySegment memorySegment) {
+}
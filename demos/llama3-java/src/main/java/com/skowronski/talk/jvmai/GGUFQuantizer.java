@@ -0,0 +1,331 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Offline (re-)quantizer: reads a GGUF model, converts its tensors and writes a new GGUF model.
+ *
+ * <p>
+ * Weight matrices (2+ dimensions) are converted to the target type, unless a {@code --rule} matches their name first,
+ * 1-dimensional tensors (norms) are always kept as-is. Quantization runs in parallel, straight into the memory-mapped
+ * output, see {@link GGUFWriter}. Quantization routines follow llama.cpp's reference implementations.
+ */
+final class GGUFQuantizer {
+
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // Tensors within a layer, in the order they are accessed by the forward pass.
+    private static final List<String> LAYER_ACCESS_ORDER = List.of(
+            "attn_norm", "attn_q", "attn_k", "attn_v", "attn_output", "ffn_norm", "ffn_gate", "ffn_up", "ffn_down");
+    private static final Pattern LAYER_TENSOR = Pattern.compile("blk\\.(\\d+)\\.([a-z_]+)\\.weight");
+
+    record Rule(Pattern namePattern, GGMLType ggmlType) {
+        static Rule parse(String rule) {
+            int separator = rule.lastIndexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("expected <glob>=<type> but found " + rule);
+            }
+            return new Rule(Pattern.compile(globToRegex(rule.substring(0, separator))), parseType(rule.substring(separator + 1)));
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                switch (c) {
+                    case '*' -> regex.append(".*");
+                    case '?' -> regex.append('.');
+                    default -> regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+
+    record Options(Path input, Path output, GGMLType ggmlType, List<Rule> rules, boolean layerOrder, boolean verbose) {
+
+        static void printUsage(PrintStream out) {
+            out.println("Usage:  GGUFQuantizer --input <model.gguf> --output <model.gguf> [options]");
+            out.println();
+            out.println("Options:");
+            out.println("  --input, -i <path>            required, GGUF model (any shard of a split model)");
+            out.println("  --output, -o <path>           required, output GGUF model");
+            out.println("  --type, -t <type>             type of the weight matrices: Q8_0, Q4_0, F16, BF16 or F32, default Q8_0");
+            out.println("  --rule <glob>=<type>          per-tensor type, first match wins e.g. --rule 'output.weight=Q8_0' --rule 'blk.*.ffn_*=Q4_0'");
+            out.println("  --layer-order                 lay out tensors in per-layer access order (forward pass locality)");
+            out.println("  --verbose, -v                 print the type conversion of every tensor");
+        }
+
+        static Options parseOptions(String[] args) {
+            Path input = null;
+            Path output = null;
+            GGMLType ggmlType = GGMLType.Q8_0;
+            List<Rule> rules = new ArrayList<>();
+            boolean layerOrder = false;
+            boolean verbose = false;
+            for (int i = 0; i < args.length; i++) {
+                String optionName = args[i];
+                switch (optionName) {
+                    case "--help", "-h" -> {
+                        printUsage(System.out);
+                        System.exit(0);
+                    }
+                    case "--layer-order" -> layerOrder = true;
+                    case "--verbose", "-v" -> verbose = true;
+                    default -> {
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("Missing argument for option " + optionName);
+                        }
+                        String nextArg = args[++i];
+                        switch (optionName) {
+                            case "--input", "-i" -> input = Path.of(nextArg);
+                            case "--output", "-o" -> output = Path.of(nextArg);
+                            case "--type", "-t" -> ggmlType = parseType(nextArg);
+                            case "--rule" -> rules.add(Rule.parse(nextArg));
+                            default -> throw new IllegalArgumentException("Unknown option: " + optionName);
+                        }
+                    }
+                }
+            }
+            if (input == null || output == null) {
+                printUsage(System.err);
+                throw new IllegalArgumentException("--input and --output are required");
+            }
+            if (input.toAbsolutePath().equals(output.toAbsolutePath())) {
+                throw new IllegalArgumentException("--output must be different from --input");
+            }
+            return new Options(input, output, ggmlType, List.copyOf(rules), layerOrder, verbose);
+        }
+    }
+
+    static GGMLType parseType(String name) {
+        GGMLType ggmlType = GGMLType.valueOf(name.toUpperCase());
+        if (!isSupported(ggmlType)) {
+            throw new IllegalArgumentException("Unsupported type " + ggmlType + ", expected one of Q8_0, Q4_0, F16, BF16 or F32");
+        }
+        return ggmlType;
+    }
+
+    static boolean isSupported(GGMLType ggmlType) {
+        return switch (ggmlType) {
+            case F32, F16, BF16, Q8_0, Q4_0 -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * llama.cpp's {@code general.file_type} for a model whose matrices are mostly of the given type.
+     */
+    static int fileType(GGMLType ggmlType) {
+        return switch (ggmlType) {
+            case F32 -> 0;
+            case F16 -> 1;
+            case Q4_0 -> 2;
+            case Q8_0 -> 7;
+            case BF16 -> 32;
+            default -> throw new IllegalArgumentException(ggmlType.toString());
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parseOptions(args);
+
+        List<Path> shardPaths = GGUFShards.shardPaths(options.input());
+        List<GGUF> shards = shardPaths.size() > 1 ? GGUFShards.parseAll(shardPaths) : List.of(GGUF.loadModel(options.input()));
+        Map<String, GGMLTensorEntry> tensorEntries;
+        if (shardPaths.size() > 1) {
+            tensorEntries = GGUFShards.loadTensors(shardPaths, shards);
+        } else {
+            try (FileChannel fileChannel = FileChannel.open(options.input(), StandardOpenOption.READ)) {
+                tensorEntries = GGUF.loadTensors(fileChannel, shards.getFirst().getTensorDataOffset(), shards.getFirst().getTensorInfos());
+            }
+        }
+
+        GGUFWriter writer = new GGUFWriter().putAllMetadata(shards.getFirst());
+        // The output is a single file.
+        writer.removeMetadata("split.no").removeMetadata("split.count").removeMetadata("split.tensors.count");
+        writer.putMetadata("general.file_type", GGUF.MetadataValueType.UINT32, fileType(options.ggmlType()));
+        writer.putMetadata("general.quantization_version", GGUF.MetadataValueType.UINT32, 2);
+
+        List<GGMLTensorEntry> entries = new ArrayList<>(tensorEntries.values());
+        entries.sort(options.layerOrder()
+                ? Comparator.comparing(GGUFQuantizer::layerOrderKey)
+                : Comparator.comparing((GGMLTensorEntry entry) -> entry.mappedFile().address()).thenComparing(entry -> entry.memorySegment().address()));
+
+        long inputBytes = 0;
+        for (GGMLTensorEntry entry : entries) {
+            GGMLType targetType = targetType(entry, options);
+            inputBytes += entry.memorySegment().byteSize();
+            if (options.verbose()) {
+                System.err.printf("%-32s %-16s %5s -> %s%n", entry.name(), Arrays.toString(entry.shape()), entry.ggmlType(), targetType);
+            }
+            writer.addTensor(entry.name(), entry.shape(), targetType, convert(entry, targetType));
+        }
+        writer.write(options.output());
+
+        long outputBytes = writer.tensors().stream().mapToLong(GGUFWriter.Tensor::byteSize).sum();
+        System.err.printf("Tensor data: %.1f MB -> %.1f MB%n", inputBytes / 1e6, outputBytes / 1e6);
+    }
+
+    private static GGMLType targetType(GGMLTensorEntry entry, Options options) {
+        if (entry.shape().length < 2) {
+            return entry.ggmlType(); // norms are only supported as F32
+        }
+        GGMLType targetType = options.ggmlType();
+        for (Rule rule : options.rules()) {
+            if (rule.namePattern().matcher(entry.name()).matches()) {
+                targetType = rule.ggmlType();
+                break;
+            }
+        }
+        if (entry.shape()[0] % targetType.getBlockSize() != 0) {
+            System.err.printf("%s: row size %d is not a multiple of the %s block size, keeping %s%n", entry.name(), entry.shape()[0], targetType, entry.ggmlType());
+            return entry.ggmlType();
+        }
+        return targetType;
+    }
+
+    private static String layerOrderKey(GGMLTensorEntry entry) {
+        String name = entry.name();
+        if (name.equals("token_embd.weight")) {
+            return "0";
+        }
+        Matcher matcher = LAYER_TENSOR.matcher(name);
+        if (matcher.matches()) {
+            int position = LAYER_ACCESS_ORDER.indexOf(matcher.group(2));
+            return "1/%010d/%02d/%s".formatted(Integer.parseInt(matcher.group(1)), position < 0 ? 99 : position, name);
+        }
+        return switch (name) {
+            case "output_norm.weight" -> "2";
+            case "output.weight" -> "3";
+            default -> "4/" + name;
+        };
+    }
+
+    static GGUFWriter.TensorSource convert(GGMLTensorEntry entry, GGMLType targetType) {
+        if (entry.ggmlType() == targetType) {
+            // Verbatim copy.
+            return (firstRow, rowCount, target) -> {
+                long rowBytes = targetType.byteSizeFor(entry.shape()[0]);
+                MemorySegment.copy(entry.memorySegment(), firstRow * rowBytes, target, 0, rowCount * rowBytes);
+            };
+        }
+        if (!isSupported(entry.ggmlType())) {
+            throw new UnsupportedOperationException(entry.name() + ": cannot convert from " + entry.ggmlType());
+        }
+        FloatTensor source = entry.ggmlType() == GGMLType.F32 ? null : ModelLoader.loadQuantized(entry);
+        int rowSize = entry.shape()[0];
+        long targetRowBytes = targetType.byteSizeFor(rowSize);
+        return (firstRow, rowCount, target) -> {
+            float[] row = new float[rowSize];
+            for (int r = 0; r < rowCount; r++) {
+                int rowOffset = (firstRow + r) * rowSize;
+                for (int i = 0; i < rowSize; i++) {
+                    row[i] = source != null
+                            ? source.getFloat(rowOffset + i)
+                            : entry.memorySegment().get(FLOAT_LE, (long) (rowOffset + i) * Float.BYTES);
+                }
+                quantize(row, 0, rowSize, targetType, target, r * targetRowBytes);
+            }
+        };
+    }
+
+    /**
+     * Encodes {@code values[offset, offset + size)} in the given type into {@code target} at {@code targetOffset}.
+     * {@code size} must be a multiple of the block size.
+     */
+    static void quantize(float[] values, int offset, int size, GGMLType ggmlType, MemorySegment target, long targetOffset) {
+        assert size % ggmlType.getBlockSize() == 0;
+        switch (ggmlType) {
+            case F32 -> {
+                for (int i = 0; i < size; i++) {
+                    target.set(FLOAT_LE, targetOffset + (long) i * Float.BYTES, values[offset + i]);
+                }
+            }
+            case F16 -> {
+                for (int i = 0; i < size; i++) {
+                    target.set(SHORT_LE, targetOffset + (long) i * GGMLType.FLOAT16_BYTES, Float.floatToFloat16(values[offset + i]));
+                }
+            }
+            case BF16 -> {
+                for (int i = 0; i < size; i++) {
+                    target.set(SHORT_LE, targetOffset + (long) i * GGMLType.BFLOAT16_BYTES, floatToBFloat16(values[offset + i]));
+                }
+            }
+            case Q8_0 -> {
+                for (int b = 0; b < size; b += GGMLType.Q8_0.getBlockSize()) {
+                    quantizeBlockQ8_0(values, offset + b, target, targetOffset + (long) b / GGMLType.Q8_0.getBlockSize() * GGMLType.Q8_0.getTypeSize());
+                }
+            }
+            case Q4_0 -> {
+                for (int b = 0; b < size; b += GGMLType.Q4_0.getBlockSize()) {
+                    quantizeBlockQ4_0(values, offset + b, target, targetOffset + (long) b / GGMLType.Q4_0.getBlockSize() * GGMLType.Q4_0.getTypeSize());
+                }
+            }
+            default -> throw new UnsupportedOperationException("Quantization format " + ggmlType);
+        }
+    }
+
+    static short floatToBFloat16(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        if (Float.isNaN(value)) {
+            return (short) ((bits >>> 16) | 0x40); // quiet NaN
+        }
+        // round to nearest even
+        return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    private static void quantizeBlockQ8_0(float[] values, int offset, MemorySegment target, long blockOffset) {
+        int blockSize = GGMLType.Q8_0.getBlockSize();
+        float amax = 0f; // absolute max
+        for (int i = 0; i < blockSize; i++) {
+            amax = Math.max(amax, Math.abs(values[offset + i]));
+        }
+        float d = amax / 127f;
+        float id = d != 0f ? 1f / d : 0f;
+        target.set(SHORT_LE, blockOffset, Float.floatToFloat16(d));
+        for (int i = 0; i < blockSize; i++) {
+            target.set(ValueLayout.JAVA_BYTE, blockOffset + GGMLType.FLOAT16_BYTES + i, (byte) roundAwayFromZero(values[offset + i] * id));
+        }
+    }
+
+    private static void quantizeBlockQ4_0(float[] values, int offset, MemorySegment target, long blockOffset) {
+        int blockSize = GGMLType.Q4_0.getBlockSize();
+        float amax = 0f; // absolute max
+        float max = 0f; // value with the largest magnitude, keeping its sign
+        for (int i = 0; i < blockSize; i++) {
+            float v = values[offset + i];
+            if (amax < Math.abs(v)) {
+                amax = Math.abs(v);
+                max = v;
+            }
+        }
+        float d = max / -8f;
+        float id = d != 0f ? 1f / d : 0f;
+        target.set(SHORT_LE, blockOffset, Float.floatToFloat16(d));
+        // First half of the block in the low nibbles, second half in the high nibbles.
+        for (int i = 0; i < blockSize / 2; i++) {
+            int lo = Math.min(15, (int) (values[offset + i] * id + 8.5f));
+            int hi = Math.min(15, (int) (values[offset + blockSize / 2 + i] * id + 8.5f));
+            target.set(ValueLayout.JAVA_BYTE, blockOffset + GGMLType.FLOAT16_BYTES + i, (byte) (lo | (hi << 4)));
+        }
+    }
+
+    private static int roundAwayFromZero(float value) {
+        return (int) Math.copySign(Math.floor(Math.abs(value) + 0.5f), value);
+    }
+}
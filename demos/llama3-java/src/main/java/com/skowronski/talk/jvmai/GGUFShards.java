@@ -0,0 +1,159 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Support for models split in several GGUF files (shards), as produced by llama.cpp's {@code gguf-split}.
+ *
+ * <p>
+ * Shards are named {@code <name>-00001-of-0000N.gguf}, any of them can be specified. The first shard holds all the
+ * metadata, every shard holds a subset of the tensors, with offsets relative to its own tensor data.
+ * Shards are parsed and mapped in parallel and merged into a single tensor map.
+ *
+ * <p>
+ * Shards can be spread across several disks, missing shards are looked up in the directories listed in
+ * {@code -Dllama.ShardDirs=/disk1/models:/disk2/models}. With {@code -Dllama.Prefetch=true} all the mapped files
+ * are paged in concurrently, one thread per file, so the I/O bandwidth of the disks adds up.
+ */
+final class GGUFShards {
+    static final boolean PREFETCH = Boolean.getBoolean("llama.Prefetch");
+    private static final List<Path> SHARD_DIRS = Optional.ofNullable(System.getProperty("llama.ShardDirs")).stream()
+            .flatMap(dirs -> Arrays.stream(dirs.split(File.pathSeparator)))
+            .filter(dir -> !dir.isBlank())
+            .map(Path::of)
+            .toList();
+    private static final Pattern SHARD_FILE_NAME = Pattern.compile("(.+)-(\\d{5})-of-(\\d{5})\\.gguf");
+
+    /**
+     * Returns the paths of all the shards of the given model, in order, or just the given path if the model is not split.
+     */
+    static List<Path> shardPaths(Path modelPath) throws IOException {
+        Matcher matcher = SHARD_FILE_NAME.matcher(modelPath.getFileName().toString());
+        if (!matcher.matches()) {
+            return List.of(modelPath);
+        }
+        String prefix = matcher.group(1);
+        int count = Integer.parseInt(matcher.group(3));
+        Path modelDir = modelPath.toAbsolutePath().getParent();
+        List<Path> paths = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            paths.add(locate(modelDir, "%s-%05d-of-%05d.gguf".formatted(prefix, i, count)));
+        }
+        return paths;
+    }
+
+    private static Path locate(Path modelDir, String fileName) throws IOException {
+        for (Path dir : Stream.concat(Stream.of(modelDir), SHARD_DIRS.stream()).toList()) {
+            Path path = dir.resolve(fileName);
+            if (Files.isRegularFile(path)) {
+                return path;
+            }
+        }
+        throw new IOException("Missing shard " + fileName + " in " + modelDir + " and llama.ShardDirs=" + SHARD_DIRS);
+    }
+
+    static List<GGUF> parseAll(List<Path> shardPaths) throws IOException {
+        List<GGUF> shards = inParallel(shardPaths, GGUF::loadModel);
+        int expectedTensorCount = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            Map<String, Object> metadata = shards.get(i).getMetadata();
+            int splitNo = Short.toUnsignedInt((short) metadata.getOrDefault("split.no", (short) -1));
+            int splitCount = Short.toUnsignedInt((short) metadata.getOrDefault("split.count", (short) -1));
+            if (splitNo != i || splitCount != shards.size()) {
+                throw new IllegalArgumentException("inconsistent shard " + shardPaths.get(i) + ": split.no=" + splitNo + " split.count=" + splitCount);
+            }
+            if (i == 0) {
+                expectedTensorCount = (int) metadata.get("split.tensors.count");
+            }
+        }
+        int tensorCount = shards.stream().mapToInt(gguf -> gguf.getTensorInfos().size()).sum();
+        if (tensorCount != expectedTensorCount) {
+            throw new IllegalArgumentException("expected " + expectedTensorCount + " tensors in all shards, but found " + tensorCount);
+        }
+        return shards;
+    }
+
+    static Map<String, GGMLTensorEntry> loadTensors(List<Path> shardPaths, List<GGUF> shards) throws IOException {
+        try (var ignored = Timer.log("Map " + shardPaths.size() + " shards")) {
+            List<Integer> indices = IntStream.range(0, shardPaths.size()).boxed().toList();
+            List<Map<String, GGMLTensorEntry>> shardEntries = inParallel(indices, i -> {
+                GGUF gguf = shards.get(i);
+                // The channel can be closed once mapped, the mapping is kept alive by the (automatic) arena.
+                try (FileChannel fileChannel = FileChannel.open(shardPaths.get(i), StandardOpenOption.READ)) {
+                    return GGUF.loadTensors(fileChannel, gguf.getTensorDataOffset(), gguf.getTensorInfos());
+                }
+            });
+            Map<String, GGMLTensorEntry> tensorEntries = HashMap.newHashMap(shardEntries.stream().mapToInt(Map::size).sum());
+            for (Map<String, GGMLTensorEntry> entries : shardEntries) {
+                for (GGMLTensorEntry entry : entries.values()) {
+                    if (tensorEntries.putIfAbsent(entry.name(), entry) != null) {
+                        throw new IllegalArgumentException("tensor " + entry.name() + " is present in several shards");
+                    }
+                }
+            }
+            return tensorEntries;
+        }
+    }
+
+    /**
+     * Pages in all the mapped files backing the given tensors, concurrently.
+     */
+    static void prefetch(Collection<GGMLTensorEntry> tensorEntries) throws IOException {
+        List<MemorySegment> mappedFiles = tensorEntries.stream().map(GGMLTensorEntry::mappedFile).distinct().toList();
+        try (var ignored = Timer.log("Prefetch " + mappedFiles.size() + " mapped file(s)")) {
+            inParallel(mappedFiles, mappedFile -> {
+                mappedFile.load();
+                return null;
+            });
+        }
+    }
+
+    @FunctionalInterface
+    private interface ShardFunction<T, R> {
+        R apply(T shard) throws IOException;
+    }
+
+    /**
+     * Applies the function to every shard, each on its own platform thread: shards are I/O bound and may live on different disks.
+     */
+    private static <T, R> List<R> inParallel(List<T> shards, ShardFunction<T, R> function) throws IOException {
+        if (shards.size() == 1) {
+            return Collections.singletonList(function.apply(shards.getFirst()));
+        }
+        try (var executor = Executors.newFixedThreadPool(shards.size())) {
+            List<Future<R>> futures = shards.stream()
+                    .map(shard -> executor.submit(() -> function.apply(shard)))
+                    .toList();
+            List<R> results = new ArrayList<>(shards.size());
+            for (var future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException ioException) {
+                        throw ioException;
+                    }
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes GGUF (version 3) files.
+ *
+ * <p>
+ * Metadata and tensor infos are serialized upfront, tensor data is then produced directly into the memory-mapped
+ * output file, in parallel, in chunks of rows. Tensors are never buffered on heap, the output streams to the page cache.
+ * Tensor data offsets honor the alignment, {@code general.alignment} if present.
+ */
+final class GGUFWriter {
+    private static final int GGUF_MAGIC = 0x46554747;
+    private static final int GGUF_VERSION = 3;
+    private static final int DEFAULT_ALIGNMENT = 32;
+    // Rough number of elements produced by a single task, large tensors are split in several tasks.
+    private static final int ELEMENTS_PER_TASK = 1 << 20;
+
+    /**
+     * Produces the data of a tensor, row by row, a row being the first (innermost) dimension.
+     */
+    @FunctionalInterface
+    interface TensorSource {
+        /**
+         * Writes rows {@code [firstRow, firstRow + rowCount)} into {@code target}, sized exactly for these rows.
+         * Called concurrently for disjoint row ranges.
+         */
+        void writeRows(int firstRow, int rowCount, MemorySegment target);
+    }
+
+    record Tensor(String name, int[] dimensions, GGMLType ggmlType, TensorSource source) {
+        int rowSize() {
+            return dimensions[0];
+        }
+
+        int rowCount() {
+            return FloatTensor.numberOfElements(dimensions) / rowSize();
+        }
+
+        long rowBytes() {
+            return ggmlType.byteSizeFor(rowSize());
+        }
+
+        long byteSize() {
+            return rowBytes() * rowCount();
+        }
+    }
+
+    private record MetadataValue(GGUF.MetadataValueType type, GGUF.MetadataValueType elementType, Object value) {
+    }
+
+    private final Map<String, MetadataValue> metadata = new LinkedHashMap<>();
+    private final List<Tensor> tensors = new ArrayList<>();
+
+    GGUFWriter putMetadata(String key, GGUF.MetadataValueType type, Object value) {
+        if (type == GGUF.MetadataValueType.ARRAY) {
+            throw new IllegalArgumentException("use putArray for " + key);
+        }
+        metadata.put(key, new MetadataValue(type, null, value));
+        return this;
+    }
+
+    GGUFWriter putArray(String key, GGUF.MetadataValueType elementType, Object array) {
+        metadata.put(key, new MetadataValue(GGUF.MetadataValueType.ARRAY, elementType, array));
+        return this;
+    }
+
+    GGUFWriter removeMetadata(String key) {
+        metadata.remove(key);
+        return this;
+    }
+
+    /**
+     * Copies all the metadata of a parsed GGUF file, with its declared types.
+     */
+    GGUFWriter putAllMetadata(GGUF gguf) {
+        for (Map.Entry<String, Object> entry : gguf.getMetadata().entrySet()) {
+            String key = entry.getKey();
+            GGUF.MetadataValueType type = gguf.getMetadataType(key);
+            if (type == GGUF.MetadataValueType.ARRAY) {
+                putArray(key, gguf.getMetadataArrayType(key), entry.getValue());
+            } else {
+                putMetadata(key, type, entry.getValue());
+            }
+        }
+        return this;
+    }
+
+    GGUFWriter addTensor(String name, int[] dimensions, GGMLType ggmlType, TensorSource source) {
+        Tensor tensor = new Tensor(name, dimensions, ggmlType, source);
+        if (tensor.rowSize() % ggmlType.getBlockSize() != 0) {
+            throw new IllegalArgumentException("%s: row size %d is not a multiple of the %s block size".formatted(name, tensor.rowSize(), ggmlType));
+        }
+        tensors.add(tensor);
+        return this;
+    }
+
+    List<Tensor> tensors() {
+        return tensors;
+    }
+
+    int alignment() {
+        MetadataValue value = metadata.get("general.alignment");
+        int alignment = value != null ? ((Number) value.value()).intValue() : DEFAULT_ALIGNMENT;
+        assert Integer.bitCount(alignment) == 1 : "alignment must be a power of two";
+        return alignment;
+    }
+
+    void write(Path path) throws IOException {
+        int alignment = alignment();
+        long[] dataOffsets = new long[tensors.size()];
+        long dataSize = 0;
+        for (int i = 0; i < tensors.size(); i++) {
+            dataOffsets[i] = dataSize;
+            dataSize = align(dataSize + tensors.get(i).byteSize(), alignment);
+        }
+
+        Header header = new Header();
+        header.putInt(GGUF_MAGIC);
+        header.putInt(GGUF_VERSION);
+        header.putLong(tensors.size());
+        header.putLong(metadata.size());
+        for (Map.Entry<String, MetadataValue> entry : metadata.entrySet()) {
+            MetadataValue value = entry.getValue();
+            header.putString(entry.getKey());
+            header.putInt(value.type().ordinal());
+            if (value.type() == GGUF.MetadataValueType.ARRAY) {
+                header.putArray(value.elementType(), value.value());
+            } else {
+                header.putValue(value.type(), value.value());
+            }
+        }
+        for (int i = 0; i < tensors.size(); i++) {
+            Tensor tensor = tensors.get(i);
+            header.putString(tensor.name());
+            header.putInt(tensor.dimensions().length);
+            for (int dimension : tensor.dimensions()) {
+                header.putLong(dimension);
+            }
+            header.putInt(tensor.ggmlType().ordinal());
+            header.putLong(dataOffsets[i]);
+        }
+        long tensorDataOffset = align(header.size(), alignment);
+
+        try (var ignored = Timer.log("Write " + path);
+             FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             Arena arena = Arena.ofShared()) {
+            ByteBuffer headerBytes = header.flip();
+            while (headerBytes.hasRemaining()) {
+                fileChannel.write(headerBytes);
+            }
+            if (dataSize == 0) {
+                return;
+            }
+            // Padding (zeros) is implicit, the regions never written by tensors read as zero.
+            MemorySegment tensorData = fileChannel.map(FileChannel.MapMode.READ_WRITE, tensorDataOffset, dataSize, arena);
+            List<Runnable> tasks = new ArrayList<>();
+            for (int i = 0; i < tensors.size(); i++) {
+                Tensor tensor = tensors.get(i);
+                MemorySegment slice = tensorData.asSlice(dataOffsets[i], tensor.byteSize());
+                int rowsPerTask = Math.max(1, ELEMENTS_PER_TASK / tensor.rowSize());
+                for (int firstRow = 0; firstRow < tensor.rowCount(); firstRow += rowsPerTask) {
+                    int from = firstRow;
+                    int rowCount = Math.min(rowsPerTask, tensor.rowCount() - firstRow);
+                    tasks.add(() -> tensor.source().writeRows(from, rowCount, slice.asSlice(from * tensor.rowBytes(), rowCount * tensor.rowBytes())));
+                }
+            }
+            Parallel.parallelFor(0, tasks.size(), t -> tasks.get(t).run());
+            tensorData.force();
+        }
+    }
+
+    static long align(long offset, int alignment) {
+        return (offset + alignment - 1) & -alignment;
+    }
+
+    /**
+     * Growable little-endian buffer for the header, metadata and tensor infos.
+     */
+    private static final class Header {
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        private void ensureRemaining(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+                newBuffer.put(buffer.flip());
+                buffer = newBuffer;
+            }
+        }
+
+        int size() {
+            return buffer.position();
+        }
+
+        ByteBuffer flip() {
+            return buffer.flip();
+        }
+
+        void putByte(byte value) {
+            ensureRemaining(Byte.BYTES);
+            buffer.put(value);
+        }
+
+        void putShort(short value) {
+            ensureRemaining(Short.BYTES);
+            buffer.putShort(value);
+        }
+
+        void putInt(int value) {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putLong(bytes.length);
+            ensureRemaining(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void putValue(GGUF.MetadataValueType type, Object value) {
+            switch (type) {
+                case UINT8, INT8 -> putByte(((Number) value).byteValue());
+                case UINT16, INT16 -> putShort(((Number) value).shortValue());
+                case UINT32, INT32 -> putInt(((Number) value).intValue());
+                case UINT64, INT64 -> putLong(((Number) value).longValue());
+                case FLOAT32 -> putInt(Float.floatToRawIntBits(((Number) value).floatValue()));
+                case FLOAT64 -> putLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+                case BOOL -> putByte((byte) ((Boolean) value ? 1 : 0));
+                case STRING -> putString((String) value);
+                case ARRAY -> throw new IllegalArgumentException("nested array without element type");
+            }
+        }
+
+        void putArray(GGUF.MetadataValueType elementType, Object array) {
+            putInt(elementType.ordinal());
+            switch (array) {
+                case byte[] values -> {
+                    putLong(values.length);
+                    for (byte value : values) {
+                        putByte(value);
+                    }
+                }
+                case short[] values -> {
+                    putLong(values.length);
+                    for (short value : values) {
+                        putShort(value);
+                    }
+                }
+                case int[] values -> {
+                    putLong(values.length);
+                    for (int value : values) {
+                        putValue(elementType, value);
+                    }
+                }
+                case long[] values -> {
+                    putLong(values.length);
+                    for (long value : values) {
+                        putLong(value);
+                    }
+                }
+                case float[] values -> {
+                    putLong(values.length);
+                    for (float value : values) {
+                        putValue(elementType, value);
+                    }
+                }
+                case double[] values -> {
+                    putLong(values.length);
+                    for (double value : values) {
+                        putValue(elementType, value);
+                    }
+                }
+                case boolean[] values -> {
+                    putLong(values.length);
+                    for (boolean value : values) {
+                        putValue(GGUF.MetadataValueType.BOOL, value);
+                    }
+                }
+                case String[] values -> {
+                    putLong(values.length);
+                    for (String value : values) {
+                        putString(value);
+                    }
+                }
+                default -> throw new IllegalArgumentException("unsupported array " + array.getClass());
+            }
+        }
+    }
+}
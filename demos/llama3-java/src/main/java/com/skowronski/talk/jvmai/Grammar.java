@@ -0,0 +1,600 @@
+package com.skowronski.talk.jvmai;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic automaton over UTF-8 bytes, compiled from a regular expression (full match).
+ *
+ * <p>
+ * Supported syntax: literals, escapes ({@code \d \w \s \D \W \S \n \t \r \f \xHH}, 4 hex digit unicode escapes
+ * and escaped metacharacters), character classes with ranges and negation, {@code .} (anything but a newline), groups
+ * {@code (...)} and {@code (?:...)}, alternation and the {@code * + ? {n} {n,} {n,m}} quantifiers. Code points are
+ * expanded into UTF-8 byte sequences, so tokens, which may split characters, walk the automaton byte by byte.
+ * States that cannot reach an accepting state are pruned, a transition into them is a dead end ({@code -1}).
+ */
+final class Grammar {
+    static final int MAX_STATES = 1 << 16;
+
+    private final int[] transitions; // state * 256 + byte -> state, -1 is a dead end
+    private final boolean[] accepting;
+    private final int[] singleByte; // the only byte leaving a non-accepting state, -1 otherwise
+
+    private Grammar(int[] transitions, boolean[] accepting) {
+        this.transitions = transitions;
+        this.accepting = accepting;
+        this.singleByte = new int[accepting.length];
+        for (int state = 0; state < accepting.length; state++) {
+            int single = -1;
+            for (int b = 0; b < 256 && !accepting[state]; b++) {
+                if (transitions[state * 256 + b] >= 0) {
+                    if (single >= 0) {
+                        single = -1;
+                        break;
+                    }
+                    single = b;
+                }
+            }
+            singleByte[state] = single;
+        }
+    }
+
+    static Grammar regex(String pattern) {
+        Node node = new RegexParser(pattern).parse();
+        Nfa nfa = new Nfa();
+        int start = nfa.newState();
+        int end = nfa.compile(node, start);
+        return nfa.toDfa(start, end);
+    }
+
+    static Grammar jsonSchema(String schema) {
+        return regex(JsonSchema.toRegex(schema));
+    }
+
+    int startState() {
+        return 0;
+    }
+
+    int stateCount() {
+        return accepting.length;
+    }
+
+    int next(int state, int b) {
+        return transitions[state * 256 + (b & 0xFF)];
+    }
+
+    /**
+     * Walks {@code bytes[offset, offset + length)} from {@code state}, returns the final state or -1 on a dead end.
+     */
+    int next(int state, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length && state >= 0; i++) {
+            state = next(state, bytes[i]);
+        }
+        return state;
+    }
+
+    boolean isAccepting(int state) {
+        return accepting[state];
+    }
+
+    /**
+     * The only byte that may follow in {@code state}, or -1 if there's a choice (including stopping).
+     */
+    int singleByte(int state) {
+        return singleByte[state];
+    }
+
+    // Regular expression syntax tree, character sets are sorted, disjoint code point ranges [from, to] pairs.
+    private sealed interface Node {
+    }
+
+    private record Chars(int[] ranges) implements Node {
+    }
+
+    private record Concat(List<Node> nodes) implements Node {
+    }
+
+    private record Alternation(List<Node> nodes) implements Node {
+    }
+
+    private record Repeat(Node node, int min, int max) implements Node { // max == -1 is unbounded
+    }
+
+    private static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+    private static final int[] DIGITS = {'0', '9'};
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+    private static final int[] SPACES = {'\t', '\r', ' ', ' '};
+
+    static int[] normalize(int[] ranges) {
+        int n = ranges.length / 2;
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = (long) ranges[2 * i] << 32 | ranges[2 * i + 1];
+        }
+        Arrays.sort(sorted);
+        IntList merged = new IntList(ranges.length);
+        for (long range : sorted) {
+            int from = (int) (range >>> 32);
+            int to = (int) range;
+            if (merged.size() > 0 && from <= merged.getLast() + 1) {
+                int last = merged.removeLast();
+                merged.add(Math.max(last, to));
+            } else {
+                merged.add(from);
+                merged.add(to);
+            }
+        }
+        return merged.toArray();
+    }
+
+    static int[] complement(int[] ranges) {
+        ranges = normalize(ranges);
+        IntList complement = new IntList(ranges.length + 2);
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                complement.add(next);
+                complement.add(ranges[i] - 1);
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= MAX_CODE_POINT) {
+            complement.add(next);
+            complement.add(MAX_CODE_POINT);
+        }
+        return complement.toArray();
+    }
+
+    private static final class RegexParser {
+        private final String pattern;
+        private int position;
+
+        RegexParser(String pattern) {
+            this.pattern = pattern;
+        }
+
+        Node parse() {
+            Node node = alternation();
+            if (position < pattern.length()) {
+                throw error("unexpected '" + pattern.charAt(position) + "'");
+            }
+            return node;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid regex at " + position + ", " + message + ": " + pattern);
+        }
+
+        private boolean more() {
+            return position < pattern.length();
+        }
+
+        private int peek() {
+            return pattern.codePointAt(position);
+        }
+
+        private int nextCodePoint() {
+            int codePoint = pattern.codePointAt(position);
+            position += Character.charCount(codePoint);
+            return codePoint;
+        }
+
+        private boolean consume(char c) {
+            if (more() && pattern.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private Node alternation() {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(concatenation());
+            while (consume('|')) {
+                alternatives.add(concatenation());
+            }
+            return alternatives.size() == 1 ? alternatives.getFirst() : new Alternation(alternatives);
+        }
+
+        private Node concatenation() {
+            List<Node> nodes = new ArrayList<>();
+            while (more() && peek() != '|' && peek() != ')') {
+                nodes.add(repetition());
+            }
+            return nodes.size() == 1 ? nodes.getFirst() : new Concat(nodes);
+        }
+
+        private Node repetition() {
+            Node node = atom();
+            while (more()) {
+                if (consume('*')) {
+                    node = new Repeat(node, 0, -1);
+                } else if (consume('+')) {
+                    node = new Repeat(node, 1, -1);
+                } else if (consume('?')) {
+                    node = new Repeat(node, 0, 1);
+                } else if (peek() == '{') {
+                    position++;
+                    int min = number();
+                    int max = min;
+                    if (consume(',')) {
+                        max = more() && peek() == '}' ? -1 : number();
+                    }
+                    if (!consume('}') || (max != -1 && max < min)) {
+                        throw error("invalid repetition");
+                    }
+                    node = new Repeat(node, min, max);
+                } else {
+                    break;
+                }
+            }
+            return node;
+        }
+
+        private int number() {
+            int start = position;
+            while (more() && Character.isDigit(pattern.charAt(position))) {
+                position++;
+            }
+            if (start == position) {
+                throw error("number expected");
+            }
+            return Integer.parseInt(pattern, start, position, 10);
+        }
+
+        private Node atom() {
+            int c = nextCodePoint();
+            return switch (c) {
+                case '(' -> {
+                    if (consume('?')) {
+                        if (!consume(':')) {
+                            throw error("only (?:...) groups are supported");
+                        }
+                    }
+                    Node node = more() && peek() == ')' ? new Concat(List.of()) : alternation();
+                    if (!consume(')')) {
+                        throw error("missing ')'");
+                    }
+                    yield node;
+                }
+                case '[' -> new Chars(characterClass());
+                case '.' -> new Chars(complement(new int[]{'\n', '\n'}));
+                case '\\' -> new Chars(escape());
+                case '*', '+', '?', '{', ')' -> throw error("nothing to repeat or unbalanced '" + Character.toString(c) + "'");
+                case '^', '$' -> throw error("anchors are not supported, the whole output is matched");
+                default -> new Chars(new int[]{c, c});
+            };
+        }
+
+        private int[] characterClass() {
+            boolean negated = consume('^');
+            IntList ranges = new IntList();
+            boolean first = true;
+            while (more() && (first || peek() != ']')) {
+                first = false;
+                int[] from;
+                if (peek() == '\\') {
+                    position++;
+                    from = escape();
+                } else {
+                    int c = nextCodePoint();
+                    from = new int[]{c, c};
+                }
+                if (from.length == 2 && from[0] == from[1] && more() && peek() == '-'
+                        && position + 1 < pattern.length() && pattern.charAt(position + 1) != ']') {
+                    position++;
+                    int to;
+                    if (peek() == '\\') {
+                        position++;
+                        int[] escaped = escape();
+                        if (escaped.length != 2 || escaped[0] != escaped[1]) {
+                            throw error("invalid range");
+                        }
+                        to = escaped[0];
+                    } else {
+                        to = nextCodePoint();
+                    }
+                    if (to < from[0]) {
+                        throw error("invalid range");
+                    }
+                    from = new int[]{from[0], to};
+                }
+                ranges.addAll(from, from.length);
+            }
+            if (!consume(']')) {
+                throw error("missing ']'");
+            }
+            int[] set = normalize(ranges.toArray());
+            return negated ? complement(set) : set;
+        }
+
+        private int[] escape() {
+            if (!more()) {
+                throw error("dangling '\\'");
+            }
+            int c = nextCodePoint();
+            return switch (c) {
+                case 'd' -> DIGITS;
+                case 'D' -> complement(DIGITS);
+                case 'w' -> WORD;
+                case 'W' -> complement(WORD);
+                case 's' -> SPACES;
+                case 'S' -> complement(SPACES);
+                case 'n' -> new int[]{'\n', '\n'};
+                case 't' -> new int[]{'\t', '\t'};
+                case 'r' -> new int[]{'\r', '\r'};
+                case 'f' -> new int[]{'\f', '\f'};
+                case 'x', 'u' -> {
+                    int digits = c == 'x' ? 2 : 4;
+                    if (position + digits > pattern.length()) {
+                        throw error("invalid escape");
+                    }
+                    int codePoint = Integer.parseInt(pattern, position, position + digits, 16);
+                    position += digits;
+                    yield new int[]{codePoint, codePoint};
+                }
+                default -> {
+                    if (Character.isLetterOrDigit(c)) {
+                        throw error("unsupported escape \\" + Character.toString(c));
+                    }
+                    yield new int[]{c, c};
+                }
+            };
+        }
+    }
+
+    /**
+     * Thompson NFA over bytes, code point ranges are split into UTF-8 byte range sequences.
+     */
+    private static final class Nfa {
+        private final IntList edgeFrom = new IntList();
+        private final IntList edgeFromByte = new IntList();
+        private final IntList edgeToByte = new IntList();
+        private final IntList edgeTo = new IntList();
+        private final IntList epsilonFrom = new IntList();
+        private final IntList epsilonTo = new IntList();
+        private int stateCount;
+
+        int newState() {
+            return stateCount++;
+        }
+
+        private void edge(int from, int fromByte, int toByte, int to) {
+            edgeFrom.add(from);
+            edgeFromByte.add(fromByte);
+            edgeToByte.add(toByte);
+            edgeTo.add(to);
+        }
+
+        private void epsilon(int from, int to) {
+            epsilonFrom.add(from);
+            epsilonTo.add(to);
+        }
+
+        /**
+         * Compiles the node starting from {@code from}, returns the end state.
+         */
+        int compile(Node node, int from) {
+            switch (node) {
+                case Chars chars -> {
+                    int end = newState();
+                    for (int i = 0; i < chars.ranges().length; i += 2) {
+                        utf8Sequences(chars.ranges()[i], chars.ranges()[i + 1], from, end);
+                    }
+                    return end;
+                }
+                case Concat concat -> {
+                    int state = from;
+                    for (Node child : concat.nodes()) {
+                        state = compile(child, state);
+                    }
+                    return state;
+                }
+                case Alternation alternation -> {
+                    int end = newState();
+                    for (Node child : alternation.nodes()) {
+                        int start = newState();
+                        epsilon(from, start);
+                        epsilon(compile(child, start), end);
+                    }
+                    return end;
+                }
+                case Repeat repeat -> {
+                    int state = from;
+                    for (int i = 0; i < repeat.min(); i++) {
+                        state = compile(repeat.node(), state);
+                    }
+                    if (repeat.max() < 0) {
+                        int loop = newState();
+                        epsilon(state, loop);
+                        epsilon(compile(repeat.node(), loop), loop);
+                        return loop;
+                    }
+                    int end = newState();
+                    for (int i = repeat.min(); i < repeat.max(); i++) {
+                        epsilon(state, end);
+                        state = compile(repeat.node(), state);
+                    }
+                    epsilon(state, end);
+                    return end;
+                }
+            }
+        }
+
+        // Splits [from, to] until every part is a sequence of byte ranges, same as the regex crates' Utf8Sequences.
+        private void utf8Sequences(int from, int to, int start, int end) {
+            if (from > to) {
+                return;
+            }
+            if (from <= 0xDFFF && to >= 0xD800) { // surrogates are not encodable
+                utf8Sequences(from, Math.min(to, 0xD7FF), start, end);
+                utf8Sequences(Math.max(from, 0xE000), to, start, end);
+                return;
+            }
+            for (int max : new int[]{0x7F, 0x7FF, 0xFFFF}) {
+                if (from <= max && max < to) {
+                    utf8Sequences(from, max, start, end);
+                    utf8Sequences(max + 1, to, start, end);
+                    return;
+                }
+            }
+            if (to < 0x80) {
+                edge(start, from, to, end);
+                return;
+            }
+            byte[] fromBytes = Character.toString(from).getBytes(StandardCharsets.UTF_8);
+            for (int i = 1; i < fromBytes.length; i++) {
+                int mask = (1 << (6 * i)) - 1;
+                if ((from & ~mask) != (to & ~mask)) {
+                    if ((from & mask) != 0) {
+                        utf8Sequences(from, from | mask, start, end);
+                        utf8Sequences((from | mask) + 1, to, start, end);
+                        return;
+                    }
+                    if ((to & mask) != mask) {
+                        utf8Sequences(from, (to & ~mask) - 1, start, end);
+                        utf8Sequences(to & ~mask, to, start, end);
+                        return;
+                    }
+                }
+            }
+            byte[] toBytes = Character.toString(to).getBytes(StandardCharsets.UTF_8);
+            int state = start;
+            for (int i = 0; i < fromBytes.length; i++) {
+                int next = i == fromBytes.length - 1 ? end : newState();
+                edge(state, Byte.toUnsignedInt(fromBytes[i]), Byte.toUnsignedInt(toBytes[i]), next);
+                state = next;
+            }
+        }
+
+        Grammar toDfa(int start, int accept) {
+            int[][] edges = adjacency(edgeFrom, edgeFrom.size());
+            int[][] epsilons = adjacency(epsilonFrom, epsilonFrom.size());
+
+            Map<StateSet, Integer> dfaStates = new HashMap<>();
+            List<int[]> sets = new ArrayList<>();
+            IntList transitions = new IntList();
+            StateSet initial = closure(new int[]{start}, 1, epsilons);
+            dfaStates.put(initial, 0);
+            sets.add(initial.states());
+            IntList[] targets = new IntList[256];
+            for (int b = 0; b < 256; b++) {
+                targets[b] = new IntList();
+            }
+            for (int dfaState = 0; dfaState < sets.size(); dfaState++) {
+                for (IntList target : targets) {
+                    target.clear();
+                }
+                for (int nfaState : sets.get(dfaState)) {
+                    for (int edge : edges[nfaState]) {
+                        for (int b = edgeFromByte.get(edge); b <= edgeToByte.get(edge); b++) {
+                            targets[b].add(edgeTo.get(edge));
+                        }
+                    }
+                }
+                for (int b = 0; b < 256; b++) {
+                    if (targets[b].size() == 0) {
+                        transitions.add(-1);
+                        continue;
+                    }
+                    StateSet next = closure(targets[b].toArray(), targets[b].size(), epsilons);
+                    Integer nextState = dfaStates.get(next);
+                    if (nextState == null) {
+                        if (sets.size() >= MAX_STATES) {
+                            throw new IllegalArgumentException("Grammar too large, more than " + MAX_STATES + " states");
+                        }
+                        nextState = sets.size();
+                        dfaStates.put(next, nextState);
+                        sets.add(next.states());
+                    }
+                    transitions.add(nextState);
+                }
+            }
+
+            int n = sets.size();
+            boolean[] accepting = new boolean[n];
+            for (int state = 0; state < n; state++) {
+                accepting[state] = Arrays.binarySearch(sets.get(state), accept) >= 0;
+            }
+            // Prune the states that cannot reach an accepting state.
+            int[] table = transitions.toArray();
+            boolean[] live = accepting.clone();
+            for (boolean changed = true; changed; ) {
+                changed = false;
+                for (int state = 0; state < n; state++) {
+                    for (int b = 0; b < 256 && !live[state]; b++) {
+                        int next = table[state * 256 + b];
+                        if (next >= 0 && live[next]) {
+                            live[state] = changed = true;
+                        }
+                    }
+                }
+            }
+            if (!live[0]) {
+                throw new IllegalArgumentException("Grammar matches nothing");
+            }
+            for (int i = 0; i < table.length; i++) {
+                if (table[i] >= 0 && !live[table[i]]) {
+                    table[i] = -1;
+                }
+            }
+            return new Grammar(table, accepting);
+        }
+
+        private int[][] adjacency(IntList from, int count) {
+            int[] degree = new int[stateCount];
+            for (int i = 0; i < count; i++) {
+                degree[from.get(i)]++;
+            }
+            int[][] adjacency = new int[stateCount][];
+            for (int state = 0; state < stateCount; state++) {
+                adjacency[state] = new int[degree[state]];
+            }
+            Arrays.fill(degree, 0);
+            for (int i = 0; i < count; i++) {
+                int state = from.get(i);
+                adjacency[state][degree[state]++] = i;
+            }
+            return adjacency;
+        }
+
+        private StateSet closure(int[] states, int count, int[][] epsilons) {
+            BitSet visited = new BitSet(stateCount);
+            IntList stack = new IntList(count);
+            for (int i = 0; i < count; i++) {
+                if (!visited.get(states[i])) {
+                    visited.set(states[i]);
+                    stack.add(states[i]);
+                }
+            }
+            while (stack.size() > 0) {
+                int state = stack.removeLast();
+                for (int epsilon : epsilons[state]) {
+                    int next = epsilonTo.get(epsilon);
+                    if (!visited.get(next)) {
+                        visited.set(next);
+                        stack.add(next);
+                    }
+                }
+            }
+            return new StateSet(visited.stream().toArray());
+        }
+    }
+
+    private record StateSet(int[] states) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof StateSet that && Arrays.equals(states, that.states);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(states);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.skowronski.talk.jvmai;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Constrained decoding: masks the logits with the {@link TokenGrammar} before delegating to another sampler, so only
+ * tokens keeping the output within the grammar can be sampled, and forces the tokens the grammar determines
+ * (see {@link Sampler#forcedToken()}), which are then ingested without sampling, in a batch. When the grammar allows a
+ * few tokens, e.g. the labels of a classification, only their logits are computed (see {@link #candidateTokens()}).
+ * The grammar restarts after a stop token.
+ */
+final class GrammarSampler implements Sampler {
+    private final TokenGrammar grammar;
+    private final Sampler sampler;
+    private int state;
+    private int[] forced;
+    private int forcedIndex;
+
+    GrammarSampler(TokenGrammar grammar, Sampler sampler) {
+        this.grammar = grammar;
+        this.sampler = sampler;
+        this.state = grammar.grammar().startState();
+    }
+
+    @Override
+    public int sampleToken(FloatTensor logits) {
+        applyMask(logits, grammar.mask(state).bits());
+        return sampler.sampleToken(logits);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the grammar doesn't allow {@code token}, e.g. a token not sampled by this
+     *                                  sampler; nothing is accepted then
+     */
+    @Override
+    public void accept(int token) {
+        if (grammar.isStopToken(token)) {
+            sampler.accept(token);
+            state = grammar.grammar().startState();
+            forced = null;
+            return;
+        }
+        int next = grammar.next(state, token);
+        if (next < 0) {
+            throw new IllegalArgumentException("Token " + token + " " + grammar.describe(token) + " is not allowed by the grammar at this point");
+        }
+        sampler.accept(token);
+        if (forced != null && forcedIndex < forced.length && forced[forcedIndex] == token) {
+            forcedIndex++;
+        } else {
+            forced = null;
+        }
+        state = next;
+    }
+
+    @Override
+    public int forcedToken() {
+        if (forced != null && forcedIndex < forced.length) {
+            return forced[forcedIndex];
+        }
+        int[] span = grammar.forcedSpan(state);
+        if (span.length > 0) {
+            forced = span;
+            forcedIndex = 0;
+            return span[0];
+        }
+        return grammar.mask(state).uniqueToken();
+    }
+
+    @Override
+    public int[] candidateTokens() {
+        return grammar.mask(state).tokens();
+    }
+
+    @Override
+    public void reset() {
+        sampler.reset();
+        state = grammar.grammar().startState();
+        forced = null;
+    }
+
+    /**
+     * Sets the logits of the tokens not in {@code mask} to -infinity, a vector of lanes at a time.
+     */
+    static void applyMask(FloatTensor logits, long[] mask) {
+        int size = logits.size();
+        int i = 0;
+        if (FloatTensor.USE_VECTOR_API && logits instanceof ArrayFloatTensor arrayFloatTensor) {
+            float[] values = arrayFloatTensor.values;
+            VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+            // Lanes divide 64, a vector never straddles two mask words.
+            for (int upperBound = species.loopBound(size); i < upperBound; i += species.length()) {
+                long bits = mask[i >>> 6] >>> (i & 63);
+                VectorMask<Float> allowed = VectorMask.fromLong(species, bits);
+                if (!allowed.allTrue()) {
+                    FloatVector.fromArray(species, values, i).blend(Float.NEGATIVE_INFINITY, allowed.not()).intoArray(values, i);
+                }
+            }
+        }
+        for (; i < size; i++) {
+            if ((mask[i >>> 6] & (1L << i)) == 0) {
+                logits.setFloat(i, Float.NEGATIVE_INFINITY);
+            }
+        }
+    }
+}
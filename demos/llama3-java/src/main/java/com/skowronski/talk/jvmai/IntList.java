@@ -0,0 +1,92 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Growable list of primitive ints.
+ */
+final class IntList {
+    private int[] elements;
+    private int size;
+
+    IntList() {
+        this(16);
+    }
+
+    IntList(int initialCapacity) {
+        this.elements = new int[Math.max(1, initialCapacity)];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (elements.length < capacity) {
+            elements = Arrays.copyOf(elements, Math.max(capacity, elements.length * 2));
+        }
+    }
+
+    void add(int value) {
+        ensureCapacity(size + 1);
+        elements[size++] = value;
+    }
+
+    void addAll(int[] values, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(values, 0, elements, size, length);
+        size += length;
+    }
+
+    void addAll(IntList values) {
+        addAll(values.elements, values.size);
+    }
+
+    void addAll(Collection<Integer> values) {
+        ensureCapacity(size + values.size());
+        for (int value : values) {
+            elements[size++] = value;
+        }
+    }
+
+    int get(int index) {
+        Objects.checkIndex(index, size);
+        return elements[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int getLast() {
+        return get(size - 1);
+    }
+
+    int removeLast() {
+        int last = getLast();
+        size--;
+        return last;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Removes the first {@code count} elements, shifting the others down.
+     */
+    void removeFirst(int count) {
+        Objects.checkFromToIndex(0, count, size);
+        System.arraycopy(elements, count, elements, 0, size - count);
+        size -= count;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    List<Integer> boxed() {
+        return Arrays.stream(elements, 0, size).boxed().collect(Collectors.toCollection(ArrayList::new));
+    }
+}
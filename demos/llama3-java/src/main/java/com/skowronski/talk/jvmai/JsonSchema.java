@@ -0,0 +1,370 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates a JSON schema into a regular expression for {@link Grammar}, matching compact JSON with a space after
+ * {@code :} and {@code ,} e.g. {@code {"name": "Ada", "tags": ["a", "b"]}}.
+ *
+ * <p>
+ * Supported: {@code type} (also as an array), {@code properties} in declaration order with {@code required},
+ * {@code items} with {@code minItems}/{@code maxItems}, {@code enum}, {@code const}, {@code anyOf}/{@code oneOf},
+ * {@code minLength}/{@code maxLength}, string {@code pattern}, and {@code $ref} to {@code #/$defs} or
+ * {@code #/definitions}. Regular expressions cannot express recursion: references and untyped values (any JSON) are
+ * expanded up to a fixed depth. Numeric bounds, formats and additional properties are not enforced.
+ */
+final class JsonSchema {
+    private static final int MAX_DEPTH = 4;
+    // Untyped values (any JSON) nest up to this depth.
+    private static final int ANY_DEPTH = 2;
+
+    static final String STRING_CHAR = "(?:[^\"\\\\\\x00-\\x1F]|\\\\[\"\\\\/bfnrt]|\\\\u[0-9a-fA-F]{4})";
+    static final String STRING = "\"" + STRING_CHAR + "*\"";
+    static final String INTEGER = "-?(?:0|[1-9][0-9]*)";
+    static final String NUMBER = INTEGER + "(?:\\.[0-9]+)?(?:[eE][+-]?[0-9]+)?";
+    static final String BOOLEAN = "(?:true|false)";
+    static final String NULL = "null";
+
+    private final Map<String, Object> root;
+
+    private JsonSchema(Map<String, Object> root) {
+        this.root = root;
+    }
+
+    static String toRegex(String schema) {
+        Object parsed = new Parser(schema).parse();
+        if (!(parsed instanceof Map<?, ?>)) {
+            throw new IllegalArgumentException("JSON schema must be an object");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> root = (Map<String, Object>) parsed;
+        return new JsonSchema(root).regex(root, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String regex(Object schema, int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("JSON schema nests deeper than " + MAX_DEPTH + " levels (recursive $ref?)");
+        }
+        if (schema instanceof Boolean allowed) {
+            if (!allowed) {
+                throw new IllegalArgumentException("JSON schema false matches nothing");
+            }
+            return any(ANY_DEPTH);
+        }
+        Map<String, Object> map = (Map<String, Object>) schema;
+        if (map.containsKey("$ref")) {
+            return regex(resolve((String) map.get("$ref")), depth + 1);
+        }
+        if (map.containsKey("const")) {
+            return literal(map.get("const"));
+        }
+        if (map.containsKey("enum")) {
+            return alternation(((List<Object>) map.get("enum")).stream().map(JsonSchema::literal).toList());
+        }
+        for (String key : List.of("anyOf", "oneOf")) {
+            if (map.containsKey(key)) {
+                return alternation(((List<Object>) map.get(key)).stream().map(s -> regex(s, depth + 1)).toList());
+            }
+        }
+        Object type = map.get("type");
+        if (type instanceof List<?> types) {
+            return alternation(types.stream().map(t -> typed(map, (String) t, depth)).toList());
+        }
+        if (type == null) {
+            if (map.containsKey("properties")) {
+                type = "object";
+            } else if (map.containsKey("items")) {
+                type = "array";
+            } else {
+                return any(ANY_DEPTH);
+            }
+        }
+        return typed(map, (String) type, depth);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String typed(Map<String, Object> map, String type, int depth) {
+        return switch (type) {
+            case "string" -> {
+                if (map.containsKey("pattern")) {
+                    // The whole string is matched anyway, anchors are implied.
+                    String pattern = ((String) map.get("pattern")).replaceFirst("^\\^", "").replaceFirst("\\$$", "");
+                    yield "\"(?:" + pattern + ")\"";
+                }
+                yield "\"" + STRING_CHAR + repetition(map, "minLength", "maxLength") + "\"";
+            }
+            case "integer" -> INTEGER;
+            case "number" -> NUMBER;
+            case "boolean" -> BOOLEAN;
+            case "null" -> NULL;
+            case "array" -> {
+                String item = "(?:" + (map.containsKey("items") ? regex(map.get("items"), depth + 1) : any(ANY_DEPTH - 1)) + ")";
+                int min = intValue(map, "minItems", 0);
+                int max = intValue(map, "maxItems", -1);
+                if (max == 0) {
+                    yield "\\[\\]";
+                }
+                String rest = "(?:, " + item + ")" + bounds(Math.max(0, min - 1), max < 0 ? -1 : max - 1);
+                yield "\\[" + (min > 0 ? item + rest : "(?:" + item + rest + ")?") + "\\]";
+            }
+            case "object" -> {
+                Map<String, Object> properties = (Map<String, Object>) map.getOrDefault("properties", Map.of());
+                if (properties.isEmpty()) {
+                    yield "\\{(?:" + STRING + ": " + any(ANY_DEPTH - 1) + "(?:, " + STRING + ": " + any(ANY_DEPTH - 1) + ")*)?\\}";
+                }
+                List<Object> required = (List<Object>) map.getOrDefault("required", List.of());
+                List<String> members = new ArrayList<>();
+                List<Boolean> optional = new ArrayList<>();
+                for (Map.Entry<String, Object> property : properties.entrySet()) {
+                    members.add(literal(property.getKey()) + ": " + regex(property.getValue(), depth + 1));
+                    optional.add(!required.contains(property.getKey()));
+                }
+                yield "\\{" + members(members, optional, 0, true) + "\\}";
+            }
+            default -> throw new IllegalArgumentException("Unsupported JSON schema type: " + type);
+        };
+    }
+
+    /**
+     * Members from {@code index} on, the first one without a leading separator; optional members may be skipped.
+     */
+    private static String members(List<String> members, List<Boolean> optional, int index, boolean first) {
+        if (index == members.size()) {
+            return "";
+        }
+        String member = (first ? "" : ", ") + members.get(index);
+        String present = member + members(members, optional, index + 1, false);
+        if (!optional.get(index)) {
+            return present;
+        }
+        if (!first) {
+            return "(?:" + member + ")?" + members(members, optional, index + 1, false);
+        }
+        return "(?:" + present + "|" + members(members, optional, index + 1, true) + ")";
+    }
+
+    private static String any(int depth) {
+        List<String> values = new ArrayList<>(List.of(STRING, NUMBER, BOOLEAN, NULL));
+        if (depth > 0) {
+            String value = any(depth - 1);
+            values.add("\\[(?:" + value + "(?:, " + value + ")*)?\\]");
+            values.add("\\{(?:" + STRING + ": " + value + "(?:, " + STRING + ": " + value + ")*)?\\}");
+        }
+        return alternation(values);
+    }
+
+    private static String alternation(List<String> alternatives) {
+        return "(?:" + String.join("|", alternatives) + ")";
+    }
+
+    private static String repetition(Map<String, Object> map, String minKey, String maxKey) {
+        return bounds(intValue(map, minKey, 0), intValue(map, maxKey, -1));
+    }
+
+    private static String bounds(int min, int max) {
+        if (max < 0) {
+            return min == 0 ? "*" : "{" + min + ",}";
+        }
+        return "{" + min + "," + max + "}";
+    }
+
+    private static int intValue(Map<String, Object> map, String key, int defaultValue) {
+        Object value = map.get(key);
+        return value != null ? ((Number) value).intValue() : defaultValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object resolve(String ref) {
+        for (String prefix : List.of("#/$defs/", "#/definitions/")) {
+            if (ref.startsWith(prefix)) {
+                Map<String, Object> definitions = (Map<String, Object>) root.get(prefix.substring(2, prefix.length() - 1));
+                Object definition = definitions != null ? definitions.get(ref.substring(prefix.length())) : null;
+                if (definition != null) {
+                    return definition;
+                }
+            }
+        }
+        if (ref.equals("#")) {
+            return root;
+        }
+        throw new IllegalArgumentException("Unresolved $ref: " + ref);
+    }
+
+    /**
+     * Regular expression matching exactly the JSON serialization of {@code value}.
+     */
+    static String literal(Object value) {
+        String json = switch (value) {
+            case null -> "null";
+            case String string -> quote(string);
+            case Double number when number == Math.rint(number) && !Double.isInfinite(number) -> Long.toString(number.longValue());
+            default -> value.toString();
+        };
+        StringBuilder regex = new StringBuilder();
+        json.codePoints().forEach(c -> {
+            if ("\\^$.|?*+()[]{}-/".indexOf(c) >= 0) {
+                regex.append('\\');
+            }
+            regex.appendCodePoint(c);
+        });
+        return regex.toString();
+    }
+
+    static String quote(String string) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append("\\u%04x".formatted((int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Minimal JSON parser: objects (insertion ordered), arrays, strings, numbers (as double), booleans and null.
+     */
+    static final class Parser {
+        private final String json;
+        private int position;
+
+        Parser(String json) {
+            this.json = json;
+        }
+
+        Object parse() {
+            Object value = value();
+            skipWhitespace();
+            if (position < json.length()) {
+                throw error("trailing characters");
+            }
+            return value;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid JSON at " + position + ", " + message);
+        }
+
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        private void expect(char c) {
+            skipWhitespace();
+            if (position >= json.length() || json.charAt(position) != c) {
+                throw error("'" + c + "' expected");
+            }
+            position++;
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (position < json.length() && json.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private Object value() {
+            skipWhitespace();
+            if (position >= json.length()) {
+                throw error("value expected");
+            }
+            char c = json.charAt(position);
+            if (c == '{') {
+                position++;
+                Map<String, Object> object = new LinkedHashMap<>();
+                if (!consume('}')) {
+                    do {
+                        skipWhitespace();
+                        String key = string();
+                        expect(':');
+                        object.put(key, value());
+                    } while (consume(','));
+                    expect('}');
+                }
+                return object;
+            }
+            if (c == '[') {
+                position++;
+                List<Object> array = new ArrayList<>();
+                if (!consume(']')) {
+                    do {
+                        array.add(value());
+                    } while (consume(','));
+                    expect(']');
+                }
+                return array;
+            }
+            if (c == '"') {
+                return string();
+            }
+            for (String keyword : List.of("true", "false", "null")) {
+                if (json.startsWith(keyword, position)) {
+                    position += keyword.length();
+                    return keyword.equals("null") ? null : Boolean.valueOf(keyword);
+                }
+            }
+            int start = position;
+            while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+                position++;
+            }
+            if (start == position) {
+                throw error("unexpected '" + c + "'");
+            }
+            return Double.parseDouble(json.substring(start, position));
+        }
+
+        private String string() {
+            if (position >= json.length() || json.charAt(position) != '"') {
+                throw error("string expected");
+            }
+            position++;
+            StringBuilder string = new StringBuilder();
+            while (true) {
+                if (position >= json.length()) {
+                    throw error("unterminated string");
+                }
+                char c = json.charAt(position++);
+                if (c == '"') {
+                    return string.toString();
+                }
+                if (c != '\\') {
+                    string.append(c);
+                    continue;
+                }
+                char escaped = json.charAt(position++);
+                switch (escaped) {
+                    case 'b' -> string.append('\b');
+                    case 'f' -> string.append('\f');
+                    case 'n' -> string.append('\n');
+                    case 'r' -> string.append('\r');
+                    case 't' -> string.append('\t');
+                    case 'u' -> {
+                        string.append((char) Integer.parseInt(json, position, position + 4, 16));
+                        position += 4;
+                    }
+                    default -> string.append(escaped);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Paged KV cache of a sequence: the keys and values of positions {@code [p * PAGE_SIZE, (p + 1) * PAGE_SIZE)}, of all
+ * the layers, live in page {@code p}. Pages are reference counted and shared copy-on-write between {@link #fork forks}:
+ * a shared page is copied before it is written, so the forks of a prompt share its pages, and each only owns the pages
+ * it writes, from the one holding the end of the prompt on.
+ *
+ * <p>
+ * The cache of a new state has all its pages, allocated upfront, a fork allocates its own pages as it writes them.
+ */
+final class KVCache {
+    static final int PAGE_SHIFT = 6;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    static final class Page {
+        final FloatTensor[] keys;   // (n_layer, PAGE_SIZE, kv_dim)
+        final FloatTensor[] values; // (n_layer, PAGE_SIZE, kv_dim)
+        // caches holding this page, a page held by a single one is written in place
+        final AtomicInteger references = new AtomicInteger(1);
+
+        Page(int layers, int kvDim) {
+            this.keys = Llama.allocate(layers, PAGE_SIZE, kvDim);
+            this.values = Llama.allocate(layers, PAGE_SIZE, kvDim);
+        }
+    }
+
+    private final int layers;
+    private final int kvDim;
+    final Page[] pages;
+
+    KVCache(int layers, int contextLength, int kvDim) {
+        this(layers, kvDim, new Page[(contextLength + PAGE_MASK) >>> PAGE_SHIFT]);
+        for (int p = 0; p < pages.length; p++) {
+            pages[p] = new Page(layers, kvDim);
+        }
+    }
+
+    private KVCache(int layers, int kvDim, Page[] pages) {
+        this.layers = layers;
+        this.kvDim = kvDim;
+        this.pages = pages;
+    }
+
+    /**
+     * A cache without pages, they are allocated by {@link #prepareWrite}.
+     */
+    static KVCache empty(int layers, int contextLength, int kvDim) {
+        return new KVCache(layers, kvDim, new Page[(contextLength + PAGE_MASK) >>> PAGE_SHIFT]);
+    }
+
+    Page page(int position) {
+        return pages[position >>> PAGE_SHIFT];
+    }
+
+    /**
+     * A cache sharing the pages of positions {@code [0, length)} with this one, nothing is copied until either writes
+     * them.
+     */
+    KVCache fork(int length) {
+        Page[] shared = new Page[pages.length];
+        for (int p = 0; p < (length + PAGE_MASK) >>> PAGE_SHIFT; p++) {
+            shared[p] = pages[p];
+            shared[p].references.incrementAndGet();
+        }
+        return new KVCache(layers, kvDim, shared);
+    }
+
+    /**
+     * Makes positions {@code [from, to)} writable, before they are written: allocates the missing pages and copies the
+     * shared ones, only their positions before {@code from}, the following ones are not valid yet.
+     */
+    void prepareWrite(int from, int to) {
+        for (int p = from >>> PAGE_SHIFT; p <= (to - 1) >>> PAGE_SHIFT; p++) {
+            Page page = pages[p];
+            if (page != null && page.references.get() == 1) {
+                continue;
+            }
+            Page copy = new Page(layers, kvDim);
+            int valid = Math.max(0, from - (p << PAGE_SHIFT));
+            if (page != null && valid > 0) {
+                for (int l = 0; l < layers; l++) {
+                    page.keys[l].copyTo(0, copy.keys[l], 0, valid * kvDim);
+                    page.values[l].copyTo(0, copy.values[l], 0, valid * kvDim);
+                }
+            }
+            if (page != null) {
+                page.references.decrementAndGet();
+            }
+            pages[p] = copy;
+        }
+    }
+
+    /**
+     * Removes positions {@code [from, from + count)} of the first {@code length}: the following ones move down by
+     * {@code count}, and {@code moved} is called with each moved key, at its new place (layer tensor and offset).
+     */
+    void remove(int from, int count, int length, ObjIntConsumer<FloatTensor> moved) {
+        if (from + count >= length) {
+            return;
+        }
+        // Shared pages are copied by prepareWrite, the rows still to move are read from the originals.
+        Page[] source = pages.clone();
+        prepareWrite(from, length - count);
+        Parallel.parallelFor(0, layers, l -> {
+            for (int position = from; position < length - count; position++) {
+                Page sourcePage = source[(position + count) >>> PAGE_SHIFT];
+                int sourceOffset = ((position + count) & PAGE_MASK) * kvDim;
+                Page page = pages[position >>> PAGE_SHIFT];
+                int offset = (position & PAGE_MASK) * kvDim;
+                sourcePage.keys[l].copyTo(sourceOffset, page.keys[l], offset, kvDim);
+                sourcePage.values[l].copyTo(sourceOffset, page.values[l], offset, kvDim);
+                moved.accept(page.keys[l], offset);
+            }
+        });
+    }
+
+    /**
+     * Drops all the pages, shared pages become writable in place by their other holders. The cache can be written
+     * again, from position 0.
+     */
+    void release() {
+        for (int p = 0; p < pages.length; p++) {
+            if (pages[p] != null) {
+                pages[p].references.decrementAndGet();
+                pages[p] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,861 @@
+package com.skowronski.talk.jvmai;
+
+import jdk.incubator.vector.*;
+
+import java.nio.FloatBuffer;
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+record Llama(Configuration configuration, Tokenizer tokenizer, Weights weights) {
+    // Greedy and top-k sampling select the largest logits within the classifier, see TopLogits.
+    static final boolean FUSED_TOP_K = Boolean.parseBoolean(System.getProperty("llama.FusedTopK", "true"));
+
+    public State createNewState(int batchsize) {
+        State state = new State(configuration(), batchsize);
+        state.latestToken = tokenizer.getSpecialTokens().get("<|begin_of_text|>");
+        return state;
+    }
+
+    /**
+     * Like {@link #createNewState}, without allocating the KV cache up front: its pages are allocated as positions are
+     * written, none if the state only provides the buffers of a batch of sequences that have their own caches (see
+     * {@link #forward(Llama, State, int[], State[], int[], boolean[])}).
+     */
+    public State createEmptyState(int batchsize) {
+        Configuration config = configuration();
+        State state = new State(config, batchsize, KVCache.empty(config.numberOfLayers, config.contextLength, config.dim * config.numberOfKeyValueHeads / config.numberOfHeads));
+        state.latestToken = tokenizer.getSpecialTokens().get("<|begin_of_text|>");
+        return state;
+    }
+
+    public static final class Configuration {
+        public final int dim; // transformer dimension
+        public final int hiddenDim; // for ffn layers
+        public final int numberOfLayers; // number of layers
+        public final int numberOfHeads; // number of query heads
+        public final int numberOfKeyValueHeads; // number of key/value heads (can be < query heads because of multiquery)
+        public final int vocabularySize; // vocabulary size, usually 256 (byte-level)
+        public final int contextLength; // max sequence length
+        public final float rmsNormEps;
+        public final float ropeTheta;
+        public final int headSize;
+
+        Configuration withContextLength(int newContextLength) {
+            if (newContextLength < 0) {
+                return this; // no change
+            }
+            return new Configuration(this.dim, this.hiddenDim, this.numberOfLayers, this.numberOfHeads, this.numberOfKeyValueHeads, this.vocabularySize, newContextLength, this.rmsNormEps, this.ropeTheta);
+        }
+
+        public Configuration(int dim, int hiddenDim, int numberOfLayers, int numberOfHeads, int numberOfKeyValueHeads, int vocabularySize, int contextLength, float rmsNormEps, float ropeTheta) {
+            this.dim = dim;
+            this.hiddenDim = hiddenDim;
+            this.numberOfLayers = numberOfLayers;
+            this.numberOfHeads = numberOfHeads;
+            this.numberOfKeyValueHeads = numberOfKeyValueHeads;
+            this.vocabularySize = vocabularySize;
+            this.contextLength = contextLength;
+            this.rmsNormEps = rmsNormEps;
+            this.ropeTheta = ropeTheta;
+            this.headSize = dim / numberOfHeads;
+        }
+    }
+
+    public static final class Weights {
+        // token embedding table
+        public final FloatTensor token_embedding_table; // (vocab_size, dim)
+        // weights for rmsnorms
+        public final FloatBuffer[] rms_att_weight; // (layer, dim) rmsnorm weights
+        // weights for matmuls
+        public final FloatTensor[] wq; // (layer, n_heads * head_size)
+        public final FloatTensor[] wk; // (layer, n_kv_heads, head_size)
+        public final FloatTensor[] wv; // (layer, n_kv_heads * head_size)
+        public final FloatTensor[] wo; // (layer, n_heads * head_size, dim)
+        public final FloatBuffer[] rms_ffn_weight; // (layer, dim)
+        // weights for ffn
+        public final FloatTensor[] w1; // (layer, hidden_dim, dim)
+        public final FloatTensor[] w2; // (layer, dim, hidden_dim)
+        public final FloatTensor[] w3; // (layer, hidden_dim, dim)
+        // public final rmsnorm
+        public final FloatBuffer rms_final_weight; // (dim,)
+        // freq_cis for RoPE relatively positional embeddings
+        public final FloatBuffer freq_cis_real; // (seq_len, head_size/2)
+        public final FloatBuffer freq_cis_imag; // (seq_len, head_size/2)
+        // (optional) classifier weights for the logits, on the last layer
+        public final FloatTensor wcls; // (vocab_size, dim)
+        // (optional) index over the rows of wcls, used instead of it, built after loading
+        ApproximateHead approximateHead;
+
+        public Weights(FloatTensor token_embedding_table, FloatBuffer[] rms_att_weight, FloatTensor[] wq, FloatTensor[] wk, FloatTensor[] wv, FloatTensor[] wo, FloatBuffer[] rms_ffn_weight, FloatTensor[] w1, FloatTensor[] w2, FloatTensor[] w3, FloatBuffer rms_final_weight, FloatBuffer freq_cis_real, FloatBuffer freq_cis_imag, FloatTensor wcls) {
+            this.token_embedding_table = token_embedding_table;
+            this.rms_att_weight = rms_att_weight;
+            this.wq = wq;
+            this.wk = wk;
+            this.wv = wv;
+            this.wo = wo;
+            this.rms_ffn_weight = rms_ffn_weight;
+            this.w1 = w1;
+            this.w2 = w2;
+            this.w3 = w3;
+            this.rms_final_weight = rms_final_weight;
+            this.freq_cis_real = freq_cis_real;
+            this.freq_cis_imag = freq_cis_imag;
+            this.wcls = wcls;
+        }
+    }
+
+    public static final class State {
+
+        // current wave of activations
+        public final int batchsize;
+        public final FloatTensor[] x; // activation at current time stamp (dim,)
+        public final FloatTensor[] xb; // same, but inside a residual branch (dim,)
+        public final FloatTensor[] xb2; // an additional buffer just for convenience (dim,)
+        public final FloatTensor[] hb; // buffer for hidden dimension in the ffn (hidden_dim,)
+        public final FloatTensor[] hb2; // buffer for hidden dimension in the ffn (hidden_dim,)
+        public final FloatTensor[] q; // query (dim,)
+        public final FloatTensor[] k; // key (dim,)
+        public final FloatTensor[] v; // value (dim,)
+        public final FloatTensor[] att; // buffer for scores/attention values (n_heads, seq_len)
+        public final FloatTensor logits; // output logits
+
+        // kv cache, paged, shared copy-on-write with forks
+        KVCache kvCache;
+        private final Configuration config;
+        
+        /** last index in previous block */
+        int idxPrevBlock;
+
+        // reused token arrays indexed by length, forward takes the number of tokens from the array length
+        private final int[][] tokenBuffers;
+
+        // logits computed by forward, logitTokens[0, logitTokenCount) or all if logitTokenCount < 0, the others are -infinity
+        private int[] logitTokens = new int[0];
+        private int logitTokenCount = -1;
+        // when selecting, forward only keeps the largest logits, in topLogits
+        private TopLogits topLogits;
+        private boolean selectTopLogits;
+        // approximate head scratch: cluster scores and scored rows
+        private FloatTensor headScores;
+        private int[] headRows;
+        // scoring: logits of every position of a batch
+        private FloatTensor[] positionLogits;
+        // per token of a batch: KV cache and position, a batch can span several sequences; the activations and logits
+        // of the tokens whose logits are computed
+        private final KVCache[] tokenCaches;
+        private final int[] tokenPositions;
+        private final FloatTensor[] logitInputs;
+        private final FloatTensor[] sequenceLogits;
+
+        public int latestToken;
+
+        State(Configuration config, int batchsize) {
+            this(config, batchsize, new KVCache(config.numberOfLayers, config.contextLength, config.dim * config.numberOfKeyValueHeads / config.numberOfHeads));
+        }
+
+        private State(Configuration config, int batchsize, KVCache kvCache) {
+            this.config = config;
+            this.batchsize = batchsize;
+            this.tokenBuffers = new int[batchsize + 1][];
+            this.x = allocate(batchsize, config.dim);
+            this.xb = allocate(batchsize, config.dim);
+            this.xb2 = allocate(batchsize, config.dim);
+            this.hb = allocate(batchsize, config.hiddenDim);
+            this.hb2 = allocate(batchsize, config.hiddenDim);
+            this.q = allocate(batchsize, config.dim);
+            this.k = allocate(batchsize, config.dim);
+            this.v = allocate(batchsize, config.dim);
+            this.att = allocate(batchsize, config.numberOfHeads, config.contextLength);
+            idxPrevBlock = -1;
+
+            this.logits = ArrayFloatTensor.allocate(config.vocabularySize);
+            this.kvCache = kvCache;
+            this.tokenCaches = new KVCache[batchsize];
+            this.tokenPositions = new int[batchsize];
+            this.logitInputs = new FloatTensor[batchsize];
+            this.sequenceLogits = new FloatTensor[batchsize];
+        }
+
+        /**
+         * Bytes of the buffers of a state, its KV cache aside: activations, attention scores and logits.
+         */
+        static long bufferBytes(Configuration config, int batchsize) {
+            long floats = batchsize * (6L * config.dim + 2L * config.hiddenDim + (long) config.numberOfHeads * config.contextLength)
+                    + config.vocabularySize;
+            return floats * Float.BYTES;
+        }
+
+        /**
+         * A state continuing this one after its first {@code length} positions, e.g. a prompt: their KV cache is shared
+         * copy-on-write (see {@link KVCache#fork}), not copied nor recomputed, the fork has its own buffers for batches
+         * of {@code batchsize} tokens. This state and its forks can then diverge, forks are advanced together by
+         * {@link #forward(Llama, State, int[], State[], int[]) batched decode steps}.
+         */
+        public State fork(int length, int batchsize) {
+            State fork = new State(config, batchsize, kvCache.fork(length));
+            fork.latestToken = latestToken;
+            return fork;
+        }
+
+        /**
+         * Returns a reused array for {@code length} tokens, {@code 1 <= length <= batchsize}.
+         */
+        int[] tokenBuffer(int length) {
+            int[] buffer = tokenBuffers[length];
+            if (buffer == null) {
+                buffer = tokenBuffers[length] = new int[length];
+            }
+            return buffer;
+        }
+
+        /**
+         * Restricts the logits computed by {@link #forward forward} to {@code tokens[0, count)}, e.g. the labels of a
+         * classification, the other logits are -infinity; null computes all the logits again. The classifier is the
+         * largest matmul of the model, restricted to a few rows its cost vanishes.
+         */
+        void restrictLogits(int[] tokens, int count) {
+            if (tokens == null) {
+                logitTokenCount = -1;
+                return;
+            }
+            if (logitTokenCount < 0) {
+                logits.fillInPlace(0, logits.size(), Float.NEGATIVE_INFINITY);
+            } else {
+                for (int i = 0; i < logitTokenCount; i++) {
+                    logits.setFloat(logitTokens[i], Float.NEGATIVE_INFINITY);
+                }
+            }
+            if (logitTokens.length < count) {
+                logitTokens = new int[count];
+            }
+            System.arraycopy(tokens, 0, logitTokens, 0, count);
+            logitTokenCount = count;
+        }
+
+        /**
+         * Makes the next {@link #forward forward} select the {@code k} largest logits, fused with the classifier, instead
+         * of computing all the logits, which are left stale; 0 computes all the logits again, as does
+         * {@link #sample sampling} the selected ones: the selection only lasts one step. Ignored while the logits are
+         * {@link #restrictLogits restricted}.
+         */
+        void selectTopLogits(int k) {
+            selectTopLogits = k > 0;
+            if (selectTopLogits && (topLogits == null || topLogits.k != k)) {
+                topLogits = new TopLogits(k, logits.size());
+            }
+        }
+
+        /**
+         * Samples the next token from the logits computed by the last {@link #forward forward}, and ends the
+         * {@link #selectTopLogits selection}, if any.
+         */
+        int sample(Sampler sampler) {
+            if (selectTopLogits && logitTokenCount < 0) {
+                selectTopLogits = false;
+                return sampler.sampleTopK(topLogits.tokens, topLogits.logits, topLogits.count);
+            }
+            return sampler.sampleToken(logits);
+        }
+    }
+
+    static FloatTensor[] allocate(int numTokens, int... dims) {
+        return IntStream.range(0, numTokens)
+                .mapToObj(i -> ArrayFloatTensor.allocate(dims))
+                .toArray(FloatTensor[]::new);
+    }
+
+    static void rmsnorm(FloatTensor out, FloatTensor x, FloatBuffer weight, int size, float rmsNormEps) {
+        // calculate sum of squares
+        float ss = x.reduce(0, size, 0f, (acc, xi) -> acc + xi * xi);
+        ss /= size;
+        ss += rmsNormEps;
+        ss = (float) (1.0 / Math.sqrt(ss));
+        // normalize and scale
+        final float finalss = ss; // for the lambda
+        out.mapWithIndexInPlace(0, size, (value, index) -> weight.get(index) * (finalss * x.getFloat(index)));
+    }
+
+    /**
+     * Ingests {@code tokens} from {@code position} on and, if {@code computeLogits}, computes the logits of the last one.
+     *
+     * @return {@code state.logits}, null if no logits were computed into it: {@code computeLogits} is false, or only the
+     * largest logits were {@link State#selectTopLogits selected}, for {@link State#sample}
+     */
+    static FloatTensor forward(Llama model, State state, int[] tokens, int position, boolean computeLogits) {
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        int dim = config.dim;
+        final int nTokens = tokens.length;
+        state.kvCache.prepareWrite(position, position + nTokens);
+        for (int t = 0; t < nTokens; t++) {
+            state.tokenCaches[t] = state.kvCache;
+            state.tokenPositions[t] = position + t;
+        }
+        if (!forwardLayers(model, state, tokens, computeLogits)) {
+            state.idxPrevBlock = nTokens - 1;
+            return null;
+        }
+
+        // classifier into logits
+        if (state.logitTokenCount >= 0) {
+            weights.wcls.matmulRows(state.logitTokens, state.logitTokenCount, state.x[nTokens - 1], state.logits, dim);
+        } else if (weights.approximateHead != null) {
+            approximateLogits(weights.approximateHead, weights.wcls, state, state.x[nTokens - 1], config.vocabularySize, dim);
+        } else if (state.selectTopLogits) {
+            state.topLogits.select(weights.wcls, state.x[nTokens - 1], null, config.vocabularySize, dim);
+        } else {
+            weights.wcls.matmul(state.x[nTokens - 1], state.logits, config.vocabularySize, dim);
+        }
+        state.idxPrevBlock = nTokens - 1;
+
+        // state.logits are stale when only the largest ones were selected
+        return state.selectTopLogits && state.logitTokenCount < 0 ? null : state.logits;
+    }
+
+    /**
+     * Decode step of several sequences in one batch: {@code tokens[i]} is ingested at {@code positions[i]} of the KV
+     * cache of {@code sequences[i]}, and its logits are computed into {@code sequences[i].logits}, by one classifier
+     * matmul for all. The weights are streamed once for all the sequences, e.g. the {@link State#fork forks} of a
+     * prompt; {@code state} only provides the buffers, for up to its batchsize distinct sequences.
+     */
+    static void forward(Llama model, State state, int[] tokens, State[] sequences, int[] positions) {
+        forward(model, state, tokens, sequences, positions, null);
+    }
+
+    /**
+     * Mixed step of several sequences in one batch: {@code tokens[i]} is ingested at {@code positions[i]} of the KV
+     * cache of {@code sequences[i]}, the tokens of a sequence are consecutive, at increasing positions, e.g. a chunk of
+     * its prompt or its next token. The logits of token {@code i} are computed into {@code sequences[i].logits} if
+     * {@code computeLogits[i]} (all if null), at most one token per sequence, by one classifier matmul for all;
+     * {@code state} only provides the buffers, for up to its batchsize tokens.
+     */
+    static void forward(Llama model, State state, int[] tokens, State[] sequences, int[] positions, boolean[] computeLogits) {
+        Configuration config = model.configuration();
+        int count = tokens.length;
+        int logitCount = 0;
+        for (int i = 0; i < count; i++) {
+            State sequence = sequences[i];
+            sequence.kvCache.prepareWrite(positions[i], positions[i] + 1);
+            state.tokenCaches[i] = sequence.kvCache;
+            state.tokenPositions[i] = positions[i];
+            sequence.latestToken = tokens[i];
+            if (computeLogits == null || computeLogits[i]) {
+                state.logitInputs[logitCount] = state.x[i];
+                state.sequenceLogits[logitCount++] = sequence.logits;
+            }
+        }
+        if (forwardLayers(model, state, tokens, logitCount > 0)) {
+            model.weights().wcls.matmul(logitCount, state.logitInputs, state.sequenceLogits, config.vocabularySize, config.dim);
+        }
+        Arrays.fill(state.logitInputs, 0, logitCount, null);
+        Arrays.fill(state.sequenceLogits, 0, logitCount, null);
+    }
+
+    /**
+     * The transformer layers and the final rmsnorm, into {@code state.x}: token {@code t} of the batch is at
+     * {@code state.tokenPositions[t]} of the KV cache {@code state.tokenCaches[t]}, the positions of a cache
+     * increasing within the batch.
+     *
+     * @return false if the last layer was skipped, its output isn't needed without logits
+     */
+    private static boolean forwardLayers(Llama model, State state, int[] tokens, boolean computeLogits) {
+        // a few convenience variables
+        Configuration config = model.configuration();
+        Weights weights = model.weights();
+        int dim = config.dim;
+        int headSize = config.headSize;
+        int kvDim = (config.dim * config.numberOfKeyValueHeads) / config.numberOfHeads;
+        int kvMul = config.numberOfHeads / config.numberOfKeyValueHeads; // integer multiplier of the kv sharing in multiquery
+        float sqrtHeadSize = (float) Math.sqrt(headSize);
+        final int nTokens = tokens.length;
+
+        // copy the token embedding into x
+        Parallel.parallelFor(0, nTokens, t ->
+            weights.token_embedding_table.copyTo(tokens[t] * dim, state.x[t], 0, dim)
+        );
+
+        // forward all the layers
+        for (int l = 0; l < config.numberOfLayers; l++) {
+            // attention rmsnorm
+            // rmsnorm(state.xb, state.x, weights.rms_att_weight[l], dim, config.rmsNormEps);
+            final int curLayer = l;
+            Parallel.parallelFor(0, nTokens, t ->
+                rmsnorm(state.xb[t], state.x[t], weights.rms_att_weight[curLayer], dim, config.rmsNormEps)
+            );
+
+            // qkv matmuls for this position
+            weights.wq[l].matmul(nTokens, state.xb, state.q, dim, dim);
+            weights.wk[l].matmul(nTokens, state.xb, state.k, kvDim, dim);
+            weights.wv[l].matmul(nTokens, state.xb, state.v, kvDim, dim);
+
+            // RoPE relative positional encoding: complex-valued rotate q and k in each head
+            Parallel.parallelFor(0, nTokens, t -> {
+                for (int i = 0; i < dim; i += 2) {
+                    int head_dim = i % headSize;
+                    float fcr = weights.freq_cis_real.get(state.tokenPositions[t] * (headSize / 2) + (head_dim / 2));
+                    float fci = weights.freq_cis_imag.get(state.tokenPositions[t] * (headSize / 2) + (head_dim / 2));
+                    int rotn = i < kvDim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
+                    for (int vi = 0; vi < rotn; vi++) {
+                        FloatTensor vec = vi == 0 ? state.q[t] : state.k[t]; // the vector to rotate (query or key)
+                        float v0 = vec.getFloat(i);
+                        float v1 = vec.getFloat(i + 1);
+                        vec.setFloat(i, v0 * fcr - v1 * fci);
+                        vec.setFloat(i + 1, v0 * fci + v1 * fcr);
+                    }
+                }
+            });
+
+            // save key,value at this time step (position) to our kv cache
+            Parallel.parallelFor(0, nTokens, t -> {
+                KVCache.Page page = state.tokenCaches[t].page(state.tokenPositions[t]);
+                int offset = (state.tokenPositions[t] & KVCache.PAGE_MASK) * kvDim;
+                state.k[t].copyTo(0, page.keys[curLayer], offset, kvDim);
+                state.v[t].copyTo(0, page.values[curLayer], offset, kvDim);
+            });
+
+            // If the logits are not required, the attention and FFN of the last layer can be skipped entirely.
+            if (!computeLogits && curLayer == config.numberOfLayers - 1) {
+                return false;
+            }
+
+            // multihead attention. iterate over all heads
+            Parallel.parallelForLong(0, (long) nTokens * (long) config.numberOfHeads, ht -> {
+                int token = (int) (ht / config.numberOfHeads);
+                int h = (int) (ht % config.numberOfHeads);
+                // get the query vector for this head
+                // float* q = s.q + h * headSize;
+                int qOffset = h * headSize;
+
+                // attention scores for this head
+                // float* att = s.att + h * config.seq_len;
+                int attOffset = h * config.contextLength;
+                KVCache.Page[] pages = state.tokenCaches[token].pages;
+                int position = state.tokenPositions[token];
+
+                // iterate over all timesteps, including the current one
+                for (int t = 0; t <= position; t++) {
+                    // get the key vector for this head and at this timestep
+                    // float* k = s.key_cache + loff + t * dim + h * headSize;
+                    int keyCacheOffset = (t & KVCache.PAGE_MASK) * kvDim + (h / kvMul) * headSize;
+                    // calculate the attention score as the dot product of q and k
+                    float score = state.q[token].dot(qOffset, pages[t >>> KVCache.PAGE_SHIFT].keys[curLayer], keyCacheOffset, headSize);
+                    score /= sqrtHeadSize;
+                    // save the score to the attention buffer
+                    state.att[token].setFloat(attOffset + t, score);
+                }
+
+                // softmax the scores to get attention weights, from 0..position inclusively
+                state.att[token].softmaxInPlace(attOffset, position + 1);
+
+                // weighted sum of the values, store back into xb
+                // float* xb = s.xb + h * headSize;
+                int xbOffset = h * headSize;
+                // memset(xb, 0, headSize * sizeof(float));
+                state.xb[token].fillInPlace(xbOffset, headSize, 0f);
+
+                for (int t = 0; t <= position; t++) {
+                    // get the value vector for this head and at this timestep
+                    // float* v = s.value_cache + loff + t * dim + h * headSize;
+                    int vOffset = (t & KVCache.PAGE_MASK) * kvDim + (h / kvMul) * headSize;
+                    // get the attention weight for this timestep
+                    float a = state.att[token].getFloat(attOffset + t);
+                    // accumulate the weighted value into xb
+                    state.xb[token].saxpyInPlace(xbOffset, pages[t >>> KVCache.PAGE_SHIFT].values[curLayer], vOffset, headSize, a);
+                }
+            });
+
+            // final matmul to get the output of the attention
+            weights.wo[l].matmul(nTokens, state.xb, state.xb2, dim, dim);
+
+            // residual connection back into x
+            Parallel.parallelFor(0, nTokens, t -> {
+                state.x[t].addInPlace(state.xb2[t]);
+            });
+
+            // ffn rmsnorm
+            Parallel.parallelFor(0, nTokens, t -> {
+                rmsnorm(state.xb[t], state.x[t], weights.rms_ffn_weight[curLayer], dim, config.rmsNormEps);
+            });
+
+            // Now for FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
+            // first calculate self.w1(x) and self.w3(x)
+            weights.w1[l].matmul(nTokens, state.xb, state.hb, config.hiddenDim, dim);
+            weights.w3[l].matmul(nTokens, state.xb, state.hb2, config.hiddenDim, dim);
+
+            // SwiGLU non-linearity
+            // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
+            Parallel.parallelFor(0, nTokens, t -> {
+                state.hb[t].mapInPlace(value -> value / (float) (1.0 + Math.exp(-value)));
+            });
+
+            // elementwise multiply with w3(x)
+            Parallel.parallelFor(0, nTokens, t -> {
+                state.hb[t].multiplyInPlace(state.hb2[t]);
+            });
+
+            // final matmul to get the output of the ffn
+            weights.w2[l].matmul(nTokens, state.hb, state.xb, dim, config.hiddenDim);
+
+            // residual connection
+            Parallel.parallelFor(0, nTokens, t -> {
+                state.x[t].addInPlace(state.xb[t]);
+            });
+        }
+
+        // final rmsnorm
+        Parallel.parallelFor(0, nTokens, t -> {
+            rmsnorm(state.x[t], state.x[t], weights.rms_final_weight, dim, config.rmsNormEps);
+        });
+        return true;
+    }
+
+    /**
+     * Only the rows of the clusters the {@link ApproximateHead approximate head} selects are computed, as the k
+     * largest logits or as logits (the others are -infinity).
+     */
+    private static void approximateLogits(ApproximateHead head, FloatTensor wcls, State state, FloatTensor x, int vocabularySize, int dim) {
+        long start = System.nanoTime();
+        if (state.headRows == null) {
+            state.headScores = head.allocateScores();
+            state.headRows = new int[vocabularySize];
+        }
+        int count = head.probe(x, state.headScores, state.headRows);
+        if (state.selectTopLogits) {
+            state.topLogits.select(wcls, x, state.headRows, count, dim);
+        } else {
+            state.logits.fillInPlace(0, vocabularySize, Float.NEGATIVE_INFINITY);
+            wcls.matmulRows(state.headRows, count, x, state.logits, dim);
+        }
+        if (ApproximateHead.REPORT) {
+            head.measure(x, state.headRows, count, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * LLM generation entry point, ingest prompt tokens and generates new tokens.
+     *
+     * <p>
+     * All prompt tokens are ingested first, then inference starts, until a stop token is found.
+     * The returned tokens only include generated/inferred tokens.
+     *
+     * @param model            model to run inference (including weights, configuration, tokenizer ...)
+     * @param state            state of the model e.g. key/value caches ... this is mutated by this call
+     * @param startPosition    start prompt ingestion + inference at this position in the context e.g. useful if state was kept across calls (chained generation). 0 implies run with no previous context.
+     * @param promptTokens     prompt tokens to ingest, all the prompt tokens will be ingested, given there's enough capacity left in the context
+     * @param stopTokens       set of tokens that abort generation during inference, stop tokens do not affect prompt ingestion
+     * @param maxTokens        maximum number of tokens (can go up to {@link Configuration#contextLength context length}
+     *                         if this value is negative or greater than {@link Configuration#contextLength context length}
+     * @param sampler          {@link Sampler strategy} used to select tokens
+     * @param echo             debugging flag, prints ALL, prompt and inferred tokens, to {@link System#err stderr}
+     * @param onTokenGenerated callback, if non-null, it's called every time a token is inferred e.g. it's not called when ingesting prompt tokens
+     * @return list of generated/inferred tokens, including the stop token, if any e.g. does not include any token from the prompt
+     */
+    public static List<Integer> generateTokens(Llama model, State state, int startPosition, List<Integer> promptTokens, Set<Integer> stopTokens, int maxTokens, Sampler sampler, boolean echo,
+                                               IntConsumer onTokenGenerated) {
+        IntList prompt = new IntList(promptTokens.size());
+        promptTokens.forEach(prompt::add);
+        BitSet stopTokenIds = new BitSet();
+        stopTokens.forEach(stopTokenIds::set);
+        IntList generatedTokens = new IntList(Math.max(0, Math.min(maxTokens, model.configuration().contextLength) - startPosition));
+        generateTokens(model, state, startPosition, prompt, stopTokenIds, null, maxTokens, -1, sampler, echo, onTokenGenerated, generatedTokens);
+        return generatedTokens.boxed();
+    }
+
+    /**
+     * Allocation-free variant of {@link #generateTokens(Llama, State, int, List, Set, int, Sampler, boolean, IntConsumer)}:
+     * tokens are passed in reused primitive buffers, stop tokens as a bitset and forward reuses the state's token arrays.
+     * Nothing is allocated per generated token, besides what {@code echo}, the sampler and the callback do.
+     *
+     * @param stopSequences   if non-null, reset then fed with the bytes of the generated tokens (special tokens excluded),
+     *                        generation stops as soon as it matches a stop string, before the callback returns
+     * @param maxTokens       if {@code keepTokens} is negative, the position generation stops at, capped by the context
+     *                        length (negative = the context length); otherwise the number of tokens generated, at most
+     *                        (negative = until a stop token)
+     * @param keepTokens      if non-negative, context shifting: when the context ({@link Configuration#contextLength}) is
+     *                        full, the older half of the positions after the first {@code keepTokens} is discarded (see
+     *                        {@link #shiftContext}) and generation goes on; if negative, it stops at the end of the context
+     * @param generatedTokens appended with the generated/inferred tokens, including the stop token, if any
+     * @return the position following the prompt and generated tokens, the start position of a chained call
+     */
+    public static int generateTokens(Llama model, State state, int startPosition, IntList promptTokens, BitSet stopTokens, StopSequences.Matcher stopSequences,
+                                     int maxTokens, int keepTokens, Sampler sampler, boolean echo, IntConsumer onTokenGenerated, IntList generatedTokens) {
+        long startNanos = System.nanoTime();
+        long startGen = 0;
+        int contextLength = model.configuration().contextLength;
+        if (keepTokens >= 0 && keepTokens >= contextLength - 1) {
+            throw new IllegalArgumentException("Cannot keep " + keepTokens + " tokens when shifting a context of " + contextLength);
+        }
+        // The positions available: up to maxTokens, or the whole context if it shifts.
+        int contextEnd = contextLength;
+        if (keepTokens < 0 && maxTokens >= 0) {
+            contextEnd = Math.min(maxTokens, contextLength);
+        } else if (maxTokens < 0) {
+            maxTokens = Integer.MAX_VALUE;
+        }
+        if (stopSequences != null) {
+            stopSequences.reset();
+        }
+        int generatedStart = generatedTokens.size();
+        int token = state.latestToken; // BOS?
+        int nextToken;
+        int promptIndex = 0;
+        int discarded = 0;
+        for (int position = startPosition; keepTokens < 0 ? position < contextEnd : generatedTokens.size() - generatedStart < maxTokens; ++position) {
+            if (position >= contextEnd) {
+                // Context full: the older half after the kept tokens is dropped, the recent half moves down.
+                int discard = Math.max(position - contextEnd + 1, (position - keepTokens) / 2);
+                shiftContext(model, state, keepTokens, discard, contextEnd);
+                position -= discard;
+                discarded += discard;
+            }
+            if (promptIndex < promptTokens.size()) {
+                final int nTokens = Math.min(contextEnd - position, Math.min(promptTokens.size() - promptIndex, state.batchsize));
+                final int[] tokens = state.tokenBuffer(nTokens);
+                for (int i = 0; i < nTokens; i++) {
+                    tokens[i] = promptTokens.get(promptIndex + i);
+                    if (echo) {
+                        // log prompt token (different color?)
+                        System.err.print(Tokenizer.replaceControlCharacters(model.tokenizer().tokenBytes().toString(tokens[i])));
+                    }
+                }
+                if (echo) {
+                    System.out.format("position=%d, promptIdx=%d, promptSize=%d, tokens=%s%n", position, promptIndex, promptTokens.size(), Arrays.toString(tokens));
+                }
+                // Only compute logits on the very last batch.
+                boolean computeLogits = promptIndex + nTokens >= promptTokens.size();
+                if (computeLogits) {
+                    prepareLogits(state, sampler);
+                }
+                forward(model, state, tokens, position, computeLogits);
+                position += nTokens - 1; // -1 -> incremented later in the for loop
+                promptIndex += nTokens;
+                if (promptIndex < promptTokens.size()) {
+                    continue;
+                }
+                startGen = System.nanoTime();
+            } else {
+                // Tokens forced by the sampler need no logits, they are ingested in a batch along with the last token.
+                final int[] batch = state.tokenBuffer(state.batchsize);
+                batch[0] = token;
+                int nTokens = 1;
+                boolean stopped = false;
+                int forcedToken;
+                while (nTokens < state.batchsize && position + nTokens < contextEnd && (forcedToken = sampler.forcedToken()) >= 0) {
+                    sampler.accept(forcedToken);
+                    if (echo) {
+                        System.err.print(Tokenizer.replaceControlCharacters(model.tokenizer().tokenBytes().toString(forcedToken)));
+                    }
+                    generatedTokens.add(forcedToken);
+                    boolean stop = isStop(model.tokenizer(), forcedToken, stopTokens, stopSequences);
+                    if (onTokenGenerated != null) {
+                        onTokenGenerated.accept(forcedToken);
+                    }
+                    if (stop) {
+                        stopped = true;
+                        break;
+                    }
+                    batch[nTokens++] = forcedToken;
+                    state.latestToken = token = forcedToken;
+                }
+                final int[] tokens = state.tokenBuffer(nTokens);
+                if (tokens != batch) {
+                    System.arraycopy(batch, 0, tokens, 0, nTokens);
+                }
+                if (!stopped) {
+                    prepareLogits(state, sampler);
+                }
+                forward(model, state, tokens, position, !stopped);
+                position += nTokens - 1;
+                if (stopped) {
+                    break;
+                }
+            }
+            nextToken = state.sample(sampler);
+            sampler.accept(nextToken);
+            if (echo) {
+                // log inferred token
+                System.err.print(Tokenizer.replaceControlCharacters(model.tokenizer().tokenBytes().toString(nextToken)));
+            }
+            generatedTokens.add(nextToken);
+            boolean stop = isStop(model.tokenizer(), nextToken, stopTokens, stopSequences);
+            if (onTokenGenerated != null) {
+                onTokenGenerated.accept(nextToken);
+            }
+            if (stop) {
+                break;
+            }
+            state.latestToken = token = nextToken;
+        }
+
+        int generatedCount = generatedTokens.size() - generatedStart;
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long promptNanos = startGen - startNanos;
+        long genNanos = elapsedNanos - startGen + startNanos;
+        int endPosition = startPosition + promptIndex + generatedCount - discarded;
+        System.err.printf("%ncontext: %d/%d prompt: %.2f tokens/s (%d) generation: %.2f tokens/s (%d)%s%n",
+                endPosition, model.configuration().contextLength,
+                promptTokens.size() / (promptNanos / 1_000_000_000.0), promptTokens.size(),
+                generatedCount / (genNanos / 1_000_000_000.0), generatedCount,
+                discarded > 0 ? " shifted: " + discarded : "");
+        return endPosition;
+    }
+
+    /**
+     * Context shifting: discards positions {@code [keep, keep + discard)} of the KV cache, the following ones, up to
+     * {@code length}, move down by {@code discard} and their keys are re-rotated for their new positions
+     * ({@link #rotateKey}), instead of ingesting them again. The kept positions, the begin-of-text token and the system
+     * prompt, are attention sinks: attention concentrates on the first tokens, the output degrades without them.
+     */
+    static void shiftContext(Llama model, State state, int keep, int discard, int length) {
+        Configuration config = model.configuration();
+        int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        state.kvCache.remove(keep, discard, length, (keys, offset) -> rotateKey(model.weights(), config.headSize, keys, offset, kvDim, -discard));
+    }
+
+    /**
+     * Moves a key (RoPE applied) by {@code delta} positions: rotates each pair of dimensions by {@code delta} times its
+     * frequency, read in the freq_cis tables at {@code |delta|}, conjugated for a negative delta.
+     */
+    static void rotateKey(Weights weights, int headSize, FloatTensor key, int offset, int kvDim, int delta) {
+        int base = Math.abs(delta) * (headSize / 2);
+        float sign = Math.signum(delta);
+        for (int i = 0; i < kvDim; i += 2) {
+            int headDim = i % headSize;
+            float fcr = weights.freq_cis_real.get(base + headDim / 2);
+            float fci = sign * weights.freq_cis_imag.get(base + headDim / 2);
+            float v0 = key.getFloat(offset + i);
+            float v1 = key.getFloat(offset + i + 1);
+            key.setFloat(offset + i, v0 * fcr - v1 * fci);
+            key.setFloat(offset + i + 1, v0 * fci + v1 * fcr);
+        }
+    }
+
+    /**
+     * Computes only the logits {@code sampler} needs in the next {@link #forward forward}: its candidate tokens, if
+     * known, or the largest logits, if it needs no others (unless {@code -Dllama.FusedTopK=false}).
+     */
+    static void prepareLogits(State state, Sampler sampler) {
+        int[] candidates = sampler.candidateTokens();
+        state.restrictLogits(candidates, candidates == null ? 0 : candidates.length);
+        state.selectTopLogits(candidates == null && FUSED_TOP_K ? sampler.topK() : 0);
+    }
+
+    private static final int[] NO_TOKENS = new int[0];
+
+    /**
+     * Scores a sequence with batched forwards: ingests {@code tokens[0, n - 1)} at {@code startPosition} and computes
+     * the logits of every position, one classifier matmul per batch, into
+     * {@code logProbs[i] = log P(tokens[i + 1] | context, tokens[0, i])} for {@code i} in {@code [from, n - 1)}.
+     * Batches before {@code from} are only ingested, e.g. the context of a sliding window. The last token is not
+     * ingested, nothing follows it. Logits are always exact (no approximate head), and left unrestricted.
+     */
+    public static void scoreTokens(Llama model, State state, int startPosition, IntList tokens, int from, float[] logProbs) {
+        int n = tokens.size() - 1;
+        if (startPosition + n > model.configuration().contextLength) {
+            throw new IllegalArgumentException("Sequence of " + tokens.size() + " tokens at position " + startPosition + " exceeds the context length");
+        }
+        int vocabularySize = model.configuration().vocabularySize;
+        int dim = model.configuration().dim;
+        if (state.positionLogits == null) {
+            state.positionLogits = allocate(state.batchsize, vocabularySize);
+        }
+        // The classifier runs batched below, forward computes no logits of its own.
+        state.restrictLogits(NO_TOKENS, 0);
+        for (int offset = 0; offset < n; offset += state.batchsize) {
+            int nTokens = Math.min(state.batchsize, n - offset);
+            int[] batch = state.tokenBuffer(nTokens);
+            for (int i = 0; i < nTokens; i++) {
+                batch[i] = tokens.get(offset + i);
+            }
+            if (offset + nTokens <= from) {
+                forward(model, state, batch, startPosition + offset, false);
+                continue;
+            }
+            forward(model, state, batch, startPosition + offset, true);
+            // Only the scored rows, the batch may start before from.
+            int first = Math.max(0, from - offset);
+            System.arraycopy(state.x, first, state.logitInputs, 0, nTokens - first);
+            model.weights().wcls.matmul(nTokens - first, state.logitInputs, state.positionLogits, vocabularySize, dim);
+            Arrays.fill(state.logitInputs, 0, nTokens - first, null);
+            final int batchOffset = offset + first;
+            Parallel.parallelFor(0, nTokens - first, t -> {
+                float[] logits = ((ArrayFloatTensor) state.positionLogits[t]).values;
+                logProbs[batchOffset + t] = logits[tokens.get(batchOffset + t + 1)] - logSumExp(logits, vocabularySize);
+            });
+        }
+        state.latestToken = tokens.get(n);
+        state.restrictLogits(null, 0);
+    }
+
+    /**
+     * Log-likelihoods {@code log P(continuation | prompt)} of candidate continuations of a shared prompt, e.g. to rank
+     * them. The prompt (but its last token) is ingested once and its KV cache is shared: each candidate is scored by
+     * {@link #scoreTokens batched forwards} from the last prompt token on, overwriting the previous candidate.
+     *
+     * @return the summed (natural) log-probabilities of the tokens of each continuation, 0 for an empty one
+     */
+    public static double[] scoreContinuations(Llama model, State state, IntList prompt, List<IntList> continuations) {
+        if (prompt.isEmpty()) {
+            throw new IllegalArgumentException("Empty prompt");
+        }
+        int shared = prompt.size() - 1;
+        for (int position = 0; position < shared; position += state.batchsize) {
+            int nTokens = Math.min(state.batchsize, shared - position);
+            int[] batch = state.tokenBuffer(nTokens);
+            for (int i = 0; i < nTokens; i++) {
+                batch[i] = prompt.get(position + i);
+            }
+            forward(model, state, batch, position, false);
+        }
+        double[] scores = new double[continuations.size()];
+        IntList sequence = new IntList();
+        float[] logProbs = new float[continuations.stream().mapToInt(IntList::size).max().orElse(0)];
+        for (int c = 0; c < continuations.size(); c++) {
+            IntList continuation = continuations.get(c);
+            sequence.clear();
+            sequence.add(prompt.get(shared));
+            sequence.addAll(continuation);
+            scoreTokens(model, state, shared, sequence, 0, logProbs);
+            double sum = 0.0;
+            for (int i = 0; i < continuation.size(); i++) {
+                sum += logProbs[i];
+            }
+            scores[c] = sum;
+        }
+        return scores;
+    }
+
+    /**
+     * {@code log(sum(exp(values[0, size))))}, vectorized.
+     */
+    static float logSumExp(float[] values, int size) {
+        float max = SamplerChain.max(values, size);
+        int i = 0;
+        float sum = 0f;
+        if (FloatTensor.USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+            FloatVector sumVector = FloatVector.zero(species);
+            for (int upperBound = species.loopBound(size); i < upperBound; i += species.length()) {
+                FloatVector x = FloatVector.fromArray(species, values, i).sub(max);
+                sumVector = sumVector.add(x.max(-87f).lanewise(VectorOperators.EXP));
+            }
+            sum = sumVector.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < size; i++) {
+            sum += SamplerChain.exp(values[i] - max);
+        }
+        return max + (float) Math.log(sum);
+    }
+
+    private static boolean isStop(Tokenizer tokenizer, int token, BitSet stopTokens, StopSequences.Matcher stopSequences) {
+        if (stopTokens.get(token)) {
+            return true;
+        }
+        if (stopSequences == null || tokenizer.isSpecialToken(token)) {
+            return false;
+        }
+        Tokenizer.TokenBytes tokenBytes = tokenizer.tokenBytes();
+        return stopSequences.accept(tokenBytes.bytes(), tokenBytes.offset(token), tokenBytes.length(token));
+    }
+}
@@ -0,0 +1,146 @@
+package com.skowronski.talk.jvmai;
+
+/**
+ * Splits text exactly like the Llama 3 pre-tokenization {@link #PATTERN}, without {@code java.util.regex}.
+ * <p>
+ * A single forward scan per chunk over code points classified as letter ({@code \\p{L}}), number ({@code \\p{N}}),
+ * whitespace ({@code \\s}, ASCII only as in {@link Pattern}) or other. The alternatives are tried in the pattern's
+ * order and the backtracking of {@code \\s*[\\r\\n]+} and {@code \\s+(?!\\S)} is resolved directly on the whitespace run.
+ * Chunks are returned as offsets, nothing is allocated. Disable with {@code -Dllama.RegexPreTokenizer=true}.
+ */
+final class Llama3PreTokenizer {
+    static final String PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    static final boolean ENABLED = !Boolean.getBoolean("llama.RegexPreTokenizer");
+
+    private static final byte OTHER = 0;
+    private static final byte LETTER = 1;
+    private static final byte NUMBER = 2;
+    private static final byte SPACE = 3;
+
+    // Covers all the BYTE_ENCODER code points (< U+0144), which is all the tokenizer ever sees.
+    private static final byte[] CLASSES = new byte[0x180];
+
+    static {
+        for (int codePoint = 0; codePoint < CLASSES.length; codePoint++) {
+            CLASSES[codePoint] = computeClass(codePoint);
+        }
+    }
+
+    private static byte computeClass(int codePoint) {
+        if (Character.isLetter(codePoint)) {
+            return LETTER;
+        }
+        return switch (Character.getType(codePoint)) {
+            case Character.DECIMAL_DIGIT_NUMBER, Character.LETTER_NUMBER, Character.OTHER_NUMBER -> NUMBER;
+            default -> switch (codePoint) {
+                case ' ', '\t', '\n', 0x0B, '\f', '\r' -> SPACE;
+                default -> OTHER;
+            };
+        };
+    }
+
+    private static int classAt(CharSequence text, int index) {
+        char c = text.charAt(index);
+        if (c < CLASSES.length) {
+            return CLASSES[c];
+        }
+        return computeClass(Character.codePointAt(text, index));
+    }
+
+    private static int nextIndex(CharSequence text, int index) {
+        return index + (Character.isHighSurrogate(text.charAt(index)) && index + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(index + 1)) ? 2 : 1);
+    }
+
+    // (?i) without UNICODE_CASE only folds ASCII
+    private static char asciiLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean isNewline(char c) {
+        return c == '\r' || c == '\n';
+    }
+
+    /**
+     * True if splitting text between {@code before} and {@code after} yields the same chunks as not splitting it,
+     * whatever surrounds them: a letter run always ends before a non-letter and chunks only look ahead.
+     */
+    static boolean isSafeSplit(char before, char after) {
+        return before < CLASSES.length && after < CLASSES.length && CLASSES[before] == LETTER && CLASSES[after] != LETTER;
+    }
+
+    /**
+     * Returns the end (exclusive) of the chunk starting at {@code start}, {@code start < text.length()}.
+     */
+    static int chunkEnd(CharSequence text, int start) {
+        int length = text.length();
+        char c = text.charAt(start);
+
+        // (?i:'s|'t|'re|'ve|'m|'ll|'d)
+        if (c == '\'' && start + 1 < length) {
+            char c1 = asciiLowerCase(text.charAt(start + 1));
+            if (c1 == 's' || c1 == 't' || c1 == 'm' || c1 == 'd') {
+                return start + 2;
+            }
+            if (start + 2 < length) {
+                char c2 = asciiLowerCase(text.charAt(start + 2));
+                if ((c1 == 'r' && c2 == 'e') || (c1 == 'v' && c2 == 'e') || (c1 == 'l' && c2 == 'l')) {
+                    return start + 3;
+                }
+            }
+        }
+
+        int type = classAt(text, start);
+        int next = nextIndex(text, start);
+
+        // [^\r\n\p{L}\p{N}]?\p{L}+
+        if (type == LETTER || (type != NUMBER && !isNewline(c) && next < length && classAt(text, next) == LETTER)) {
+            int end = next;
+            while (end < length && classAt(text, end) == LETTER) {
+                end = nextIndex(text, end);
+            }
+            return end;
+        }
+
+        // \p{N}{1,3}
+        if (type == NUMBER) {
+            int end = next;
+            for (int count = 1; count < 3 && end < length && classAt(text, end) == NUMBER; count++) {
+                end = nextIndex(text, end);
+            }
+            return end;
+        }
+
+        //  ?[^\s\p{L}\p{N}]+[\r\n]*
+        int end = start;
+        if (c == ' ' && next < length && classAt(text, next) == OTHER) {
+            end = next;
+        }
+        if (classAt(text, end) == OTHER) {
+            while (end < length && classAt(text, end) == OTHER) {
+                end = nextIndex(text, end);
+            }
+            while (end < length && isNewline(text.charAt(end))) {
+                end++;
+            }
+            return end;
+        }
+
+        // only whitespace is left, the run [start, spaceEnd)
+        assert type == SPACE;
+        int spaceEnd = next;
+        int lastNewline = isNewline(c) ? start : -1;
+        while (spaceEnd < length && classAt(text, spaceEnd) == SPACE) {
+            if (isNewline(text.charAt(spaceEnd))) {
+                lastNewline = spaceEnd;
+            }
+            spaceEnd++;
+        }
+        // \s*[\r\n]+ backtracks to the last newline of the run
+        if (lastNewline >= 0) {
+            return lastNewline + 1;
+        }
+        // \s+(?!\S) backtracks by one whitespace if the run is followed by a non-whitespace, else \s+
+        return spaceEnd < length && spaceEnd - 1 > start ? spaceEnd - 1 : spaceEnd;
+    }
+}
@@ -0,0 +1,77 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.*;
+
+/**
+ * Open addressing hash table from a BPE merge pair, packed in a {@code long}, to the index of the merged token.
+ * <p>
+ * Merged token indices double as merge ranks, tokens are numbered in the order the merges were learnt.
+ */
+final class MergeTable {
+    private static final long EMPTY = -1L;
+
+    final long[] keys;
+    final int[] values;
+    private int size;
+
+    MergeTable(int expectedSize) {
+        this.keys = new long[tableSizeFor(expectedSize)];
+        this.values = new int[keys.length];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    MergeTable(long[] keys, int[] values, int size) {
+        assert Integer.bitCount(keys.length) == 1 && keys.length == values.length;
+        this.keys = keys;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * Power of 2 capacity for an open addressing table with a load factor of at most 0.5.
+     */
+    static int tableSizeFor(int expectedSize) {
+        return Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+    }
+
+    static long pack(int first, int second) {
+        return ((long) first << 32) | (second & 0xFFFFFFFFL);
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    void put(int first, int second, int mergeIndex) {
+        long key = pack(first, second);
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            assert size + 1 <= keys.length / 2 : "table is full";
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = mergeIndex;
+    }
+
+    /**
+     * Returns the index of the token resulting from merging {@code first} and {@code second}, or -1 if there's no such merge.
+     */
+    int get(int first, int second) {
+        long key = pack(first, second);
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,210 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+final class ModelLoader {
+    private static final String TOKENIZER_LLAMA_3_MODEL = "gpt2";
+
+    private static final String LLAMA_3_PATTERN = Llama3PreTokenizer.PATTERN;
+
+    private static Vocabulary loadVocabulary(Map<String, Object> metadata) {
+        String model = (String) metadata.get("tokenizer.ggml.model");
+        if (!TOKENIZER_LLAMA_3_MODEL.equals(model)) {
+            throw new IllegalArgumentException("expected " + TOKENIZER_LLAMA_3_MODEL + " but found " + model);
+        }
+        String[] tokens = (String[]) metadata.get("tokenizer.ggml.tokens");
+        return Vocabulary.of(tokens, null);
+    }
+
+    public static Llama loadModel(Path ggufPath, int contextLength, boolean loadWeights) throws IOException {
+        List<Path> shardPaths = GGUFShards.shardPaths(ggufPath);
+        if (shardPaths.size() > 1) {
+            List<GGUF> shards = GGUFShards.parseAll(shardPaths);
+            return loadModel(shards.getFirst().getMetadata(), () -> GGUFShards.loadTensors(shardPaths, shards),
+                    contextLength, loadWeights, TokenizerSnapshot.sidecarPath(shardPaths.getFirst()));
+        }
+        GGUF gguf = GGUF.loadModel(ggufPath);
+        FileChannel fileChannel = FileChannel.open(ggufPath, StandardOpenOption.READ);
+        return loadModel(fileChannel, gguf, contextLength, loadWeights, TokenizerSnapshot.sidecarPath(ggufPath));
+    }
+
+    public static Llama loadModel(FileChannel fileChannel, GGUF gguf, int contextLength, boolean loadWeights) throws IOException {
+        return loadModel(fileChannel, gguf, contextLength, loadWeights, null);
+    }
+
+    /**
+     * @param tokenizerSnapshot path of the {@link TokenizerSnapshot tokenizer snapshot} sidecar, or null to always build the tokenizer from the metadata
+     */
+    public static Llama loadModel(FileChannel fileChannel, GGUF gguf, int contextLength, boolean loadWeights, Path tokenizerSnapshot) throws IOException {
+        return loadModel(gguf.getMetadata(), () -> GGUF.loadTensors(fileChannel, gguf.getTensorDataOffset(), gguf.getTensorInfos()),
+                contextLength, loadWeights, tokenizerSnapshot);
+    }
+
+    @FunctionalInterface
+    interface TensorEntriesLoader {
+        Map<String, GGMLTensorEntry> load() throws IOException;
+    }
+
+    private static Llama loadModel(Map<String, Object> metadata, TensorEntriesLoader tensorEntriesLoader, int contextLength, boolean loadWeights, Path tokenizerSnapshot) throws IOException {
+        try (var ignored = Timer.log("Load LlaMa model")) {
+            Tokenizer tokenizer = loadTokenizer(metadata, tokenizerSnapshot);
+            Vocabulary vocabulary = tokenizer.getVocabulary();
+
+            Llama.Configuration config = new Llama.Configuration(
+                    (int) metadata.get("llama.embedding_length"),
+                    (int) metadata.get("llama.feed_forward_length"),
+                    (int) metadata.get("llama.block_count"),
+                    (int) metadata.get("llama.attention.head_count"),
+
+                    metadata.containsKey("llama.attention.head_count_kv")
+                            ? (int) metadata.get("llama.attention.head_count_kv")
+                            : (int) metadata.get("llama.attention.head_count"),
+
+                    vocabulary.size(),
+                    (int) metadata.get("llama.context_length"),
+                    (float) metadata.getOrDefault("llama.attention.layer_norm_rms_epsilon", 1e-5f),
+                    (float) metadata.getOrDefault("llama.rope.freq_base", 10000f)
+            ).withContextLength(contextLength);
+
+            Llama.Weights weights = null;
+            if (loadWeights) {
+                Map<String, GGMLTensorEntry> tensorEntries = tensorEntriesLoader.load();
+                if (GGUFShards.PREFETCH) {
+                    GGUFShards.prefetch(tensorEntries.values());
+                }
+                weights = loadWeights(tensorEntries, config);
+            }
+            return new Llama(config, tokenizer, weights);
+        }
+    }
+
+    static Llama.Weights loadWeights(Map<String, GGMLTensorEntry> tensorEntries, Llama.Configuration config) {
+        boolean ropeScaling = tensorEntries.containsKey("rope_freqs");
+        float scaleFactor = 8;
+        float loFreqFactor = 1;
+        float hiFreqFactor = 3;
+        int oldContextLength = 8192;
+        Pair<float[], float[]> ropeFreqs = RoPE.precomputeFreqsCis(config.contextLength, config.headSize, config.ropeTheta,
+                ropeScaling, scaleFactor, loFreqFactor, hiFreqFactor, oldContextLength);
+        float[] ropeFreqsReal = ropeFreqs.first();
+        float[] ropeFreqsImag = ropeFreqs.second();
+
+        GGMLTensorEntry tokenEmbeddings = tensorEntries.get("token_embd.weight");
+        Llama.Weights qw = new Llama.Weights(
+                loadQuantized(tokenEmbeddings),
+                loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_norm.weight")),
+                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_q.weight")),
+                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_k.weight")),
+                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_v.weight")),
+                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".attn_output.weight")),
+                loadArrayOfFloatBuffer(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_norm.weight")),
+                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_gate.weight")), // w1
+                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_down.weight")), // w2
+                loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_up.weight")), // w3
+                toFloatBuffer(tensorEntries.get("output_norm.weight")),
+                FloatBuffer.wrap(ropeFreqsReal),
+                FloatBuffer.wrap(ropeFreqsImag),
+                // If "output.weight" is not present then the embedding weights are tied/shared with the decoder.
+                // This is commonly referred as "tie word embeddings".
+                loadQuantized(tensorEntries.getOrDefault("output.weight", tokenEmbeddings))
+        );
+        if (ApproximateHead.ENABLED) {
+            qw.approximateHead = ApproximateHead.build(qw.wcls, config.vocabularySize, config.dim);
+        }
+
+        return qw;
+    }
+
+    private static Tokenizer loadTokenizer(Map<String, Object> metadata, Path snapshotPath) {
+        if (snapshotPath == null || !TokenizerSnapshot.ENABLED) {
+            return createTokenizer(metadata, loadVocabulary(metadata));
+        }
+        long metadataHash = TokenizerSnapshot.metadataHash(metadata);
+        Tokenizer tokenizer = TokenizerSnapshot.load(snapshotPath, metadataHash);
+        if (tokenizer == null) {
+            tokenizer = createTokenizer(metadata, loadVocabulary(metadata));
+            TokenizerSnapshot.store(snapshotPath, metadataHash, tokenizer);
+        }
+        return tokenizer;
+    }
+
+    private static Tokenizer createTokenizer(Map<String, Object> metadata, Vocabulary vocabulary) {
+        try (var ignored = Timer.log("Create tokenizer")) {
+            String[] mergeLines = (String[]) metadata.get("tokenizer.ggml.merges");
+            MergeTable merges = new MergeTable(mergeLines.length);
+            for (String line : mergeLines) {
+                int separator = line.indexOf(' ');
+                String first = line.substring(0, separator);
+                String second = line.substring(separator + 1);
+                int mergeIndex = vocabulary.getIndex(first + second).orElseThrow();
+                merges.put(vocabulary.getIndex(first).orElseThrow(), vocabulary.getIndex(second).orElseThrow(), mergeIndex);
+            }
+            return createTokenizer(vocabulary, merges);
+        }
+    }
+
+    static Tokenizer createTokenizer(Vocabulary vocabulary, MergeTable merges) {
+        int allTokens = vocabulary.size();
+        // assume all tokens after the base ones are special, Llama 3 has 128000 base tokens.
+        int baseTokens = vocabulary.getIndex("<|begin_of_text|>").orElse(128000);
+        int reservedSpecialTokens = allTokens - baseTokens;
+        List<String> specialTokensList = IntStream.range(baseTokens, allTokens).mapToObj(vocabulary::get).toList();
+
+        assert specialTokensList.stream().allMatch(token -> vocabulary.getIndex(token).isPresent());
+
+        Map<String, Integer> specialTokens =
+                IntStream.range(0, specialTokensList.size())
+                        .boxed()
+                        .collect(Collectors.toMap(
+                                i -> specialTokensList.get(i),
+                                i -> baseTokens + i)
+                        );
+
+        return new Tokenizer(vocabulary, merges, LLAMA_3_PATTERN, specialTokens);
+    }
+
+    public static FloatTensor loadQuantized(GGMLTensorEntry entry) {
+        GGMLType ggmlType = entry.ggmlType();
+        return switch (ggmlType) {
+            //case F32 -> new F32FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q8_0 -> new Q8_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case Q4_0 -> new Q4_0FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case BF16 -> new BF16FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            case F16 -> new F16FloatTensor(FloatTensor.numberOfElements(entry.shape()), entry.memorySegment());
+            default -> throw new UnsupportedOperationException("Quantization format " + ggmlType);
+        };
+    }
+
+    public static FloatTensor[] loadArrayOfQuantized(int size, IntFunction<GGMLTensorEntry> getTensorEntry) {
+        FloatTensor[] array = new FloatTensor[size];
+        for (int i = 0; i < size; i++) {
+            array[i] = loadQuantized(getTensorEntry.apply(i));
+        }
+        return array;
+    }
+
+    public static FloatBuffer[] loadArrayOfFloatBuffer(int size, IntFunction<GGMLTensorEntry> getTensorEntry) {
+        FloatBuffer[] array = new FloatBuffer[size];
+        for (int i = 0; i < size; i++) {
+            array[i] = toFloatBuffer(getTensorEntry.apply(i));
+        }
+        return array;
+    }
+
+    public static FloatBuffer toFloatBuffer(GGMLTensorEntry tensorEntry) {
+        GGMLType ggmlType = tensorEntry.ggmlType();
+        return switch (ggmlType) {
+            case F32 -> tensorEntry.memorySegment().asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            default -> throw new UnsupportedOperationException("Conversion to " + ggmlType);
+        };
+    }
+}
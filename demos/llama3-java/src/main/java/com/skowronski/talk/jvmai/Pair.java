@@ -0,0 +1,4 @@
+package com.skowronski.talk.jvmai;
+
+record Pair<First, Second>(First first, Second second) {
+}
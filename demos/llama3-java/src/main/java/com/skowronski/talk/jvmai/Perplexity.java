@@ -0,0 +1,163 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Perplexity of the model over a text file ({@code --perplexity <file>}): the exponential of the mean negative
+ * log-likelihood of its tokens, to check that a quantization or a faster kernel does not degrade the model.
+ *
+ * <p>
+ * The file is memory-mapped and tokenized block by block (see {@link CorpusTokenizer#encode}) as windows are evaluated,
+ * only the tokens of the pending windows are held. A window is the begin-of-text token followed by
+ * {@code contextLength - 1} tokens of text, consecutive windows overlap by half: each window scores the tokens past the
+ * end of the previous one, so every token is scored once, with at least half a window of context but in the first one.
+ *
+ * <p>
+ * Windows are scored by batched forwards computing the logits of all their positions (see {@link Llama#scoreTokens}),
+ * a group of windows in parallel, each in its own {@link Llama.State}: {@code -Dllama.Perplexity.states} (default
+ * min(4, cores)). The log-likelihoods are summed in window order, the result doesn't depend on the parallelism.
+ */
+final class Perplexity {
+    private static final int STATES = Integer.getInteger("llama.Perplexity.states", Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final Llama model;
+    private final int beginOfText;
+    // text tokens per window, and between the starts of consecutive windows
+    private final int windowLength;
+    private final int stride;
+    private final Llama.State[] states;
+    private final IntList[] sequences;
+    private final float[][] logProbs;
+    private final ExecutorService executor;
+
+    // buffered text, text[0] is the token textStart of the file
+    private final IntList text = new IntList();
+    private long textStart;
+    // start of the next window, end of the tokens scored so far
+    private long windowStart;
+    private long scoredEnd;
+    private double negativeLogLikelihood;
+    private long windows;
+    private long ingestedTokens;
+
+    private Perplexity(Llama model, int batchSize) {
+        int contextLength = model.configuration().contextLength;
+        if (contextLength < 3) {
+            throw new IllegalArgumentException("Context length " + contextLength + " is too short to evaluate the perplexity");
+        }
+        this.model = model;
+        this.beginOfText = model.tokenizer().getSpecialTokens().get("<|begin_of_text|>");
+        this.windowLength = contextLength - 1;
+        this.stride = windowLength / 2;
+        int parallelism = Math.max(1, STATES);
+        this.states = new Llama.State[parallelism];
+        this.sequences = new IntList[parallelism];
+        this.logProbs = new float[parallelism][windowLength];
+        for (int i = 0; i < parallelism; i++) {
+            states[i] = model.createNewState(batchSize);
+            sequences[i] = new IntList(contextLength);
+        }
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "perplexity");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static void evaluate(Llama model, Path path, int batchSize, PrintStream out) throws IOException {
+        Perplexity perplexity = new Perplexity(model, batchSize);
+        long startNanos = System.nanoTime();
+        try (Arena arena = Arena.ofConfined();
+             FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MemorySegment file = fileChannel.size() == 0 ? MemorySegment.NULL : fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+            CorpusTokenizer.encode(model.tokenizer(), file, perplexity::append);
+            perplexity.finish();
+        } finally {
+            perplexity.executor.shutdownNow();
+        }
+        if (perplexity.scoredEnd == 0) {
+            throw new IllegalArgumentException("No tokens to evaluate in " + path);
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.err.println();
+        out.printf("Perplexity: %.4f over %d tokens (%d windows of %d tokens, %d states)%n",
+                perplexity.perplexity(), perplexity.scoredEnd, perplexity.windows, perplexity.windowLength + 1, perplexity.states.length);
+        out.printf("%.1f tokens/s (%.1f tokens/s ingested) in %.1f s%n", perplexity.scoredEnd / seconds, perplexity.ingestedTokens / seconds, seconds);
+    }
+
+    double perplexity() {
+        return Math.exp(negativeLogLikelihood / scoredEnd);
+    }
+
+    private void append(int[] tokens) {
+        text.addAll(tokens, tokens.length);
+        long end = textStart + text.size();
+        // Full groups of complete windows, the last ones wait for more text.
+        while (windowStart + (long) (states.length - 1) * stride + windowLength <= end) {
+            evaluateWindows(end);
+        }
+    }
+
+    private void finish() {
+        long end = textStart + text.size();
+        while (scoredEnd < end) {
+            evaluateWindows(end);
+        }
+    }
+
+    /**
+     * Scores the next group of windows, in parallel, windows are cut at {@code end}.
+     */
+    private void evaluateWindows(long end) {
+        List<CompletableFuture<Double>> results = new ArrayList<>(states.length);
+        long from = scoredEnd;
+        for (int i = 0; i < states.length; i++) {
+            long start = windowStart + (long) i * stride;
+            long windowEnd = Math.min(start + windowLength, end);
+            if (from >= windowEnd) {
+                break;
+            }
+            IntList sequence = sequences[i];
+            sequence.clear();
+            sequence.add(beginOfText);
+            for (long t = start; t < windowEnd; t++) {
+                sequence.add(text.get(Math.toIntExact(t - textStart)));
+            }
+            Llama.State state = states[i];
+            float[] windowLogProbs = logProbs[i];
+            int scoredFrom = Math.toIntExact(from - start);
+            int scoredTo = Math.toIntExact(windowEnd - start);
+            results.add(CompletableFuture.supplyAsync(() -> {
+                Llama.scoreTokens(model, state, 0, sequence, scoredFrom, windowLogProbs);
+                double sum = 0.0;
+                for (int t = scoredFrom; t < scoredTo; t++) {
+                    sum -= windowLogProbs[t];
+                }
+                return sum;
+            }, executor));
+            ingestedTokens += sequence.size() - 1;
+            from = windowEnd;
+        }
+        for (CompletableFuture<Double> result : results) {
+            negativeLogLikelihood += result.join();
+        }
+        windows += results.size();
+        windowStart += (long) results.size() * stride;
+        scoredEnd = from;
+        int consumed = Math.toIntExact(Math.min(windowStart - textStart, text.size()));
+        text.removeFirst(consumed);
+        textStart += consumed;
+        System.err.printf("\r%d tokens, perplexity %.4f", scoredEnd, perplexity());
+    }
+}
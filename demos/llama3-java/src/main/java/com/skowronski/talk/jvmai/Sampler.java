@@ -0,0 +1,77 @@
+package com.skowronski.talk.jvmai;
+
+@FunctionalInterface
+interface Sampler {
+    int sampleToken(FloatTensor logits);
+
+    /**
+     * Called with every generated token, e.g. to penalize repetitions.
+     */
+    default void accept(int token) {
+    }
+
+    /**
+     * Forgets the {@link #accept(int) accepted} tokens, before an unrelated request.
+     */
+    default void reset() {
+    }
+
+    /**
+     * Next token if it is known without logits (e.g. a grammar allows a single one), -1 otherwise.
+     * A forced token is still {@link #accept(int) accepted}.
+     */
+    default int forcedToken() {
+        return -1;
+    }
+
+    /**
+     * The only tokens the next token can be, if known before the logits and few, null otherwise: the logits of the other
+     * tokens are not computed (see {@link Llama.State#restrictLogits(int[], int)}).
+     */
+    default int[] candidateTokens() {
+        return null;
+    }
+
+    /**
+     * Number of largest logits the next token depends on, 0 if it may depend on all of them. The classifier then
+     * selects them as it computes them (see {@link TopLogits}) and the token is chosen by {@link #sampleTopK}.
+     */
+    default int topK() {
+        return 0;
+    }
+
+    /**
+     * Samples among the {@link #topK()} largest logits, {@code logits[i]} is the logit of {@code tokens[i]}, in
+     * decreasing order. By default, {@link #sampleToken samples} from dense logits, -infinity but the given ones;
+     * a sampler returning a positive {@link #topK()} overrides it to avoid the copy.
+     */
+    default int sampleTopK(int[] tokens, float[] logits, int count) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            size = Math.max(size, tokens[i] + 1);
+        }
+        FloatTensor dense = ArrayFloatTensor.allocate(size);
+        dense.fillInPlace(0, size, Float.NEGATIVE_INFINITY);
+        for (int i = 0; i < count; i++) {
+            dense.setFloat(tokens[i], logits[i]);
+        }
+        return sampleToken(dense);
+    }
+
+    Sampler ARGMAX = new Sampler() {
+        @Override
+        public int sampleToken(FloatTensor logits) {
+            return logits.argmax();
+        }
+
+        @Override
+        public int topK() {
+            return 1;
+        }
+
+        @Override
+        public int sampleTopK(int[] tokens, float[] logits, int count) {
+            return tokens[0];
+        }
+    };
+}
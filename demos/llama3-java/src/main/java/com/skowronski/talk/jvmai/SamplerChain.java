@@ -0,0 +1,421 @@
+package com.skowronski.talk.jvmai;
+
+import jdk.incubator.vector.*;
+
+import java.util.*;
+import java.util.random.RandomGenerator;
+
+/**
+ * Sampler chain: repetition/frequency/presence penalties, temperature, top-k, top-p (nucleus) and min-p, in this order.
+ * <p>
+ * Works in place on the primitive logits, nothing is allocated per token. Temperature is fused into a single vectorized
+ * exp and sum pass, after a vectorized max; weights are never normalized, the random draw is scaled by their sum instead.
+ * Filters only look at candidates, selected by a vectorized threshold pass: the k-th largest logit is bounded from below
+ * by the smallest maximum of k disjoint blocks, min-p and top-p translate into a weight threshold. Candidates are then
+ * popped in decreasing order from a primitive heap, only as many as the filters keep.
+ */
+final class SamplerChain implements Sampler {
+
+    /**
+     * @param temperature      0 for greedy (argmax) sampling, after penalties
+     * @param topK             keep the k most likely tokens, 0 disables it
+     * @param topP             keep the most likely tokens up to a cumulative probability, 1 disables it
+     * @param minP             keep tokens with at least {@code minP} times the probability of the most likely token, 0 disables it
+     * @param repeatPenalty    divides positive logits (multiplies negative ones) of recent tokens, 1 disables it
+     * @param frequencyPenalty subtracted from the logit of recent tokens, once per occurrence
+     * @param presencePenalty  subtracted from the logit of recent tokens, once
+     * @param penaltyLastN     number of recent (accepted) tokens penalized
+     */
+    record Parameters(float temperature, int topK, float topP, float minP,
+                      float repeatPenalty, float frequencyPenalty, float presencePenalty, int penaltyLastN) {
+
+        Parameters {
+            if (temperature < 0 || topK < 0 || !(0 <= topP && topP <= 1) || !(0 <= minP && minP <= 1) || repeatPenalty <= 0 || penaltyLastN < 0) {
+                throw new IllegalArgumentException(toString());
+            }
+        }
+
+        static Parameters of(float temperature, float topP) {
+            return new Parameters(temperature, 0, topP, 0f, 1f, 0f, 0f, 64);
+        }
+
+        boolean hasPenalties() {
+            return penaltyLastN > 0 && (repeatPenalty != 1f || frequencyPenalty != 0f || presencePenalty != 0f);
+        }
+    }
+
+    // Larger top-k are not fused with the classifier, the selection heaps would outweigh the saved pass over the logits.
+    private static final int MAX_FUSED_TOP_K = 256;
+
+    private final Parameters parameters;
+    private final RandomGenerator rng;
+    private final int vocabularySize;
+    // Unnormalized probabilities, indexed by token; only candidates are set when top-k is enabled.
+    private final float[] weights;
+    private final int[] candidates;
+    private final int[] sorted;
+    private float[] copy;
+
+    // Penalties: ring buffer of the last accepted tokens and their number of occurrences.
+    private final int[] window;
+    private final int[] counts;
+    private final int[] stamps;
+    private int windowSize;
+    private int windowPosition;
+    private int stamp;
+
+    SamplerChain(int vocabularySize, Parameters parameters, RandomGenerator rng) {
+        this.parameters = parameters;
+        this.rng = rng;
+        this.vocabularySize = vocabularySize;
+        this.weights = new float[vocabularySize];
+        this.candidates = new int[vocabularySize];
+        this.sorted = new int[vocabularySize];
+        boolean penalties = parameters.hasPenalties();
+        this.window = new int[penalties ? parameters.penaltyLastN() : 0];
+        this.counts = new int[penalties ? vocabularySize : 0];
+        this.stamps = new int[penalties ? vocabularySize : 0];
+    }
+
+    @Override
+    public void accept(int token) {
+        if (window.length == 0) {
+            return;
+        }
+        if (windowSize == window.length) {
+            counts[window[windowPosition]]--;
+        } else {
+            windowSize++;
+        }
+        window[windowPosition] = token;
+        counts[token]++;
+        windowPosition = (windowPosition + 1) % window.length;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < windowSize; i++) {
+            counts[window[i]] = 0;
+        }
+        windowSize = 0;
+        windowPosition = 0;
+    }
+
+    @Override
+    public int sampleToken(FloatTensor logits) {
+        int size = vocabularySize;
+        float[] values;
+        if (logits instanceof ArrayFloatTensor arrayFloatTensor) {
+            values = arrayFloatTensor.values;
+        } else {
+            if (copy == null) {
+                copy = new float[size];
+            }
+            values = copy;
+            for (int i = 0; i < size; i++) {
+                values[i] = logits.getFloat(i);
+            }
+        }
+        if (windowSize > 0) {
+            applyPenalties(values);
+        }
+        float temperature = parameters.temperature();
+        if (temperature == 0f) {
+            return argmax(values, size);
+        }
+
+        float max = max(values, size);
+        float scale = 1f / temperature;
+        int topK = parameters.topK();
+        float topP = parameters.topP();
+        float minP = parameters.minP();
+        if (0 < topK && topK < size) {
+            int count = select(values, size, kthLargestLowerBound(values, size, topK), candidates);
+            for (int i = 0; i < count; i++) {
+                int token = candidates[i];
+                weights[token] = exp((values[token] - max) * scale);
+            }
+            return sampleSorted(popLargest(count, topK, Double.POSITIVE_INFINITY));
+        }
+        double total = expSum(values, size, max, scale, weights);
+        if (topP >= 1f && minP == 0f) {
+            return sample(weights, size, total);
+        }
+        // Weights smaller than (1 - topp) / (n - 1) of the total cannot be part of the result,
+        // nor weights smaller than min-p (relative to the most likely token, which weighs 1).
+        float threshold = minP;
+        if (topP < 1f) {
+            threshold = Math.max(threshold, (float) ((1f - topP) / (size - 1) * total));
+        }
+        int count = select(weights, size, threshold, candidates);
+        return draw(popLargest(count, count, topP < 1f ? topP * total : Double.POSITIVE_INFINITY));
+    }
+
+    /**
+     * Top-k sampling needs nothing but the k largest logits, unless penalties change them.
+     */
+    @Override
+    public int topK() {
+        int topK = parameters.topK();
+        return parameters.temperature() > 0f && !parameters.hasPenalties() && topK < vocabularySize && topK <= MAX_FUSED_TOP_K ? topK : 0;
+    }
+
+    @Override
+    public int sampleTopK(int[] tokens, float[] logits, int count) {
+        float max = logits[0];
+        float scale = 1f / parameters.temperature();
+        for (int i = 0; i < count; i++) {
+            int token = tokens[i];
+            weights[token] = exp((logits[i] - max) * scale);
+            sorted[i] = token;
+        }
+        return sampleSorted(count);
+    }
+
+    /**
+     * Top-p and min-p over the {@link #sorted} top-k candidates, then draws one of them.
+     */
+    private int sampleSorted(int count) {
+        double total = 0.0;
+        for (int i = 0; i < count; i++) {
+            total += weights[sorted[i]];
+        }
+        float topP = parameters.topP();
+        if (topP < 1f) {
+            count = cumulativeCut(count, topP * total);
+        }
+        // The most likely token weighs exactly 1; masked (-infinity) logits weigh 0, never sampled.
+        while (count > 1 && (weights[sorted[count - 1]] < parameters.minP() || weights[sorted[count - 1]] == 0f)) {
+            count--;
+        }
+        return draw(count);
+    }
+
+    private int draw(int count) {
+        double kept = 0.0;
+        for (int i = 0; i < count; i++) {
+            kept += weights[sorted[i]];
+        }
+        double r = rng.nextFloat(1f) * kept;
+        double cdf = 0.0;
+        for (int i = 0; i < count; i++) {
+            cdf += weights[sorted[i]];
+            if (r < cdf) {
+                return sorted[i];
+            }
+        }
+        return sorted[count - 1]; // in case of rounding errors
+    }
+
+    private void applyPenalties(float[] values) {
+        if (++stamp == Integer.MAX_VALUE) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        float repeatPenalty = parameters.repeatPenalty();
+        float frequencyPenalty = parameters.frequencyPenalty();
+        float presencePenalty = parameters.presencePenalty();
+        for (int i = 0; i < windowSize; i++) {
+            int token = window[i];
+            if (stamps[token] == stamp) {
+                continue; // already penalized
+            }
+            stamps[token] = stamp;
+            float value = values[token];
+            value = value <= 0 ? value * repeatPenalty : value / repeatPenalty;
+            values[token] = value - counts[token] * frequencyPenalty - presencePenalty;
+        }
+    }
+
+    /**
+     * Pops the candidates with the largest weights into {@link #sorted}, in decreasing order, at most {@code limit}
+     * and until their cumulative weight exceeds {@code cumulativeLimit} (the token crossing it is kept).
+     */
+    private int popLargest(int count, int limit, double cumulativeLimit) {
+        for (int i = count / 2 - 1; i >= 0; --i) {
+            siftDown(i, count);
+        }
+        int popped = 0;
+        double cumulative = 0.0;
+        while (popped < limit && count > 0) {
+            int token = candidates[0];
+            sorted[popped++] = token;
+            cumulative += weights[token];
+            if (cumulative > cumulativeLimit) {
+                break;
+            }
+            candidates[0] = candidates[--count];
+            siftDown(0, count);
+        }
+        return popped;
+    }
+
+    private int cumulativeCut(int count, double cumulativeLimit) {
+        double cumulative = 0.0;
+        for (int i = 0; i < count; i++) {
+            cumulative += weights[sorted[i]];
+            if (cumulative > cumulativeLimit) {
+                return i + 1;
+            }
+        }
+        return count;
+    }
+
+    // Max-heap of candidates on their weights.
+    private void siftDown(int from, int n) {
+        int prev = from, next;
+        while ((next = 2 * prev + 1) < n) {
+            int r = next + 1;
+            if (r < n && weights[candidates[r]] > weights[candidates[next]]) {
+                next = r;
+            }
+            if (weights[candidates[next]] > weights[candidates[prev]]) {
+                int tmp = candidates[prev];
+                candidates[prev] = candidates[next];
+                candidates[next] = tmp;
+                prev = next;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private int sample(float[] weights, int size, double total) {
+        double r = rng.nextFloat(1f) * total;
+        double cdf = 0.0;
+        for (int i = 0; i < size; i++) {
+            cdf += weights[i];
+            if (r < cdf) {
+                return i;
+            }
+        }
+        // in case of rounding errors, the last token with a non-zero weight
+        int last = size - 1;
+        while (last > 0 && weights[last] == 0f) {
+            last--;
+        }
+        return last;
+    }
+
+    // exp(-87) is still a normal float, subnormal results are orders of magnitude slower to compute; below, the
+    // weight is flushed to zero, a masked (-infinity) logit is never sampled.
+    private static final float MIN_EXP_ARGUMENT = -87f;
+
+    static float exp(float x) {
+        return x < MIN_EXP_ARGUMENT ? 0f : (float) Math.exp(x);
+    }
+
+    static float max(float[] values, int size) {
+        int i = 0;
+        float max = Float.NEGATIVE_INFINITY;
+        if (FloatTensor.USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+            FloatVector maxVector = FloatVector.broadcast(species, Float.NEGATIVE_INFINITY);
+            for (int upperBound = species.loopBound(size); i < upperBound; i += species.length()) {
+                maxVector = maxVector.max(FloatVector.fromArray(species, values, i));
+            }
+            max = maxVector.reduceLanes(VectorOperators.MAX);
+        }
+        for (; i < size; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    static int argmax(float[] values, int size) {
+        float max = max(values, size);
+        int i = 0;
+        if (FloatTensor.USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+            for (int upperBound = species.loopBound(size); i < upperBound; i += species.length()) {
+                VectorMask<Float> mask = FloatVector.fromArray(species, values, i).compare(VectorOperators.EQ, max);
+                if (mask.anyTrue()) {
+                    return i + mask.firstTrue();
+                }
+            }
+        }
+        for (; i < size; i++) {
+            if (values[i] == max) {
+                return i;
+            }
+        }
+        return 0; // NaNs only
+    }
+
+    /**
+     * Fused temperature and exp: {@code out[i] = exp((values[i] - max) * scale)}, returns the sum.
+     */
+    static float expSum(float[] values, int size, float max, float scale, float[] out) {
+        int i = 0;
+        float sum = 0f;
+        if (FloatTensor.USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+            FloatVector sumVector = FloatVector.zero(species);
+            for (int upperBound = species.loopBound(size); i < upperBound; i += species.length()) {
+                FloatVector x = FloatVector.fromArray(species, values, i).sub(max).mul(scale);
+                FloatVector exp = x.max(MIN_EXP_ARGUMENT).lanewise(VectorOperators.EXP).blend(0f, x.compare(VectorOperators.LT, MIN_EXP_ARGUMENT));
+                exp.intoArray(out, i);
+                sumVector = sumVector.add(exp);
+            }
+            sum = sumVector.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < size; i++) {
+            float exp = exp((values[i] - max) * scale);
+            out[i] = exp;
+            sum += exp;
+        }
+        return sum;
+    }
+
+    /**
+     * Collects the indices of the values greater or equal than {@code threshold}, returns their number.
+     */
+    static int select(float[] values, int size, float threshold, int[] out) {
+        int count = 0;
+        int i = 0;
+        if (FloatTensor.USE_VECTOR_API) {
+            VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+            for (int upperBound = species.loopBound(size); i < upperBound; i += species.length()) {
+                long bits = FloatVector.fromArray(species, values, i).compare(VectorOperators.GE, threshold).toLong();
+                while (bits != 0) {
+                    out[count++] = i + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                }
+            }
+        }
+        for (; i < size; i++) {
+            if (values[i] >= threshold) {
+                out[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lower bound of the k-th largest value: the smallest maximum of k disjoint blocks, each contributes at least one
+     * value greater or equal. Selecting with it yields at least k candidates, usually a small multiple of k.
+     */
+    static float kthLargestLowerBound(float[] values, int size, int k) {
+        int blockSize = size / k;
+        float bound = Float.POSITIVE_INFINITY;
+        for (int block = 0; block < k; block++) {
+            int from = block * blockSize;
+            int to = block == k - 1 ? size : from + blockSize;
+            float blockMax = Float.NEGATIVE_INFINITY;
+            int i = from;
+            if (FloatTensor.USE_VECTOR_API && to - from >= FloatTensor.F_SPECIES.length()) {
+                VectorSpecies<Float> species = FloatTensor.F_SPECIES;
+                FloatVector maxVector = FloatVector.fromArray(species, values, i);
+                for (i += species.length(); i + species.length() <= to; i += species.length()) {
+                    maxVector = maxVector.max(FloatVector.fromArray(species, values, i));
+                }
+                blockMax = maxVector.reduceLanes(VectorOperators.MAX);
+            }
+            for (; i < to; i++) {
+                blockMax = Math.max(blockMax, values[i]);
+            }
+            bound = Math.min(bound, blockMax);
+        }
+        return bound;
+    }
+}
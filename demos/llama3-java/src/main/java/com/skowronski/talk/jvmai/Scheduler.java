@@ -0,0 +1,500 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Continuous batching of concurrent sequences, e.g. the sessions of a server, with chunked prefill: each step is one
+ * {@link Llama#forward(Llama, Llama.State, int[], Llama.State[], int[], boolean[]) forward} of at most
+ * {@code tokenBudget} tokens, mixing the next token of every decoding sequence with chunks of the prompts being
+ * ingested. A long prompt no longer monopolizes the model: it is ingested a chunk per step while the other sequences
+ * keep generating, one token per step each.
+ *
+ * <p>
+ * Decoding sequences are served first, the rest of the budget goes to the prompts, by priority then arrival. The
+ * budget trades time to first token (large chunks) for inter-token latency (short steps): a step costs about as much as
+ * its tokens.
+ *
+ * <p>
+ * Admission is bounded by memory: a sequence commits the buffers of its state, mostly its logits and attention scores
+ * (see {@link Llama.State#bufferBytes}), and the pages of its KV cache (see {@link KVCache}),
+ * {@code 2 * numberOfLayers * PAGE_SIZE * kvDim} floats each, allocated as it grows. It is admitted when they fit in
+ * {@code budgetBytes}, for its prompt, and waits otherwise, in order of {@link Priority}, deadline and arrival; a
+ * waiting sequence past its deadline fails with a {@link TimeoutException}. When memory runs short, for a more urgent
+ * sequence to be admitted or for a running one to grow, the least urgent running sequence, the latest admitted among
+ * equals, is preempted: its state and pages are released and it waits again, keeping its generated tokens, and is resumed by
+ * ingesting them again after its prompt. {@link #stats()} exposes the queue depth, the wait times and the memory.
+ * {@link #submit} and {@link #stats()} are thread-safe, {@link #step} runs on a single thread.
+ */
+final class Scheduler {
+
+    enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    /**
+     * Snapshot after a step: sequences running and waiting, memory committed, and the wait before the first
+     * admission of the sequences admitted so far.
+     */
+    record Stats(int running, int queued, long committedBytes, long budgetBytes,
+                 long admitted, long preempted, long expired, double meanWaitMillis, double maxWaitMillis) {
+    }
+
+    /**
+     * A sequence: its prompt, then the tokens generated, until a stop token, {@code maxTokens} generated tokens or the
+     * end of the context. {@link #completion} completes with the generated tokens, the stop token included.
+     */
+    static final class Sequence {
+        final IntList prompt;
+        final Sampler sampler;
+        final int maxTokens;
+        final BitSet stopTokens;
+        final IntConsumer onTokenGenerated;
+        final Priority priority;
+        // System.nanoTime() before which it must be admitted, Long.MAX_VALUE if none
+        final long deadlineNanos;
+        final long arrival;
+        final IntList generatedTokens = new IntList();
+        final CompletableFuture<IntList> completion = new CompletableFuture<>();
+        final long submitNanos = System.nanoTime();
+        long admitNanos;
+        long firstTokenNanos;
+        // KV cache and logits, while admitted
+        Llama.State state;
+        // tokens ingested, and KV pages committed
+        int position;
+        int pages;
+
+        private Sequence(IntList prompt, Sampler sampler, int maxTokens, BitSet stopTokens, IntConsumer onTokenGenerated,
+                         Priority priority, long deadlineNanos, long arrival) {
+            this.prompt = prompt;
+            this.sampler = sampler;
+            this.maxTokens = maxTokens;
+            this.stopTokens = stopTokens;
+            this.onTokenGenerated = onTokenGenerated;
+            this.priority = priority;
+            this.deadlineNanos = deadlineNanos;
+            this.arrival = arrival;
+        }
+
+        /**
+         * Tokens to ingest before decoding: the prompt, and the tokens generated before a preemption but the last.
+         */
+        int contextLength() {
+            return generatedTokens.isEmpty() ? prompt.size() : prompt.size() + generatedTokens.size() - 1;
+        }
+
+        boolean prefilling() {
+            return position < contextLength();
+        }
+
+        int contextToken(int index) {
+            return index < prompt.size() ? prompt.get(index) : generatedTokens.get(index - prompt.size());
+        }
+    }
+
+    // most urgent first
+    private static final Comparator<Sequence> URGENCY = Comparator.<Sequence, Priority>comparing(sequence -> sequence.priority)
+            .thenComparingLong(sequence -> sequence.deadlineNanos)
+            .thenComparingLong(sequence -> sequence.arrival);
+
+    private final Llama model;
+    private final int tokenBudget;
+    private final int maxSequences;
+    private final long pageBytes;
+    private final long stateBytes;
+    private final long budgetBytes;
+    // activations of a step, up to tokenBudget tokens
+    private final Llama.State batch;
+    private final ConcurrentLinkedQueue<Sequence> submitted = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Sequence> waiting = new PriorityQueue<>(URGENCY);
+    // admitted sequences, most urgent first
+    private final List<Sequence> running = new ArrayList<>();
+    private long committedBytes;
+    private final AtomicLong arrivals = new AtomicLong();
+    private long admitted;
+    private long preempted;
+    private long expired;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private volatile Stats stats;
+    // per token of a step
+    private final int[] tokens;
+    private final Sequence[] owners;
+    private final Llama.State[] states;
+    private final int[] positions;
+    private final boolean[] computeLogits;
+
+    /**
+     * @param tokenBudget   tokens per step, at least {@code maxSequences}: every decoding sequence gets one
+     * @param maxSequences  sequences running at once, the others wait
+     * @param budgetBytes   memory of the running sequences, KV caches and state buffers, Long.MAX_VALUE for no limit
+     */
+    Scheduler(Llama model, int tokenBudget, int maxSequences, long budgetBytes) {
+        if (maxSequences < 1 || tokenBudget < maxSequences) {
+            throw new IllegalArgumentException("Token budget " + tokenBudget + " must be at least the " + maxSequences + " sequences");
+        }
+        Llama.Configuration config = model.configuration();
+        int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        this.model = model;
+        this.tokenBudget = tokenBudget;
+        this.maxSequences = maxSequences;
+        this.pageBytes = 2L * config.numberOfLayers * KVCache.PAGE_SIZE * kvDim * Float.BYTES;
+        this.stateBytes = Llama.State.bufferBytes(config, 1);
+        this.budgetBytes = budgetBytes;
+        // buffers only, the sequences have their own KV caches
+        this.batch = model.createEmptyState(tokenBudget);
+        this.tokens = new int[tokenBudget];
+        this.owners = new Sequence[tokenBudget];
+        this.states = new Llama.State[tokenBudget];
+        this.positions = new int[tokenBudget];
+        this.computeLogits = new boolean[tokenBudget];
+        this.stats = snapshot();
+    }
+
+    Sequence submit(IntList prompt, Sampler sampler, int maxTokens, BitSet stopTokens, IntConsumer onTokenGenerated) {
+        return submit(prompt, sampler, maxTokens, stopTokens, onTokenGenerated, Priority.NORMAL, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxTokens     tokens generated at most, negative for the context length as the only limit
+     * @param deadlineNanos {@link System#nanoTime()} before which the sequence must be admitted, Long.MAX_VALUE if none
+     */
+    Sequence submit(IntList prompt, Sampler sampler, int maxTokens, BitSet stopTokens, IntConsumer onTokenGenerated,
+                    Priority priority, long deadlineNanos) {
+        int contextLength = model.configuration().contextLength;
+        if (prompt.isEmpty() || prompt.size() >= contextLength) {
+            throw new IllegalArgumentException("Prompt of " + prompt.size() + " tokens doesn't fit in " + contextLength + " positions");
+        }
+        if (maxTokens == 0) {
+            throw new IllegalArgumentException("A sequence generates at least one token, maxTokens must not be 0");
+        }
+        if (maxTokens < 0) {
+            maxTokens = contextLength;
+        }
+        // alone, a sequence must fit to the end: it is then never preempted by its own growth
+        long pages = pagesFor(Math.min((long) prompt.size() + maxTokens, contextLength));
+        if (stateBytes + pages * pageBytes > budgetBytes) {
+            throw new IllegalArgumentException("Sequence of up to " + (stateBytes + pages * pageBytes) + " bytes of state and KV cache doesn't fit in " + budgetBytes);
+        }
+        Sequence sequence = new Sequence(prompt, sampler, maxTokens, stopTokens, onTokenGenerated, priority, deadlineNanos, arrivals.getAndIncrement());
+        submitted.add(sequence);
+        return sequence;
+    }
+
+    /**
+     * The state after the last step.
+     */
+    Stats stats() {
+        return stats;
+    }
+
+    /**
+     * Runs one step: admits the sequences that fit, preempting less urgent ones if needed, then ingests the next token
+     * of every decoding sequence and prompt chunks, up to the token budget, and samples the sequences whose logits
+     * were computed.
+     *
+     * @return false if there was nothing to run
+     */
+    boolean step() {
+        admit();
+        // a decoding sequence entering a new page commits it, the least urgent sequences make room, maybe itself
+        for (Sequence sequence : List.copyOf(running)) {
+            while (sequence.state != null && !reserve(sequence, pagesFor(sequence.position + 1L))) {
+                preempt(running.getLast());
+            }
+        }
+        if (running.isEmpty()) {
+            stats = snapshot();
+            return false;
+        }
+        int count = 0;
+        for (Sequence sequence : running) {
+            if (!sequence.prefilling()) {
+                count = add(count, sequence, sequence.generatedTokens.getLast(), sequence.position, true);
+            }
+        }
+        for (Sequence sequence : running) {
+            if (sequence.prefilling() && count < tokenBudget) {
+                int end = Math.min(sequence.contextLength(), sequence.position + tokenBudget - count);
+                for (int i = sequence.position; i < end; i++) {
+                    // the logits of the prompt give the first token, a resumed sequence has it
+                    boolean logits = sequence.generatedTokens.isEmpty() && i == sequence.prompt.size() - 1;
+                    count = add(count, sequence, sequence.contextToken(i), i, logits);
+                }
+            }
+        }
+        int[] batchTokens = batch.tokenBuffer(count);
+        System.arraycopy(tokens, 0, batchTokens, 0, count);
+        Llama.forward(model, batch, batchTokens, states, positions, computeLogits);
+
+        for (int i = 0; i < count; i++) {
+            owners[i].position++;
+            if (computeLogits[i]) {
+                sample(owners[i]);
+            }
+        }
+        Arrays.fill(owners, 0, count, null);
+        Arrays.fill(states, 0, count, null);
+        running.removeIf(sequence -> sequence.completion.isDone());
+        stats = snapshot();
+        return true;
+    }
+
+    /**
+     * Admits the waiting sequences, most urgent first, while their state and context fit in memory, possibly by
+     * preempting less urgent running sequences; fails the ones past their deadline.
+     */
+    private void admit() {
+        for (Sequence sequence; (sequence = submitted.poll()) != null; ) {
+            waiting.add(sequence);
+        }
+        long now = System.nanoTime();
+        for (Iterator<Sequence> iterator = waiting.iterator(); iterator.hasNext(); ) {
+            Sequence sequence = iterator.next();
+            if (sequence.admitNanos == 0 && sequence.deadlineNanos != Long.MAX_VALUE && now - sequence.deadlineNanos > 0) {
+                iterator.remove();
+                expired++;
+                sequence.completion.completeExceptionally(new TimeoutException("Not admitted before its deadline"));
+            }
+        }
+        while (!waiting.isEmpty()) {
+            Sequence sequence = waiting.peek();
+            boolean fits = running.size() < maxSequences && reserve(sequence, pagesFor(sequence.contextLength() + 1L));
+            if (!fits) {
+                // only a lower priority class is preempted for it
+                if (running.isEmpty() || running.getLast().priority.compareTo(sequence.priority) <= 0) {
+                    return;
+                }
+                preempt(running.getLast());
+                continue;
+            }
+            waiting.poll();
+            sequence.state = model.createEmptyState(1);
+            if (sequence.admitNanos == 0) {
+                sequence.admitNanos = now;
+                admitted++;
+                totalWaitNanos += now - sequence.submitNanos;
+                maxWaitNanos = Math.max(maxWaitNanos, now - sequence.submitNanos);
+            }
+            int index = 0;
+            while (index < running.size() && URGENCY.compare(running.get(index), sequence) <= 0) {
+                index++;
+            }
+            running.add(index, sequence);
+        }
+    }
+
+    /**
+     * Commits the KV pages of the sequence up to {@code pages}, and its state if it is not admitted yet, if they fit.
+     */
+    private boolean reserve(Sequence sequence, long pages) {
+        long more = Math.max(0, pages - sequence.pages) * pageBytes + (sequence.state == null ? stateBytes : 0);
+        if (more == 0) {
+            return true;
+        }
+        if (committedBytes + more > budgetBytes) {
+            return false;
+        }
+        committedBytes += more;
+        sequence.pages = (int) Math.max(pages, sequence.pages);
+        return true;
+    }
+
+    /**
+     * Releases the state and KV cache of a running sequence, which waits again, to be resumed from its prompt and tokens.
+     */
+    private void preempt(Sequence sequence) {
+        running.remove(sequence);
+        release(sequence);
+        sequence.position = 0;
+        waiting.add(sequence);
+        preempted++;
+    }
+
+    private void release(Sequence sequence) {
+        sequence.state.kvCache.release();
+        sequence.state = null;
+        committedBytes -= stateBytes + sequence.pages * pageBytes;
+        sequence.pages = 0;
+    }
+
+    private long pagesFor(long tokens) {
+        return (tokens + KVCache.PAGE_MASK) >>> KVCache.PAGE_SHIFT;
+    }
+
+    private Stats snapshot() {
+        return new Stats(running.size(), waiting.size() + submitted.size(), committedBytes, budgetBytes,
+                admitted, preempted, expired,
+                admitted == 0 ? 0 : totalWaitNanos / 1e6 / admitted, maxWaitNanos / 1e6);
+    }
+
+    /**
+     * Runs steps until all the sequences submitted are complete.
+     */
+    void run() {
+        while (step()) {
+            // next step
+        }
+    }
+
+    private int add(int count, Sequence sequence, int token, int position, boolean logits) {
+        tokens[count] = token;
+        owners[count] = sequence;
+        states[count] = sequence.state;
+        positions[count] = position;
+        computeLogits[count] = logits;
+        return count + 1;
+    }
+
+    private void sample(Sequence sequence) {
+        int token = sequence.sampler.sampleToken(sequence.state.logits);
+        sequence.sampler.accept(token);
+        if (sequence.generatedTokens.isEmpty()) {
+            sequence.firstTokenNanos = System.nanoTime();
+        }
+        sequence.generatedTokens.add(token);
+        if (sequence.onTokenGenerated != null) {
+            sequence.onTokenGenerated.accept(token);
+        }
+        if (sequence.stopTokens.get(token) || sequence.generatedTokens.size() >= sequence.maxTokens
+                || sequence.position >= model.configuration().contextLength) {
+            release(sequence);
+            sequence.completion.complete(sequence.generatedTokens);
+        }
+    }
+
+    record Options(Path modelPath, int tokenBudget, int sessions, int sessionTokens, int longPrompt, int contextLength, long kvMemory) {
+
+        static void printUsage(PrintStream out) {
+            out.println("Usage:  Scheduler --model <model.gguf> [options]");
+            out.println();
+            out.println("Mixed load: short sessions decoding while a long, low priority, prompt arrives, reports the inter-token");
+            out.println("latency of the sessions, the time to first token of the long prompt and the scheduler stats.");
+            out.println();
+            out.println("Options:");
+            out.println("  --model, -m <path>            required, path to .gguf file");
+            out.println("  --budget <int>                tokens per step, default 64");
+            out.println("  --sessions <int>              short sessions, default 4");
+            out.println("  --tokens <int>                tokens generated per session, default 128");
+            out.println("  --long-prompt <int>           tokens of the long prompt, default 2048");
+            out.println("  --context <int>               context length, default long prompt + 64");
+            out.println("  --kv-memory <MB>              memory of the running sequences, KV caches and state buffers, default unlimited");
+        }
+
+        static Options parseOptions(String[] args) {
+            Path modelPath = null;
+            int tokenBudget = 64;
+            int sessions = 4;
+            int sessionTokens = 128;
+            int longPrompt = 2048;
+            int contextLength = -1;
+            long kvMemory = Long.MAX_VALUE;
+            for (int i = 0; i < args.length; i++) {
+                String optionName = args[i];
+                switch (optionName) {
+                    case "--help", "-h" -> {
+                        printUsage(System.out);
+                        System.exit(0);
+                    }
+                    case "--model", "-m", "--budget", "--sessions", "--tokens", "--long-prompt", "--context", "--kv-memory" -> {
+                        if (i + 1 >= args.length) {
+                            throw new IllegalArgumentException("Missing argument for option " + optionName);
+                        }
+                        String nextArg = args[++i];
+                        switch (optionName) {
+                            case "--model", "-m" -> modelPath = Path.of(nextArg);
+                            case "--budget" -> tokenBudget = Integer.parseInt(nextArg);
+                            case "--sessions" -> sessions = Integer.parseInt(nextArg);
+                            case "--tokens" -> sessionTokens = Integer.parseInt(nextArg);
+                            case "--long-prompt" -> longPrompt = Integer.parseInt(nextArg);
+                            case "--kv-memory" -> kvMemory = Long.parseLong(nextArg) << 20;
+                            default -> contextLength = Integer.parseInt(nextArg);
+                        }
+                    }
+                    default -> throw new IllegalArgumentException("Unknown option: " + optionName);
+                }
+            }
+            if (modelPath == null) {
+                printUsage(System.err);
+                throw new IllegalArgumentException("--model is required");
+            }
+            if (contextLength < 0) {
+                contextLength = longPrompt + 64;
+            }
+            return new Options(modelPath, tokenBudget, sessions, sessionTokens, longPrompt, contextLength, kvMemory);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parseOptions(args);
+        Llama model = ModelLoader.loadModel(options.modelPath(), options.contextLength(), true);
+        int vocabularySize = model.configuration().vocabularySize;
+        Scheduler scheduler = new Scheduler(model, options.tokenBudget(), options.sessions() + 1, options.kvMemory());
+        Random random = new Random(42);
+        // random tokens and no stop token: the content doesn't matter, the load does
+        BitSet noStopTokens = new BitSet();
+        List<Long> interTokenNanos = new ArrayList<>();
+        List<Sequence> sessions = new ArrayList<>();
+        for (int s = 0; s < options.sessions(); s++) {
+            long[] lastTokenNanos = {0};
+            sessions.add(scheduler.submit(randomTokens(random, 32, vocabularySize), Llama3.selectSampler(vocabularySize, 0f, 0f, s),
+                    options.sessionTokens(), noStopTokens, token -> {
+                        long now = System.nanoTime();
+                        if (lastTokenNanos[0] != 0) {
+                            interTokenNanos.add(now - lastTokenNanos[0]);
+                        }
+                        lastTokenNanos[0] = now;
+                    }));
+        }
+        // the long prompt arrives once the sessions are decoding
+        Sequence longPrompt = null;
+        long startNanos = System.nanoTime();
+        int maxQueued = 0;
+        while (scheduler.step()) {
+            maxQueued = Math.max(maxQueued, scheduler.stats().queued());
+            if (longPrompt == null && sessions.stream().allMatch(session -> session.generatedTokens.size() >= 8)) {
+                longPrompt = scheduler.submit(randomTokens(random, options.longPrompt(), vocabularySize),
+                        Llama3.selectSampler(vocabularySize, 0f, 0f, 0), 16, noStopTokens, null, Priority.LOW, Long.MAX_VALUE);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        long[] sorted = interTokenNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        long generated = sessions.stream().mapToLong(session -> session.generatedTokens.size()).sum();
+        System.out.printf("budget %d tokens/step, %d sessions, long prompt %d tokens%n", options.tokenBudget(), options.sessions(), options.longPrompt());
+        System.out.printf("inter-token latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6);
+        if (longPrompt != null) {
+            System.out.printf("long prompt time to first token: %.1f ms%n", (longPrompt.firstTokenNanos - longPrompt.submitNanos) / 1e6);
+        }
+        System.out.printf("sessions: %.2f tokens/s (%d) in %.1f s%n", generated / (elapsedNanos / 1e9), generated, elapsedNanos / 1e9);
+        System.out.printf("max queue depth %d, %s%n", maxQueued, scheduler.stats());
+    }
+
+    private static IntList randomTokens(Random random, int count, int vocabularySize) {
+        IntList tokens = new IntList(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(random.nextInt(Math.min(vocabularySize, 1 << 14)));
+        }
+        return tokens;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+}
@@ -0,0 +1,166 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+
+/**
+ * Stop strings e.g. {@code "\n\nUser:"}, matched over the bytes of the generated tokens: a stop string may span several
+ * tokens, or end in the middle of one.
+ * <p>
+ * All the strings are compiled into one Aho-Corasick automaton with a dense transition table, a generated byte costs
+ * one lookup whatever the number of stop strings, and the response is never re-decoded. A {@link Matcher} follows one
+ * response at a time and holds back the bytes that could still be the beginning of a stop string, so the rest can be
+ * streamed and a match is trimmed before it is printed.
+ */
+final class StopSequences {
+    private final int[] transitions; // state * 256 + byte -> state
+    private final int[] depth; // bytes of the longest stop string prefix ending in the state
+    private final int[] matchLength; // length of the longest stop string ending in the state, 0 if none
+
+    StopSequences(List<String> stopSequences) {
+        List<byte[]> patterns = stopSequences.stream().map(s -> s.getBytes(StandardCharsets.UTF_8)).toList();
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Empty stop sequence");
+            }
+            maxStates += pattern.length;
+        }
+        int[] transitions = new int[maxStates * 256];
+        Arrays.fill(transitions, -1);
+        int[] depth = new int[maxStates];
+        int[] matchLength = new int[maxStates];
+        // Trie of the stop strings.
+        int stateCount = 1;
+        for (byte[] pattern : patterns) {
+            int state = 0;
+            for (byte b : pattern) {
+                int index = state * 256 + (b & 0xFF);
+                if (transitions[index] < 0) {
+                    depth[stateCount] = depth[state] + 1;
+                    transitions[index] = stateCount++;
+                }
+                state = transitions[index];
+            }
+            matchLength[state] = pattern.length;
+        }
+        // Failure links, breadth-first: a missing transition is the failure state's, computed before (shallower).
+        int[] failure = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        for (int b = 0; b < 256; b++) {
+            if (transitions[b] < 0) {
+                transitions[b] = 0;
+            } else {
+                queue[tail++] = transitions[b];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int b = 0; b < 256; b++) {
+                int index = state * 256 + b;
+                int fallback = transitions[failure[state] * 256 + b];
+                if (transitions[index] < 0) {
+                    transitions[index] = fallback;
+                } else {
+                    int child = transitions[index];
+                    failure[child] = fallback;
+                    if (matchLength[child] == 0) {
+                        matchLength[child] = matchLength[fallback];
+                    }
+                    queue[tail++] = child;
+                }
+            }
+        }
+        this.transitions = Arrays.copyOf(transitions, stateCount * 256);
+        this.depth = Arrays.copyOf(depth, stateCount);
+        this.matchLength = Arrays.copyOf(matchLength, stateCount);
+    }
+
+    Matcher matcher() {
+        return new Matcher();
+    }
+
+    /**
+     * Matches the stop strings over a response, fed token by token, and keeps the response bytes.
+     * Not thread-safe, one per response (or {@link #reset()} between responses).
+     */
+    final class Matcher {
+        private byte[] bytes = new byte[256];
+        private int length;
+        private int state;
+        private boolean matched;
+        private int printed;
+
+        /**
+         * Appends the bytes {@code tokenBytes[offset, offset + count)} of a generated token, returns true once a stop
+         * string is matched: the response then ends right before it, the rest of the token included, and further bytes
+         * are ignored.
+         */
+        boolean accept(byte[] tokenBytes, int offset, int count) {
+            if (matched) {
+                return true;
+            }
+            for (int i = offset; i < offset + count; i++) {
+                byte b = tokenBytes[i];
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, 2 * length);
+                }
+                bytes[length++] = b;
+                state = transitions[state * 256 + (b & 0xFF)];
+                if (matchLength[state] > 0) {
+                    length -= matchLength[state];
+                    matched = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean matched() {
+            return matched;
+        }
+
+        /**
+         * Length of the response prefix that cannot be part of a stop string anymore, the rest is held back.
+         */
+        int safeLength() {
+            return matched ? length : length - depth[state];
+        }
+
+        /**
+         * The response, without the stop string, if matched.
+         */
+        String text() {
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Streams the response bytes that cannot be part of a stop string anymore, and were not printed yet.
+         */
+        void print(StreamingDecoder decoder, PrintStream out) {
+            int safeLength = safeLength();
+            decoder.print(bytes, printed, safeLength, out);
+            printed = safeLength;
+        }
+
+        /**
+         * Streams the rest of the response, the held back bytes included, once it has ended.
+         */
+        void flush(StreamingDecoder decoder, PrintStream out) {
+            decoder.print(bytes, printed, length, out);
+            printed = length;
+            decoder.flush(out);
+        }
+
+        void reset() {
+            length = 0;
+            state = 0;
+            matched = false;
+            printed = 0;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Incremental detokenizer for streaming: multi-byte UTF-8 characters may span several tokens.
+ * <p>
+ * Only complete UTF-8 sequences are emitted, an incomplete tail (at most 3 bytes) is kept until the next token.
+ * Bytes come from {@link Tokenizer#tokenBytes()} and are decoded into a reused buffer, nothing is allocated per token.
+ * Malformed bytes are replaced by U+FFFD.
+ */
+final class StreamingDecoder {
+    private final Tokenizer tokenizer;
+    private final byte[] pending = new byte[4];
+    private int pendingLength;
+    private final StringBuilder text = new StringBuilder();
+    // encode the text for a PrintStream, reused: no String per token
+    private CharsetEncoder encoder;
+    private CharBuffer chars = CharBuffer.allocate(64);
+    private ByteBuffer bytes = ByteBuffer.allocate(256);
+
+    StreamingDecoder(Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Appends the text completed by {@code token} to {@code out}.
+     */
+    void decode(int token, StringBuilder out) {
+        Tokenizer.TokenBytes tokenBytes = tokenizer.tokenBytes();
+        int offset = tokenBytes.offset(token);
+        decode(tokenBytes.bytes(), offset, offset + tokenBytes.length(token), out);
+    }
+
+    /**
+     * Appends the text completed by {@code bytes[offset, end)} to {@code out}.
+     */
+    void decode(byte[] bytes, int offset, int end, StringBuilder out) {
+        int i = offset;
+        // complete the pending sequence first, byte by byte
+        while (pendingLength > 0) {
+            int consumed = decodeSequence(pending, 0, pendingLength, false, out);
+            if (consumed > 0) {
+                pendingLength -= consumed;
+                System.arraycopy(pending, consumed, pending, 0, pendingLength);
+            } else if (i < end) {
+                pending[pendingLength++] = bytes[i++];
+            } else {
+                return; // still incomplete
+            }
+        }
+        while (i < end) {
+            int consumed = decodeSequence(bytes, i, end, false, out);
+            if (consumed == 0) {
+                // incomplete, wait for the next token
+                pendingLength = end - i;
+                System.arraycopy(bytes, i, pending, 0, pendingLength);
+                return;
+            }
+            i += consumed;
+        }
+    }
+
+    /**
+     * Appends whatever is still pending, as U+FFFD, and resets the decoder.
+     */
+    void flush(StringBuilder out) {
+        int i = 0;
+        while (i < pendingLength) {
+            i += decodeSequence(pending, i, pendingLength, true, out);
+        }
+        pendingLength = 0;
+    }
+
+    void print(int token, PrintStream out) {
+        text.setLength(0);
+        decode(token, text);
+        write(out);
+    }
+
+    void print(byte[] bytes, int offset, int end, PrintStream out) {
+        text.setLength(0);
+        decode(bytes, offset, end, text);
+        write(out);
+    }
+
+    void flush(PrintStream out) {
+        text.setLength(0);
+        flush(text);
+        write(out);
+    }
+
+    /**
+     * Writes {@code text} to {@code out}, encoded in its charset through the reused buffers.
+     */
+    private void write(PrintStream out) {
+        int length = text.length();
+        if (length == 0) {
+            return;
+        }
+        if (encoder == null || !encoder.charset().equals(out.charset())) {
+            encoder = out.charset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, 2 * chars.capacity()));
+        }
+        int maxBytes = (int) Math.ceil(length * (double) encoder.maxBytesPerChar());
+        if (bytes.capacity() < maxBytes) {
+            bytes = ByteBuffer.allocate(Math.max(maxBytes, 2 * bytes.capacity()));
+        }
+        text.getChars(0, length, chars.array(), 0);
+        chars.clear().limit(length);
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(chars, bytes, true);
+        encoder.flush(bytes);
+        out.write(bytes.array(), 0, bytes.position());
+    }
+
+    /**
+     * Decodes the UTF-8 sequence at {@code bytes[offset]}, returns the number of bytes consumed, or 0 if the sequence is
+     * incomplete (and {@code endOfInput} is false).
+     */
+    private static int decodeSequence(byte[] bytes, int offset, int end, boolean endOfInput, StringBuilder out) {
+        int b0 = bytes[offset] & 0xFF;
+        if (b0 < 0x80) {
+            out.append((char) b0);
+            return 1;
+        }
+        int length;
+        int codePoint;
+        int min2 = 0x80;
+        int max2 = 0xBF;
+        if (b0 >= 0xC2 && b0 <= 0xDF) {
+            length = 2;
+            codePoint = b0 & 0x1F;
+        } else if (b0 >= 0xE0 && b0 <= 0xEF) {
+            length = 3;
+            codePoint = b0 & 0x0F;
+            if (b0 == 0xE0) {
+                min2 = 0xA0; // overlong
+            } else if (b0 == 0xED) {
+                max2 = 0x9F; // surrogates
+            }
+        } else if (b0 >= 0xF0 && b0 <= 0xF4) {
+            length = 4;
+            codePoint = b0 & 0x07;
+            if (b0 == 0xF0) {
+                min2 = 0x90; // overlong
+            } else if (b0 == 0xF4) {
+                max2 = 0x8F; // > U+10FFFF
+            }
+        } else {
+            out.append('\uFFFD');
+            return 1;
+        }
+        for (int k = 1; k < length; k++) {
+            if (offset + k >= end) {
+                if (endOfInput) {
+                    out.append('\uFFFD');
+                    return k;
+                }
+                return 0;
+            }
+            int b = bytes[offset + k] & 0xFF;
+            if (b < (k == 1 ? min2 : 0x80) || b > (k == 1 ? max2 : 0xBF)) {
+                // malformed, replace the valid prefix
+                out.append('\uFFFD');
+                return k;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        out.appendCodePoint(codePoint);
+        return length;
+    }
+}
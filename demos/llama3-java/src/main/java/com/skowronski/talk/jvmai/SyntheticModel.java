@@ -0,0 +1,236 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates Llama 3 GGUF models of any shape with random weights, for hermetic end-to-end benchmarks.
+ *
+ * <p>
+ * The models carry the regular Llama 3 metadata and a minimal byte-level BPE tokenizer (byte tokens, merges forming
+ * ASCII words, Llama 3 special tokens) and load through the normal {@link ModelLoader} path. Weights are drawn from
+ * N(0, 0.02) with a fixed seed, the same options always produce the same file. The output is nonsense, but tokens/s,
+ * time to first token and memory are representative of a real model of the same shape and type.
+ */
+final class SyntheticModel {
+
+    private static final List<String> SPECIAL_TOKENS = List.of(
+            "<|begin_of_text|>", "<|end_of_text|>", "<|reserved_special_token_0|>", "<|reserved_special_token_1|>",
+            "<|finetune_right_pad_id|>", "<|reserved_special_token_2|>", "<|start_header_id|>", "<|end_header_id|>",
+            "<|eom_id|>", "<|eot_id|>", "<|python_tag|>");
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+    private static final float WEIGHT_STDDEV = 0.02f;
+
+    record Options(Path output, int dim, int hiddenDim, int numberOfLayers, int numberOfHeads, int numberOfKeyValueHeads,
+                   int vocabularySize, int contextLength, GGMLType ggmlType, long seed) {
+
+        Options {
+            require(dim % numberOfHeads == 0, "--dim must be a multiple of --heads");
+            require(numberOfHeads % numberOfKeyValueHeads == 0, "--heads must be a multiple of --kv-heads");
+            require(vocabularySize >= 256 + SPECIAL_TOKENS.size(), "--vocab must be at least " + (256 + SPECIAL_TOKENS.size()));
+            require(dim % ggmlType.getBlockSize() == 0 && hiddenDim % ggmlType.getBlockSize() == 0,
+                    "--dim and --hidden-dim must be multiples of the " + ggmlType + " block size");
+            require(switch (ggmlType) {
+                case F16, BF16, Q8_0, Q4_0 -> true;
+                default -> false;
+            }, "--type must be one of F16, BF16, Q8_0 or Q4_0");
+        }
+
+        private static void require(boolean condition, String message) {
+            if (!condition) {
+                System.err.println(message);
+                printUsage(System.err);
+                System.exit(-1);
+            }
+        }
+
+        static void printUsage(PrintStream out) {
+            out.println("Usage:  SyntheticModel --output <model.gguf> [options]");
+            out.println();
+            out.println("Options:");
+            out.println("  --output, -o <path>           required, output GGUF model");
+            out.println("  --dim <int>                   embedding length, default 2048");
+            out.println("  --hidden-dim <int>            feed forward length, default 8192");
+            out.println("  --layers <int>                number of layers, default 16");
+            out.println("  --heads <int>                 number of attention heads, default 32");
+            out.println("  --kv-heads <int>              number of key/value heads, default 8");
+            out.println("  --vocab <int>                 vocabulary size (special tokens included), default 128256");
+            out.println("  --context <int>               context length, default 8192");
+            out.println("  --type, -t <type>             type of the weight matrices: F16, BF16, Q8_0 or Q4_0, default Q8_0");
+            out.println("  --seed <long>                 random seed, default 42");
+            out.println();
+            out.println("The defaults match the shape of Llama 3.2 1B.");
+        }
+
+        static Options parseOptions(String[] args) {
+            Path output = null;
+            int dim = 2048;
+            int hiddenDim = 8192;
+            int numberOfLayers = 16;
+            int numberOfHeads = 32;
+            int numberOfKeyValueHeads = 8;
+            int vocabularySize = 128256;
+            int contextLength = 8192;
+            GGMLType ggmlType = GGMLType.Q8_0;
+            long seed = 42;
+            for (int i = 0; i < args.length; i++) {
+                String optionName = args[i];
+                if (optionName.equals("--help") || optionName.equals("-h")) {
+                    printUsage(System.out);
+                    System.exit(0);
+                }
+                require(i + 1 < args.length, "Missing argument for option " + optionName);
+                String nextArg = args[++i];
+                switch (optionName) {
+                    case "--output", "-o" -> output = Path.of(nextArg);
+                    case "--dim" -> dim = Integer.parseInt(nextArg);
+                    case "--hidden-dim" -> hiddenDim = Integer.parseInt(nextArg);
+                    case "--layers" -> numberOfLayers = Integer.parseInt(nextArg);
+                    case "--heads" -> numberOfHeads = Integer.parseInt(nextArg);
+                    case "--kv-heads" -> numberOfKeyValueHeads = Integer.parseInt(nextArg);
+                    case "--vocab" -> vocabularySize = Integer.parseInt(nextArg);
+                    case "--context" -> contextLength = Integer.parseInt(nextArg);
+                    case "--type", "-t" -> ggmlType = GGMLType.valueOf(nextArg.toUpperCase());
+                    case "--seed" -> seed = Long.parseLong(nextArg);
+                    default -> require(false, "Unknown option: " + optionName);
+                }
+            }
+            require(output != null, "--output is required");
+            return new Options(output, dim, hiddenDim, numberOfLayers, numberOfHeads, numberOfKeyValueHeads,
+                    vocabularySize, contextLength, ggmlType, seed);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parseOptions(args);
+        GGUFWriter writer = new GGUFWriter();
+        putMetadata(writer, options);
+        putTokenizer(writer, options.vocabularySize());
+
+        int dim = options.dim();
+        int kvDim = dim * options.numberOfKeyValueHeads() / options.numberOfHeads();
+        GGMLType type = options.ggmlType();
+        addMatrix(writer, options, "token_embd.weight", dim, options.vocabularySize());
+        for (int layer = 0; layer < options.numberOfLayers(); layer++) {
+            String prefix = "blk." + layer + ".";
+            addNorm(writer, prefix + "attn_norm.weight", dim);
+            addMatrix(writer, options, prefix + "attn_q.weight", dim, dim);
+            addMatrix(writer, options, prefix + "attn_k.weight", dim, kvDim);
+            addMatrix(writer, options, prefix + "attn_v.weight", dim, kvDim);
+            addMatrix(writer, options, prefix + "attn_output.weight", dim, dim);
+            addNorm(writer, prefix + "ffn_norm.weight", dim);
+            addMatrix(writer, options, prefix + "ffn_gate.weight", dim, options.hiddenDim());
+            addMatrix(writer, options, prefix + "ffn_up.weight", dim, options.hiddenDim());
+            addMatrix(writer, options, prefix + "ffn_down.weight", options.hiddenDim(), dim);
+        }
+        addNorm(writer, "output_norm.weight", dim);
+        // No output.weight, the classifier is tied to the token embeddings as in Llama 3.2.
+
+        writer.write(options.output());
+        long tensorBytes = writer.tensors().stream().mapToLong(GGUFWriter.Tensor::byteSize).sum();
+        System.err.printf("Wrote %s: %d layers, dim %d, vocab %d, %s, %.1f MB of tensor data%n",
+                options.output(), options.numberOfLayers(), dim, options.vocabularySize(), type, tensorBytes / 1e6);
+    }
+
+    private static void putMetadata(GGUFWriter writer, Options options) {
+        writer.putMetadata("general.architecture", GGUF.MetadataValueType.STRING, "llama")
+                .putMetadata("general.name", GGUF.MetadataValueType.STRING, "synthetic")
+                .putMetadata("general.file_type", GGUF.MetadataValueType.UINT32, GGUFQuantizer.fileType(options.ggmlType()))
+                .putMetadata("general.quantization_version", GGUF.MetadataValueType.UINT32, 2)
+                .putMetadata("llama.embedding_length", GGUF.MetadataValueType.UINT32, options.dim())
+                .putMetadata("llama.feed_forward_length", GGUF.MetadataValueType.UINT32, options.hiddenDim())
+                .putMetadata("llama.block_count", GGUF.MetadataValueType.UINT32, options.numberOfLayers())
+                .putMetadata("llama.attention.head_count", GGUF.MetadataValueType.UINT32, options.numberOfHeads())
+                .putMetadata("llama.attention.head_count_kv", GGUF.MetadataValueType.UINT32, options.numberOfKeyValueHeads())
+                .putMetadata("llama.context_length", GGUF.MetadataValueType.UINT32, options.contextLength())
+                .putMetadata("llama.attention.layer_norm_rms_epsilon", GGUF.MetadataValueType.FLOAT32, 1e-5f)
+                .putMetadata("llama.rope.freq_base", GGUF.MetadataValueType.FLOAT32, 500000f);
+    }
+
+    /**
+     * Byte tokens first, then merged tokens (merge i produces token 256 + i), padding and the special tokens last.
+     */
+    private static void putTokenizer(GGUFWriter writer, int vocabularySize) {
+        int baseTokens = vocabularySize - SPECIAL_TOKENS.size();
+        List<String> tokens = new ArrayList<>(vocabularySize);
+        for (int b = 0; b < 256; b++) {
+            tokens.add(Character.toString(Tokenizer.BYTE_ENCODER.get(b)));
+        }
+
+        // Words of increasing length, with and without a leading space: "Ġa".."Ġz", "aa".."zz", "Ġaa", "aaa", ...
+        String space = Character.toString(Tokenizer.BYTE_ENCODER.get((int) ' '));
+        int mergeCount = baseTokens - tokens.size();
+        List<String> merges = new ArrayList<>(mergeCount);
+        List<String> previous = new ArrayList<>();
+        for (char c : LETTERS.toCharArray()) {
+            addMerge(merges, mergeCount, previous, space, String.valueOf(c));
+        }
+        for (char a : LETTERS.toCharArray()) {
+            for (char b : LETTERS.toCharArray()) {
+                addMerge(merges, mergeCount, previous, String.valueOf(a), String.valueOf(b));
+            }
+        }
+        while (merges.size() < mergeCount) {
+            List<String> next = new ArrayList<>();
+            for (String prefix : previous) {
+                for (char c : LETTERS.toCharArray()) {
+                    addMerge(merges, mergeCount, next, prefix, String.valueOf(c));
+                }
+            }
+            previous = next;
+        }
+        for (String merge : merges) {
+            tokens.add(merge.replace(" ", ""));
+        }
+        tokens.addAll(SPECIAL_TOKENS);
+
+        int[] tokenTypes = new int[tokens.size()];
+        for (int i = 0; i < tokenTypes.length; i++) {
+            tokenTypes[i] = i < baseTokens ? 1 : 3; // normal, control
+        }
+        writer.putMetadata("tokenizer.ggml.model", GGUF.MetadataValueType.STRING, "gpt2")
+                .putMetadata("tokenizer.ggml.pre", GGUF.MetadataValueType.STRING, "llama-bpe")
+                .putArray("tokenizer.ggml.tokens", GGUF.MetadataValueType.STRING, tokens.toArray(String[]::new))
+                .putArray("tokenizer.ggml.token_type", GGUF.MetadataValueType.INT32, tokenTypes)
+                .putArray("tokenizer.ggml.merges", GGUF.MetadataValueType.STRING, merges.toArray(String[]::new))
+                .putMetadata("tokenizer.ggml.bos_token_id", GGUF.MetadataValueType.UINT32, baseTokens)
+                .putMetadata("tokenizer.ggml.eos_token_id", GGUF.MetadataValueType.UINT32, baseTokens + SPECIAL_TOKENS.indexOf("<|eot_id|>"));
+    }
+
+    private static void addMerge(List<String> merges, int mergeCount, List<String> merged, String first, String second) {
+        if (merges.size() < mergeCount) {
+            merges.add(first + " " + second);
+            merged.add(first + second);
+        }
+    }
+
+    private static void addNorm(GGUFWriter writer, String name, int size) {
+        writer.addTensor(name, new int[]{size}, GGMLType.F32, (firstRow, rowCount, target) -> {
+            float[] ones = new float[size];
+            Arrays.fill(ones, 1f);
+            GGUFQuantizer.quantize(ones, 0, size, GGMLType.F32, target, 0);
+        });
+    }
+
+    private static void addMatrix(GGUFWriter writer, Options options, String name, int rowSize, int rowCount) {
+        GGMLType type = options.ggmlType();
+        long rowBytes = type.byteSizeFor(rowSize);
+        long tensorSeed = options.seed() ^ name.hashCode();
+        writer.addTensor(name, new int[]{rowSize, rowCount}, type, (firstRow, count, target) -> {
+            float[] row = new float[rowSize];
+            for (int r = 0; r < count; r++) {
+                // Seeded per row: the content does not depend on how rows are split across tasks.
+                SplittableRandom random = new SplittableRandom(tensorSeed * 31 + firstRow + r);
+                for (int i = 0; i < rowSize; i++) {
+                    row[i] = (float) random.nextGaussian() * WEIGHT_STDDEV;
+                }
+                GGUFQuantizer.quantize(row, 0, rowSize, type, target, r * rowBytes);
+            }
+        });
+    }
+}
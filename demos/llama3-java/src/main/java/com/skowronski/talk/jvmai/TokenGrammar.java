@@ -0,0 +1,188 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link Grammar} over the token vocabulary: for each automaton state, the bitset of tokens whose bytes keep the
+ * output matching (a prefix of) the grammar, and the tokens forced because the grammar leaves no choice.
+ *
+ * <p>
+ * Masks are computed by walking the {@link TokenTrie} along the automaton, pruning a whole subtree on a dead end,
+ * then cached for the lifetime of the grammar: a state is walked once, later visits cost a lookup. Stop tokens are
+ * allowed only in accepting states. Thread-safe, a racing computation of the same state is merely redundant.
+ */
+final class TokenGrammar {
+    // Eager mask precomputation is skipped above this footprint, masks are then computed on first visit.
+    private static final long MAX_PRECOMPUTED_BYTES = 256L << 20;
+    // Longest deterministic span considered for forcing.
+    private static final int MAX_SPAN_BYTES = 1024;
+    // Allowed tokens are listed, to compute their logits only, up to this many.
+    private static final int MAX_CANDIDATES = 4096;
+
+    /**
+     * @param tokens the allowed tokens if there are at most {@value #MAX_CANDIDATES}, null otherwise
+     */
+    record Mask(long[] bits, int[] tokens, int uniqueToken) {
+    }
+
+    private final Grammar grammar;
+    private final Tokenizer tokenizer;
+    private final TokenTrie trie;
+    private final BitSet stopTokens;
+    private final int endToken;
+    private final int words;
+    private final AtomicReferenceArray<Mask> masks;
+    private final AtomicReferenceArray<int[]> forcedSpans;
+    // Stack of the trie walk, per thread, states are computed in parallel.
+    private final ThreadLocal<Walk> walks;
+
+    private record Walk(int[] nodes, int[] states) {
+    }
+
+    /**
+     * @param vocabularySize number of logits, may be larger than the tokenizer vocabulary
+     * @param stopTokens     allowed once the grammar accepts
+     * @param endToken       stop token forced when the grammar is complete (accepts and nothing may follow)
+     */
+    TokenGrammar(Grammar grammar, Tokenizer tokenizer, int vocabularySize, BitSet stopTokens, int endToken) {
+        this.grammar = grammar;
+        this.tokenizer = tokenizer;
+        this.trie = tokenizer.tokenTrie();
+        this.stopTokens = stopTokens;
+        this.endToken = endToken;
+        this.words = (Math.max(vocabularySize, tokenizer.getVocabulary().size()) + 63) / 64;
+        this.masks = new AtomicReferenceArray<>(grammar.stateCount());
+        this.forcedSpans = new AtomicReferenceArray<>(grammar.stateCount());
+        this.walks = ThreadLocal.withInitial(() -> new Walk(new int[trie.size()], new int[trie.size()]));
+    }
+
+    Grammar grammar() {
+        return grammar;
+    }
+
+    /**
+     * Computes the masks of all the states in parallel, unless they would take more than 256 MB.
+     */
+    void precompute() {
+        if ((long) grammar.stateCount() * words * Long.BYTES > MAX_PRECOMPUTED_BYTES) {
+            return;
+        }
+        try (var ignored = Timer.log("Precompute token masks (" + grammar.stateCount() + " states)")) {
+            Parallel.parallelFor(0, grammar.stateCount(), this::mask);
+        }
+    }
+
+    Mask mask(int state) {
+        Mask mask = masks.get(state);
+        if (mask == null) {
+            mask = computeMask(state);
+            masks.set(state, mask);
+        }
+        return mask;
+    }
+
+    private Mask computeMask(int state) {
+        long[] bits = new long[words];
+        int count = 0;
+        int lastToken = -1;
+        // Depth-first walk of the trie along the automaton.
+        Walk walk = walks.get();
+        int[] nodes = walk.nodes();
+        int[] states = walk.states();
+        int top = 0;
+        nodes[top] = TokenTrie.ROOT;
+        states[top++] = state;
+        while (top > 0) {
+            int node = nodes[--top];
+            int nodeState = states[top];
+            for (int child = trie.firstChild[node]; child >= 0; child = trie.nextSibling[child]) {
+                int next = grammar.next(nodeState, trie.label[child]);
+                if (next < 0) {
+                    continue;
+                }
+                int token = trie.token[child];
+                if (token >= 0) {
+                    bits[token >>> 6] |= 1L << token;
+                    count++;
+                    lastToken = token;
+                }
+                if (trie.firstChild[child] >= 0) {
+                    nodes[top] = child;
+                    states[top++] = next;
+                }
+            }
+        }
+        int uniqueToken = -1;
+        if (grammar.isAccepting(state)) {
+            for (int token = stopTokens.nextSetBit(0); token >= 0; token = stopTokens.nextSetBit(token + 1)) {
+                bits[token >>> 6] |= 1L << token;
+            }
+            if (count == 0) {
+                uniqueToken = endToken;
+            }
+        } else if (count == 1) {
+            uniqueToken = lastToken;
+        }
+        int[] tokens = null;
+        if (count + stopTokens.cardinality() <= MAX_CANDIDATES) {
+            tokens = new int[count + stopTokens.cardinality()];
+            int n = 0;
+            for (int i = 0; i < bits.length; i++) {
+                for (long word = bits[i]; word != 0; word &= word - 1) {
+                    tokens[n++] = i * 64 + Long.numberOfTrailingZeros(word);
+                }
+            }
+            tokens = Arrays.copyOf(tokens, n);
+        }
+        return new Mask(bits, tokens, uniqueToken);
+    }
+
+    /**
+     * Tokens forced from {@code state}: the encoding of the deterministic byte span that follows, but its last token,
+     * which could merge with what comes next, unless the grammar ends there.
+     */
+    int[] forcedSpan(int state) {
+        int[] span = forcedSpans.get(state);
+        if (span == null) {
+            span = computeForcedSpan(state);
+            forcedSpans.set(state, span);
+        }
+        return span;
+    }
+
+    private int[] computeForcedSpan(int state) {
+        StringBuilder mappedBytes = new StringBuilder();
+        int end = state;
+        for (int b; mappedBytes.length() < MAX_SPAN_BYTES && (b = grammar.singleByte(end)) >= 0; end = grammar.next(end, b)) {
+            mappedBytes.appendCodePoint(Tokenizer.BYTE_ENCODER.get(b));
+        }
+        if (mappedBytes.isEmpty()) {
+            return new int[0];
+        }
+        IntList ids = new IntList();
+        tokenizer.encodeOrdinary(mappedBytes.toString(), ids);
+        boolean complete = grammar.isAccepting(end) && grammar.singleByte(end) < 0 && mask(end).uniqueToken() == endToken;
+        return complete ? ids.toArray() : Arrays.copyOf(ids.toArray(), ids.size() - 1);
+    }
+
+    /**
+     * State after {@code token}, -1 if the token is not allowed.
+     */
+    int next(int state, int token) {
+        Tokenizer.TokenBytes tokenBytes = tokenizer.tokenBytes();
+        return grammar.next(state, tokenBytes.bytes(), tokenBytes.offset(token), tokenBytes.length(token));
+    }
+
+    /**
+     * The quoted text of {@code token}, for error messages.
+     */
+    String describe(int token) {
+        return "'" + Tokenizer.replaceControlCharacters(tokenizer.tokenBytes().toString(token)) + "'";
+    }
+
+    boolean isStopToken(int token) {
+        return stopTokens.get(token);
+    }
+}
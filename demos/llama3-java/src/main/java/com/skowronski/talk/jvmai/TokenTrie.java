@@ -0,0 +1,90 @@
+package com.skowronski.talk.jvmai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte trie of the (non-special) vocabulary tokens, children in increasing byte order.
+ */
+final class TokenTrie {
+    static final int ROOT = 0;
+
+    final int[] firstChild;
+    final int[] nextSibling;
+    final byte[] label;
+    final int[] token; // token ending at the node, -1 if none
+
+    private TokenTrie(int[] firstChild, int[] nextSibling, byte[] label, int[] token) {
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.label = label;
+        this.token = token;
+    }
+
+    static TokenTrie of(Tokenizer tokenizer) {
+        int vocabularySize = tokenizer.getVocabulary().size();
+        Tokenizer.TokenBytes tokenBytes = tokenizer.tokenBytes();
+        byte[] all = tokenBytes.bytes();
+        List<Integer> tokens = new ArrayList<>(vocabularySize);
+        int totalBytes = 0;
+        for (int i = 0; i < vocabularySize; i++) {
+            if (!tokenizer.isSpecialToken(i) && tokenBytes.length(i) > 0) {
+                tokens.add(i);
+                totalBytes += tokenBytes.length(i);
+            }
+        }
+        tokens.sort((a, b) -> Arrays.compareUnsigned(all, tokenBytes.offset(a), tokenBytes.offset(a + 1),
+                all, tokenBytes.offset(b), tokenBytes.offset(b + 1)));
+
+        // Sorted insertion: the path of the previous token is reused up to the common prefix.
+        int capacity = totalBytes + 1;
+        int[] firstChild = new int[capacity];
+        int[] nextSibling = new int[capacity];
+        int[] lastChild = new int[capacity];
+        byte[] label = new byte[capacity];
+        int[] token = new int[capacity];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+        Arrays.fill(lastChild, -1);
+        Arrays.fill(token, -1);
+        int nodes = 1;
+        int[] path = new int[1];
+        int previousOffset = 0;
+        int previousLength = 0;
+        for (int id : tokens) {
+            int offset = tokenBytes.offset(id);
+            int length = tokenBytes.length(id);
+            if (path.length < length + 1) {
+                path = Arrays.copyOf(path, length + 1);
+            }
+            int common = Arrays.mismatch(all, previousOffset, previousOffset + previousLength, all, offset, offset + length);
+            if (common < 0) {
+                common = length; // duplicate, keeps the first id
+            }
+            for (int depth = common; depth < length; depth++) {
+                int parent = path[depth];
+                int node = nodes++;
+                label[node] = all[offset + depth];
+                if (lastChild[parent] < 0) {
+                    firstChild[parent] = node;
+                } else {
+                    nextSibling[lastChild[parent]] = node;
+                }
+                lastChild[parent] = node;
+                path[depth + 1] = node;
+            }
+            int leaf = path[length];
+            if (token[leaf] < 0) {
+                token[leaf] = id;
+            }
+            previousOffset = offset;
+            previousLength = length;
+        }
+        return new TokenTrie(Arrays.copyOf(firstChild, nodes), Arrays.copyOf(nextSibling, nodes), Arrays.copyOf(label, nodes), Arrays.copyOf(token, nodes));
+    }
+
+    int size() {
+        return token.length;
+    }
+}
@@ -0,0 +1,369 @@
+package com.skowronski.talk.jvmai;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Byte Pair Encoding tokenizer.
+ * <p>
+ * Based on <a href="https://github.com/karpathy/minbpe">minbpe</a>, algorithmically follows along the
+ * <a href="https://github.com/openai/gpt-2/blob/master/src/encoder.py">GPT 2 tokenizer</a>
+ */
+class Tokenizer {
+    private final Pattern compiledPattern;
+    private final Vocabulary vocabulary;
+    private final MergeTable merges;
+    private final Map<String, Integer> specialTokens;
+    private final BitSet specialTokenIds;
+    // byte tokens, indexed by the BYTE_ENCODER code point of the byte
+    private final int[] charToToken;
+    // the pattern is the Llama 3 one, split with Llama3PreTokenizer instead
+    private final boolean preTokenizer;
+    private volatile TokenBytes tokenBytes;
+    private TokenTrie tokenTrie;
+    private final ChunkCache chunkCache = ChunkCache.CAPACITY > 0 ? new ChunkCache(ChunkCache.CAPACITY) : null;
+
+    public String regexPattern() {
+        if (compiledPattern == null) {
+            return null;
+        }
+        return compiledPattern.pattern();
+    }
+
+    public Map<String, Integer> getSpecialTokens() {
+        return specialTokens;
+    }
+
+    public boolean isSpecialToken(int tokenIndex) {
+        return specialTokenIds.get(tokenIndex);
+    }
+
+    public Vocabulary getVocabulary() {
+        return vocabulary;
+    }
+
+    MergeTable getMerges() {
+        return merges;
+    }
+
+    public Tokenizer(Vocabulary vocabulary, MergeTable merges, String regexPattern, Map<String, Integer> specialTokens) {
+        this.vocabulary = vocabulary;
+        this.compiledPattern = regexPattern != null ? Pattern.compile(regexPattern) : null;
+        this.preTokenizer = Llama3PreTokenizer.ENABLED && Llama3PreTokenizer.PATTERN.equals(regexPattern);
+        this.specialTokens = new HashMap<>(specialTokens);
+        this.specialTokenIds = new BitSet(vocabulary.size());
+        specialTokens.values().forEach(specialTokenIds::set);
+        this.merges = merges;
+        this.charToToken = new int[BYTE_DECODER.keySet().stream().mapToInt(Integer::intValue).max().orElseThrow() + 1];
+        Arrays.fill(charToToken, -1);
+        for (int codePoint : BYTE_DECODER.keySet()) {
+            charToToken[codePoint] = vocabulary.getIndex(Character.toString(codePoint)).orElse(-1);
+        }
+    }
+
+    private int[] encodeImpl(String text) {
+        IntList ids = new IntList();
+        encodeOrdinary(text, ids);
+        return ids.toArray();
+    }
+
+    /**
+     * Unlike {@link #encodeOrdinary(String)}, this function handles special tokens.
+     * allowed_special: can be "all"|"none"|"none_raise" or a custom set of special tokens
+     * if none_raise, then an error is raised if any special token is encountered in text
+     * this is the default tiktoken behavior right now as well
+     * any other behavior is either annoying, or a major footgun.
+     */
+    List<Integer> encode(String text, Set<String> allowedSpecial) {
+        // decode the user desire w.r.t. handling of special tokens
+        Set<String> special = allowedSpecial;
+        assert getSpecialTokens().keySet().containsAll(special);
+        if (special.isEmpty()) {
+            // shortcut: if no special tokens, just use the ordinary encoding
+            return encodeOrdinary(text);
+        }
+
+        // otherwise, we have to be careful with potential special tokens in text
+        // we handle special tokens by splitting the text
+        // based on the occurrence of any exact match with any of the special tokens
+        // we can use re.split for this. note that surrounding the pattern with ()
+        // makes it into a capturing group, so the special tokens will be included
+        String specialPattern = special
+                .stream()
+                .map(Pattern::quote)
+                .collect(Collectors.joining("|", "(", ")"));
+
+        String[] specialChunks = text.split(specialPattern);
+        // now all the special characters are separated from the rest of the text
+        // all chunks of text are encoded separately, then results are joined
+        List<Integer> ids = new ArrayList<>();
+        for (String part : specialChunks) {
+            if (special.contains(part)) {
+                // this is a special token, encode it separately as a special case
+                ids.add(getSpecialTokens().get(part));
+            } else {
+                // this is an ordinary sequence, encode it normally
+                ids.addAll(encodeOrdinary(part));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Encoding that ignores any special tokens.
+     */
+    public List<Integer> encodeOrdinary(String text) {
+        IntList ids = new IntList();
+        encodeOrdinary(text, ids);
+        return ids.boxed();
+    }
+
+    /**
+     * Encodes text already mapped by {@link #BYTE_ENCODER} (one char per UTF-8 byte), ignoring special tokens.
+     */
+    void encodeOrdinary(String text, IntList ids) {
+        BytePairEncoder encoder = new BytePairEncoder(merges);
+        if (preTokenizer) {
+            // same chunks as the regex, as offsets
+            for (int start = 0, end; start < text.length(); start = end) {
+                end = Llama3PreTokenizer.chunkEnd(text, start);
+                encodeChunk(text, start, end, encoder, ids);
+            }
+            return;
+        }
+        // split text into chunks of text by categories defined in regex pattern
+        Matcher matcher = compiledPattern.matcher(text);
+        // all chunks of text are encoded separately, then results are joined
+        while (matcher.find()) {
+            encodeChunk(text, matcher.start(), matcher.end(), encoder, ids);
+        }
+    }
+
+    private void encodeChunk(String text, int start, int end, BytePairEncoder encoder, IntList ids) {
+        int hash = 0;
+        if (chunkCache != null && end - start <= ChunkCache.MAX_CHUNK_LENGTH) {
+            hash = ChunkCache.hash(text, start, end);
+            int[] cached = chunkCache.get(text, start, end, hash);
+            if (cached != null) {
+                ids.addAll(cached, cached.length);
+                return;
+            }
+        }
+        // first, convert all bytes (as mapped by BYTE_ENCODER) to their tokens
+        int[] symbols = encoder.symbols(end - start);
+        for (int i = start; i < end; i++) {
+            symbols[i - start] = byteToken(text.charAt(i));
+        }
+        int length = encoder.merge(end - start);
+        ids.addAll(symbols, length);
+        if (chunkCache != null && end - start <= ChunkCache.MAX_CHUNK_LENGTH) {
+            chunkCache.put(text.substring(start, end), hash, Arrays.copyOf(symbols, length));
+        }
+    }
+
+    /**
+     * The cache of chunk encodings, or null if disabled.
+     */
+    ChunkCache chunkCache() {
+        return chunkCache;
+    }
+
+    private int byteToken(char c) {
+        int tokenIndex = c < charToToken.length ? charToToken[c] : -1;
+        return tokenIndex >= 0 ? tokenIndex : this.vocabulary.getIndex(String.valueOf(c)).orElseThrow();
+    }
+
+    public String decodeImpl(List<Integer> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (int token : tokens) {
+            String tokenString = vocabulary.get(token);
+            sb.append(tokenString);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns list of utf-8 byte and a corresponding list of unicode strings.
+     * The reversible bpe codes work on unicode strings.
+     * This means you need a large # of unicode characters in your vocab if you want to avoid UNKs.
+     * When you're at something like a 10B token dataset you end up needing around 5K for decent coverage.
+     * This is a significant percentage of your normal, say, 32K bpe vocab.
+     * To avoid that, we want lookup tables between utf-8 bytes and unicode strings.
+     * And avoids mapping to whitespace/control characters the bpe code barfs on.
+     */
+    private static Map<Integer, Integer> bytesToUnicode() {
+        List<Integer> bs = new ArrayList<>();
+        IntStream.rangeClosed('!', '~').forEach(bs::add);
+        IntStream.rangeClosed('¡', '¬').forEach(bs::add);
+        IntStream.rangeClosed('®', 'ÿ').forEach(bs::add);
+
+        List<Integer> cs = new ArrayList<>(bs);
+        int n = 0;
+        for (int b = 0; b < 256; ++b) {
+            if (!bs.contains(b)) {
+                bs.add(b);
+                cs.add(256 + n);
+                n += 1;
+            }
+        }
+
+        // return dict(zip(bs, cs))
+        return IntStream.range(0, bs.size())
+                .boxed()
+                .collect(Collectors.toMap(bs::get, cs::get));
+    }
+
+    static final Map<Integer, Integer> BYTE_ENCODER = bytesToUnicode();
+    static final Map<Integer, Integer> BYTE_DECODER = BYTE_ENCODER.entrySet()
+            .stream()
+            .collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
+    // BYTE_DECODER as a table indexed by code point, -1 for the code points that are not a mapped byte
+    private static final int[] BYTE_DECODER_TABLE = byteDecoderTable();
+
+    private static int[] byteDecoderTable() {
+        int[] table = new int[BYTE_DECODER.keySet().stream().mapToInt(Integer::intValue).max().orElseThrow() + 1];
+        Arrays.fill(table, -1);
+        BYTE_DECODER.forEach((codePoint, b) -> table[codePoint] = b);
+        return table;
+    }
+
+    public int[] encode(String text) {
+        return encodeImpl(byteEncode(text));
+    }
+
+    /**
+     * The UTF-8 bytes of {@code text} mapped by {@link #BYTE_ENCODER}, one char per byte, as the merges see them.
+     */
+    static String byteEncode(String text) {
+        StringBuilder sb = new StringBuilder();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            sb.appendCodePoint(BYTE_ENCODER.get(Byte.toUnsignedInt(b)));
+        }
+        return sb.toString();
+    }
+
+    public static String replaceControlCharacters(int[] codePoints) {
+        // we don't want to print control characters
+        // which distort the output (e.g. \n or much worse)
+        // https://stackoverflow.com/questions/4324790/removing-control-characters-from-a-string-in-python/19016117#19016117
+        // http://www.unicode.org/reports/tr44/#GC_Values_Table\
+        StringBuilder chars = new StringBuilder();
+        for (int cp : codePoints) {
+            if (Character.getType(cp) == Character.CONTROL && cp != '\n') {
+                chars.append("\\u").append(HexFormat.of().toHexDigits(cp, 4)); // escape
+            } else {
+                chars.appendCodePoint(cp); // this character is ok
+            }
+        }
+        return chars.toString();
+    }
+
+    public static String replaceControlCharacters(String str) {
+        return replaceControlCharacters(str.codePoints().toArray());
+    }
+
+    public List<Integer> encodeAsList(String text) {
+        return Arrays.stream(encode(text)).boxed().toList();
+    }
+
+    /**
+     * Byte trie of the vocabulary, for constrained decoding, built on first use.
+     */
+    synchronized TokenTrie tokenTrie() {
+        TokenTrie trie = tokenTrie;
+        if (trie == null) {
+            tokenTrie = trie = TokenTrie.of(this);
+        }
+        return trie;
+    }
+
+    /**
+     * Raw (UTF-8) bytes of all the tokens, token {@code i} spans {@code bytes[offsets[i], offsets[i + 1])}.
+     */
+    record TokenBytes(byte[] bytes, int[] offsets) {
+
+        int offset(int token) {
+            return offsets[token];
+        }
+
+        int length(int token) {
+            return offsets[token + 1] - offsets[token];
+        }
+
+        String toString(int token) {
+            return new String(bytes, offsets[token], length(token), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Raw bytes of the vocabulary, built on first use.
+     */
+    TokenBytes tokenBytes() {
+        TokenBytes result = tokenBytes;
+        if (result == null) {
+            synchronized (this) {
+                result = tokenBytes;
+                if (result == null) {
+                    tokenBytes = result = decodeTokenBytes(vocabulary);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Maps the flat vocabulary back to raw bytes without going through Strings: the vocabulary holds the UTF-8 of the
+     * BYTE_ENCODER chars, one or two bytes per raw byte, chars that are not a mapped byte become '?'.
+     */
+    static TokenBytes decodeTokenBytes(Vocabulary vocabulary) {
+        byte[] mapped = vocabulary.tokenBytes();
+        int[] mappedOffsets = vocabulary.tokenOffsets();
+        int size = vocabulary.size();
+        byte[] bytes = new byte[mapped.length];
+        int[] offsets = new int[size + 1];
+        int length = 0;
+        for (int token = 0; token < size; token++) {
+            int i = mappedOffsets[token];
+            int end = mappedOffsets[token + 1];
+            while (i < end) {
+                int lead = mapped[i] & 0xFF;
+                int codePoint;
+                if (lead < 0x80) {
+                    codePoint = lead;
+                    i += 1;
+                } else if (lead >= 0xC0 && lead < 0xE0 && i + 1 < end) {
+                    codePoint = (lead & 0x1F) << 6 | mapped[i + 1] & 0x3F;
+                    i += 2;
+                } else {
+                    // not a mapped byte, one '?' per UTF-16 char like the String decoding
+                    int sequence = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 1;
+                    i += sequence;
+                    bytes[length++] = '?';
+                    if (sequence == 4) {
+                        bytes[length++] = '?';
+                    }
+                    continue;
+                }
+                int b = codePoint < BYTE_DECODER_TABLE.length ? BYTE_DECODER_TABLE[codePoint] : -1;
+                bytes[length++] = (byte) (b >= 0 ? b : '?');
+            }
+            offsets[token + 1] = length;
+        }
+        return new TokenBytes(Arrays.copyOf(bytes, length), offsets);
+    }
+
+    public String decode(List<Integer> tokens) {
+        String decoded = decodeImpl(tokens);
+        int[] decodedBytesAsInts = decoded.codePoints().map(BYTE_DECODER::get).toArray();
+        byte[] rawBytes = new byte[decodedBytesAsInts.length];
+        for (int i = 0; i < decoded.length(); i++) {
+            rawBytes[i] = (byte) decodedBytesAsInts[i];
+        }
+        return new String(rawBytes, StandardCharsets.UTF_8);
+    }
+}
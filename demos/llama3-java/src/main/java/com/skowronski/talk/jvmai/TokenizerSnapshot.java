@@ -0,0 +1,174 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary snapshot of the tokenizer (vocabulary, hash index and merge table) stored next to the model.
+ *
+ * <p>
+ * Building the tokenizer from the GGUF metadata means splitting, concatenating and looking up every merge line,
+ * on every start. The snapshot stores the resulting tables as flat arrays, it's memory-mapped and bulk-copied
+ * instead. It's keyed by a hash of the tokenizer metadata, a stale or corrupt snapshot is ignored and rewritten.
+ * Disable with {@code -Dllama.TokenizerSnapshot=false}.
+ *
+ * <pre>
+ * header: magic, version, metadata hash, vocabulary size, token bytes, index capacity, merges size, merges capacity
+ * long[mergesCapacity] merge keys
+ * int[mergesCapacity]  merge values
+ * int[indexCapacity]   vocabulary index
+ * int[vocabularySize + 1] token offsets
+ * byte[tokenBytes]     tokens (UTF-8)
+ * </pre>
+ */
+final class TokenizerSnapshot {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("llama.TokenizerSnapshot", "true"));
+
+    private static final int MAGIC = 0x4B4F544C; // "LTOK"
+    private static final int VERSION = 2;
+    private static final long HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES + 6 * Integer.BYTES;
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    static Path sidecarPath(Path modelPath) {
+        return modelPath.resolveSibling(modelPath.getFileName() + ".tokenizer");
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the metadata the tokenizer is built from, missing keys hash as empty.
+     */
+    static long metadataHash(Map<String, Object> metadata) {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, (String) metadata.get("tokenizer.ggml.model"));
+        hash = hash(hash, (String[]) metadata.get("tokenizer.ggml.tokens"));
+        hash = hash(hash, (String[]) metadata.get("tokenizer.ggml.merges"));
+        return hash;
+    }
+
+    private static long hash(long hash, String[] values) {
+        if (values != null) {
+            for (String value : values) {
+                hash = hash(hash, value);
+            }
+        }
+        return (hash ^ 0xFFFE) * 0x100000001b3L; // separator
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; value != null && i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return (hash ^ 0xFFFF) * 0x100000001b3L; // separator
+    }
+
+    /**
+     * Returns the tokenizer stored in the snapshot, or null if there's no valid snapshot for the given metadata hash.
+     */
+    static Tokenizer load(Path snapshotPath, long metadataHash) {
+        if (!Files.isRegularFile(snapshotPath)) {
+            return null;
+        }
+        try (var ignored = Timer.log("Load tokenizer snapshot " + snapshotPath);
+             FileChannel fileChannel = FileChannel.open(snapshotPath, StandardOpenOption.READ);
+             Arena arena = Arena.ofConfined()) {
+            MemorySegment segment = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+            if (segment.byteSize() < HEADER_BYTES
+                    || segment.get(INT_LE, 0) != MAGIC
+                    || segment.get(INT_LE, 4) != VERSION
+                    || segment.get(LONG_LE, 8) != metadataHash) {
+                return null;
+            }
+            int vocabularySize = segment.get(INT_LE, 16);
+            int tokenBytes = segment.get(INT_LE, 20);
+            int indexCapacity = segment.get(INT_LE, 24);
+            int mergesSize = segment.get(INT_LE, 28);
+            int mergesCapacity = segment.get(INT_LE, 32);
+            if (segment.byteSize() != snapshotBytes(vocabularySize, tokenBytes, indexCapacity, mergesCapacity)) {
+                return null; // truncated
+            }
+            long offset = HEADER_BYTES;
+            long[] mergeKeys = new long[mergesCapacity];
+            MemorySegment.copy(segment, LONG_LE, offset, mergeKeys, 0, mergesCapacity);
+            offset += (long) mergesCapacity * Long.BYTES;
+            int[] mergeValues = new int[mergesCapacity];
+            MemorySegment.copy(segment, INT_LE, offset, mergeValues, 0, mergesCapacity);
+            offset += (long) mergesCapacity * Integer.BYTES;
+            int[] index = new int[indexCapacity];
+            MemorySegment.copy(segment, INT_LE, offset, index, 0, indexCapacity);
+            offset += (long) indexCapacity * Integer.BYTES;
+            int[] tokenOffsets = new int[vocabularySize + 1];
+            MemorySegment.copy(segment, INT_LE, offset, tokenOffsets, 0, vocabularySize + 1);
+            offset += (long) (vocabularySize + 1) * Integer.BYTES;
+            byte[] bytes = segment.asSlice(offset, tokenBytes).toArray(ValueLayout.JAVA_BYTE);
+            Vocabulary vocabulary = new Vocabulary(bytes, tokenOffsets, null, index);
+            return ModelLoader.createTokenizer(vocabulary, new MergeTable(mergeKeys, mergeValues, mergesSize));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable tokenizer snapshot " + snapshotPath + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Best effort, a failure to write the snapshot (e.g. read-only model directory) is reported and ignored.
+     */
+    static void store(Path snapshotPath, long metadataHash, Tokenizer tokenizer) {
+        Vocabulary vocabulary = tokenizer.getVocabulary();
+        MergeTable merges = tokenizer.getMerges();
+        int[] tokenOffsets = vocabulary.tokenOffsets();
+        byte[] tokenBytes = vocabulary.tokenBytes();
+        int[] index = vocabulary.tokenToIndex();
+        long size = snapshotBytes(vocabulary.size(), tokenBytes.length, index.length, merges.keys.length);
+        Path tmpPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try (var ignored = Timer.log("Store tokenizer snapshot " + snapshotPath)) {
+            try (FileChannel fileChannel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 Arena arena = Arena.ofConfined()) {
+                MemorySegment segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size, arena);
+                segment.set(INT_LE, 0, MAGIC);
+                segment.set(INT_LE, 4, VERSION);
+                segment.set(LONG_LE, 8, metadataHash);
+                segment.set(INT_LE, 16, vocabulary.size());
+                segment.set(INT_LE, 20, tokenBytes.length);
+                segment.set(INT_LE, 24, index.length);
+                segment.set(INT_LE, 28, merges.size());
+                segment.set(INT_LE, 32, merges.keys.length);
+                long offset = HEADER_BYTES;
+                MemorySegment.copy(merges.keys, 0, segment, LONG_LE, offset, merges.keys.length);
+                offset += (long) merges.keys.length * Long.BYTES;
+                MemorySegment.copy(merges.values, 0, segment, INT_LE, offset, merges.values.length);
+                offset += (long) merges.values.length * Integer.BYTES;
+                MemorySegment.copy(index, 0, segment, INT_LE, offset, index.length);
+                offset += (long) index.length * Integer.BYTES;
+                MemorySegment.copy(tokenOffsets, 0, segment, INT_LE, offset, tokenOffsets.length);
+                offset += (long) tokenOffsets.length * Integer.BYTES;
+                MemorySegment.copy(tokenBytes, 0, segment, ValueLayout.JAVA_BYTE, offset, tokenBytes.length);
+                segment.force();
+            }
+            // Concurrent starts never observe a partially written snapshot.
+            Files.move(tmpPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Cannot store tokenizer snapshot " + snapshotPath + ": " + e);
+            try {
+                Files.deleteIfExists(tmpPath);
+            } catch (IOException ignored) {
+                // best effort
+            }
+        }
+    }
+
+    private static long snapshotBytes(int vocabularySize, int tokenBytes, int indexCapacity, int mergesCapacity) {
+        return HEADER_BYTES
+                + (long) mergesCapacity * (Long.BYTES + Integer.BYTES)
+                + (long) indexCapacity * Integer.BYTES
+                + (long) (vocabularySize + 1) * Integer.BYTES
+                + tokenBytes;
+    }
+}
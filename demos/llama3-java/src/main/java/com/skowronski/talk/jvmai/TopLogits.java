@@ -0,0 +1,116 @@
+package com.skowronski.talk.jvmai;
+
+/**
+ * The k largest logits, selected while the classifier computes them, for samplers that need no others (see
+ * {@link Sampler#topK()}): the logits vector is then neither written nor read again. The rows are split in chunks,
+ * each parallel worker keeps a primitive min-heap of the k best rows of its chunk, the heaps are merged at the end.
+ * Ties prefer the lowest token, as {@link FloatTensor#argmax()} does.
+ */
+final class TopLogits {
+    private static final int CHUNK_ROWS = 2048;
+
+    final int k;
+    // the selection, in decreasing order
+    final int[] tokens;
+    final float[] logits;
+    int count;
+
+    private final int[] chunkTokens;
+    private final float[] chunkLogits;
+    private final int[] chunkCounts;
+
+    TopLogits(int k, int rows) {
+        this.k = k;
+        this.tokens = new int[k];
+        this.logits = new float[k];
+        int chunks = (rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        this.chunkTokens = new int[chunks * k];
+        this.chunkLogits = new float[chunks * k];
+        this.chunkCounts = new int[chunks];
+    }
+
+    /**
+     * Selects the k largest of the rows {@code rows[0, rowCount)} (all the rows {@code [0, rowCount)} if null) of
+     * {@code weights} (rows, dim) times {@code x}.
+     */
+    void select(FloatTensor weights, FloatTensor x, int[] rows, int rowCount, int dim) {
+        int chunks = (rowCount + CHUNK_ROWS - 1) / CHUNK_ROWS;
+        Parallel.parallelFor(0, chunks, chunk -> {
+            int offset = chunk * k;
+            int n = 0;
+            for (int i = chunk * CHUNK_ROWS, end = Math.min(rowCount, i + CHUNK_ROWS); i < end; i++) {
+                int row = rows == null ? i : rows[i];
+                float logit = weights.dot(row * dim, x, 0, dim);
+                // Once the heap is full, a row must beat its worst, at its root.
+                if (n < k || better(logit, row, chunkLogits[offset], chunkTokens[offset])) {
+                    n = offer(chunkTokens, chunkLogits, offset, n, row, logit);
+                }
+            }
+            chunkCounts[chunk] = n;
+        });
+        int n = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            for (int i = chunk * k, end = i + chunkCounts[chunk]; i < end; i++) {
+                n = offer(tokens, logits, 0, n, chunkTokens[i], chunkLogits[i]);
+            }
+        }
+        // Heap sort: the worst is moved to the end first.
+        for (int last = n - 1; last > 0; last--) {
+            int token = tokens[last];
+            float logit = logits[last];
+            tokens[last] = tokens[0];
+            logits[last] = logits[0];
+            siftDown(tokens, logits, 0, last, 0, token, logit);
+        }
+        count = n;
+    }
+
+    private static boolean better(float logit, int token, float otherLogit, int otherToken) {
+        return logit > otherLogit || (logit == otherLogit && token < otherToken);
+    }
+
+    /**
+     * Offers a row to the min-heap of {@code n} rows at {@code offset}, returns the new size.
+     */
+    private int offer(int[] tokens, float[] logits, int offset, int n, int token, float logit) {
+        if (n < k) {
+            int i = n;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!better(logits[offset + parent], tokens[offset + parent], logit, token)) {
+                    break;
+                }
+                tokens[offset + i] = tokens[offset + parent];
+                logits[offset + i] = logits[offset + parent];
+                i = parent;
+            }
+            tokens[offset + i] = token;
+            logits[offset + i] = logit;
+            return n + 1;
+        }
+        if (better(logit, token, logits[offset], tokens[offset])) {
+            siftDown(tokens, logits, offset, n, 0, token, logit);
+        }
+        return n;
+    }
+
+    /**
+     * Places (token, logit) at {@code i} or below, in the min-heap of {@code n} rows at {@code offset}.
+     */
+    private static void siftDown(int[] tokens, float[] logits, int offset, int n, int i, int token, float logit) {
+        int child;
+        while ((child = 2 * i + 1) < n) {
+            if (child + 1 < n && better(logits[offset + child], tokens[offset + child], logits[offset + child + 1], tokens[offset + child + 1])) {
+                child++;
+            }
+            if (!better(logit, token, logits[offset + child], tokens[offset + child])) {
+                break;
+            }
+            tokens[offset + i] = tokens[offset + child];
+            logits[offset + i] = logits[offset + child];
+            i = child;
+        }
+        tokens[offset + i] = token;
+        logits[offset + i] = logit;
+    }
+}
@@ -0,0 +1,95 @@
+package com.skowronski.talk.jvmai;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Vocabulary stored flat: the UTF-8 bytes of all tokens in a single array, token {@code i} spans
+ * {@code tokenBytes[tokenOffsets[i], tokenOffsets[i + 1])}. Tokens are looked up by their bytes through an open
+ * addressing hash index: {@code tokenToIndex[slot] = tokenIndex + 1}, 0 marks an empty slot.
+ */
+record Vocabulary(byte[] tokenBytes, int[] tokenOffsets, float[] scores, int[] tokenToIndex) {
+
+    static Vocabulary of(String[] tokens, float[] scores) {
+        int[] tokenOffsets = new int[tokens.length + 1];
+        byte[][] encoded = new byte[tokens.length][];
+        for (int i = 0; i < tokens.length; i++) {
+            encoded[i] = tokens[i].getBytes(StandardCharsets.UTF_8);
+            tokenOffsets[i + 1] = Math.addExact(tokenOffsets[i], encoded[i].length);
+        }
+        byte[] tokenBytes = new byte[tokenOffsets[tokens.length]];
+        for (int i = 0; i < tokens.length; i++) {
+            System.arraycopy(encoded[i], 0, tokenBytes, tokenOffsets[i], encoded[i].length);
+        }
+        return new Vocabulary(tokenBytes, tokenOffsets, scores, buildIndex(tokenBytes, tokenOffsets));
+    }
+
+    static int[] buildIndex(byte[] tokenBytes, int[] tokenOffsets) {
+        int size = tokenOffsets.length - 1;
+        int[] index = new int[MergeTable.tableSizeFor(size)];
+        int mask = index.length - 1;
+        for (int i = 0; i < size; i++) {
+            int offset = tokenOffsets[i];
+            int length = tokenOffsets[i + 1] - offset;
+            int slot = slot(hash(tokenBytes, offset, length), mask);
+            while (index[slot] != 0 && !equals(tokenBytes, tokenOffsets, index[slot] - 1, tokenBytes, offset, length)) {
+                slot = (slot + 1) & mask;
+            }
+            if (index[slot] == 0) { // keep the first occurrence of duplicated tokens
+                index[slot] = i + 1;
+            }
+        }
+        return index;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    private static int slot(int hash, int mask) {
+        return (hash * 0x9E3779B9) >>> 7 & mask;
+    }
+
+    private static boolean equals(byte[] tokenBytes, int[] tokenOffsets, int tokenIndex, byte[] bytes, int offset, int length) {
+        int tokenOffset = tokenOffsets[tokenIndex];
+        return Arrays.equals(tokenBytes, tokenOffset, tokenOffsets[tokenIndex + 1], bytes, offset, offset + length);
+    }
+
+    public String get(int tokenIndex) {
+        return new String(tokenBytes, tokenOffsets[tokenIndex], tokenLength(tokenIndex), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Length of the token in UTF-8 bytes.
+     */
+    int tokenLength(int tokenIndex) {
+        return tokenOffsets[tokenIndex + 1] - tokenOffsets[tokenIndex];
+    }
+
+    public OptionalInt getIndex(String token) {
+        byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+        int tokenIndex = getIndex(bytes, 0, bytes.length);
+        return tokenIndex >= 0 ? OptionalInt.of(tokenIndex) : OptionalInt.empty();
+    }
+
+    /**
+     * Returns the index of the token with the given UTF-8 bytes, or -1 if there's no such token.
+     */
+    int getIndex(byte[] bytes, int offset, int length) {
+        int mask = tokenToIndex.length - 1;
+        for (int slot = slot(hash(bytes, offset, length), mask); tokenToIndex[slot] != 0; slot = (slot + 1) & mask) {
+            if (equals(tokenBytes, tokenOffsets, tokenToIndex[slot] - 1, bytes, offset, length)) {
+                return tokenToIndex[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return tokenOffsets.length - 1;
+    }
+}
@@ -0,0 +1,64 @@
+package com.skowronski.talk.jvmai;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The decode loop allocates nothing per token: tokens live in reused primitive buffers, stop tokens in a bitset.
+ * Forward allocates a little in the parallel loops, and not always the same amount, so the median decode step is
+ * compared to the median bare forward pass.
+ */
+class AllocationTest {
+
+    private static final int STEPS = 64;
+    private static final long MAX_BYTES_PER_TOKEN = 64;
+
+    private static final Llama model = SmallModel.get();
+    private static final int beginOfText = SmallModel.beginOfText();
+
+    @Test
+    void decodeLoopDoesNotAllocatePerToken() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Llama.State state = model.createNewState(16);
+        IntList prompt = new IntList(1);
+        prompt.add(beginOfText);
+        IntList generated = new IntList(STEPS);
+        long[] allocated = new long[STEPS];
+        // JIT compilation (escape analysis) changes the numbers, the last round is measured
+        for (int round = 0; round < 20; round++) {
+            generated.clear();
+            Llama.generateTokens(model, state, 0, prompt, new BitSet(), null, STEPS, -1, Sampler.ARGMAX, false,
+                    token -> allocated[generated.size() - 1] = threadMXBean.getCurrentThreadAllocatedBytes(), generated);
+        }
+        assertEquals(STEPS, generated.size());
+        long[] decodeBytes = new long[STEPS - 1];
+        for (int i = 1; i < STEPS; i++) {
+            decodeBytes[i - 1] = allocated[i] - allocated[i - 1];
+        }
+
+        // Bare forward passes, same positions.
+        int[] tokens = state.tokenBuffer(1);
+        long[] forwardBytes = new long[STEPS - 1];
+        for (int position = 1; position < STEPS; position++) {
+            tokens[0] = generated.get(position - 1);
+            long before = threadMXBean.getCurrentThreadAllocatedBytes();
+            Llama.forward(model, state, tokens, position, true);
+            forwardBytes[position - 1] = threadMXBean.getCurrentThreadAllocatedBytes() - before;
+        }
+
+        long overhead = median(decodeBytes) - median(forwardBytes);
+        assertTrue(overhead <= MAX_BYTES_PER_TOKEN, "decode loop allocates " + overhead + " bytes per token");
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,121 @@
+package com.skowronski.talk.jvmai;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The heap-based {@link BytePairEncoder} merges exactly like the reference loop (minbpe): merge all the occurrences of
+ * the lowest rank pair, left to right, until no pair has a rank.
+ */
+class BytePairEncoderTest {
+
+    @Test
+    void mergesLikeTheReferenceLoopOnRandomMerges() {
+        Random random = new Random(42);
+        // 8 base symbols, merges learnt on top of earlier merges, the rank of a merge is the merged token
+        int baseSymbols = 8;
+        int tokens = 200;
+        MergeTable merges = new MergeTable(tokens);
+        for (int token = baseSymbols; token < tokens; ) {
+            int first = random.nextInt(token);
+            int second = random.nextInt(token);
+            if (merges.get(first, second) < 0) {
+                merges.put(first, second, token++);
+            }
+        }
+        BytePairEncoder encoder = new BytePairEncoder(merges);
+        for (int i = 0; i < 5000; i++) {
+            int[] chunk = new int[random.nextInt(40)];
+            for (int j = 0; j < chunk.length; j++) {
+                // few distinct symbols, many repeated and overlapping pairs ("aaa")
+                chunk[j] = random.nextInt(random.nextBoolean() ? 2 : baseSymbols);
+            }
+            assertMergesLikeReference(encoder, merges, chunk);
+        }
+    }
+
+    @Test
+    void encodesLikeTheReferenceLoop() {
+        Tokenizer tokenizer = SmallModel.get().tokenizer();
+        MergeTable merges = tokenizer.getMerges();
+        BytePairEncoder encoder = new BytePairEncoder(merges);
+        List<String> texts = List.of(
+                "Hello world, this is a test.",
+                "I'm sure they'll say we've done it",
+                "aaaaaaa bbbb abababab zzz",
+                "1 12 123 1234 3.14159",
+                "tabs\tand\t\tnewlines\n\n  indented\n",
+                "日本語のテキスト、中文文本。",
+                "emoji 😀😃 👍🏽",
+                "lone \uD800 surrogate");
+        for (String text : texts) {
+            String encoded = Tokenizer.byteEncode(text);
+            for (int start = 0, end; start < encoded.length(); start = end) {
+                end = Llama3PreTokenizer.chunkEnd(encoded, start);
+                int[] chunk = new int[end - start];
+                for (int i = start; i < end; i++) {
+                    chunk[i - start] = tokenizer.getVocabulary().getIndex(String.valueOf(encoded.charAt(i))).orElseThrow();
+                }
+                assertMergesLikeReference(encoder, merges, chunk);
+            }
+            // and through the tokenizer, all chunks at once
+            int[] ids = tokenizer.encode(text);
+            assertEquals(text.replace('\uD800', '?'), tokenizer.decode(Arrays.stream(ids).boxed().toList()));
+            // the raw token bytes decoded from the flat vocabulary spell the same text
+            Tokenizer.TokenBytes tokenBytes = tokenizer.tokenBytes();
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            for (int id : ids) {
+                raw.write(tokenBytes.bytes(), tokenBytes.offset(id), tokenBytes.length(id));
+            }
+            assertEquals(text.replace('\uD800', '?'), raw.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void assertMergesLikeReference(BytePairEncoder encoder, MergeTable merges, int[] chunk) {
+        int[] symbols = encoder.symbols(chunk.length);
+        System.arraycopy(chunk, 0, symbols, 0, chunk.length);
+        int length = encoder.merge(chunk.length);
+        int[] expected = referenceMerge(merges, chunk);
+        assertArrayEquals(expected, Arrays.copyOf(symbols, length), () -> "merges of " + Arrays.toString(chunk));
+    }
+
+    // the merge loop BytePairEncoder replaced
+    private static int[] referenceMerge(MergeTable merges, int[] chunk) {
+        List<Integer> ids = new ArrayList<>();
+        for (int symbol : chunk) {
+            ids.add(symbol);
+        }
+        while (ids.size() >= 2) {
+            int bestRank = Integer.MAX_VALUE;
+            for (int i = 0; i + 1 < ids.size(); i++) {
+                int rank = merges.get(ids.get(i), ids.get(i + 1));
+                if (rank >= 0 && rank < bestRank) {
+                    bestRank = rank;
+                }
+            }
+            if (bestRank == Integer.MAX_VALUE) {
+                break;
+            }
+            List<Integer> merged = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i++) {
+                if (i + 1 < ids.size() && merges.get(ids.get(i), ids.get(i + 1)) == bestRank) {
+                    merged.add(bestRank);
+                    i++;
+                } else {
+                    merged.add(ids.get(i));
+                }
+            }
+            ids = merged;
+        }
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
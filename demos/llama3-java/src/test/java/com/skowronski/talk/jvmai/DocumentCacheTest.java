@@ -0,0 +1,96 @@
+package com.skowronski.talk.jvmai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentCacheTest {
+
+    private static final int BATCH_SIZE = 16;
+
+    private static final Llama model = SmallModel.get();
+    private static final int beginOfText = SmallModel.beginOfText();
+
+    @Test
+    void splicedChunkMatchesDirectIngestion() {
+        Random random = new Random(42);
+        IntList prefix = new IntList();
+        prefix.add(beginOfText);
+        IntList glue = randomTokens(random, 23);
+        IntList chunk = randomTokens(random, 40);
+        DocumentCache cache = new DocumentCache(model, prefix, BATCH_SIZE, Integer.MAX_VALUE);
+
+        // the chunk is encoded right after the prefix, then spliced after the glue
+        IntList text = new IntList();
+        text.add(beginOfText);
+        text.addAll(glue);
+        Llama.State spliced = model.createNewState(BATCH_SIZE);
+        int end = cache.prefill(spliced, 0, List.of(DocumentCache.Segment.text(text), DocumentCache.Segment.document(chunk)));
+        assertEquals(text.size() + chunk.size(), end);
+
+        // the same tokens ingested directly: there the chunk attends to the glue, which reaches the keys and values
+        // from the second layer on, the first layer only depends on the tokens and their positions
+        Llama.State direct = model.createNewState(BATCH_SIZE);
+        ingest(direct, 0, text);
+        ingest(direct, text.size(), chunk);
+
+        int kvDim = model.configuration().dim * model.configuration().numberOfKeyValueHeads / model.configuration().numberOfHeads;
+        float maxKeyDifference = 0;
+        float maxValueDifference = 0;
+        for (int p = text.size(); p < end; p++) {
+            KVCache.Page splicedPage = spliced.kvCache.page(p);
+            KVCache.Page directPage = direct.kvCache.page(p);
+            int offset = (p & KVCache.PAGE_MASK) * kvDim;
+            for (int i = 0; i < kvDim; i++) {
+                maxKeyDifference = Math.max(maxKeyDifference,
+                        Math.abs(splicedPage.keys[0].getFloat(offset + i) - directPage.keys[0].getFloat(offset + i)));
+                maxValueDifference = Math.max(maxValueDifference,
+                        Math.abs(splicedPage.values[0].getFloat(offset + i) - directPage.values[0].getFloat(offset + i)));
+            }
+        }
+        assertTrue(maxKeyDifference < 1e-4f, "keys rotated to the new positions differ by " + maxKeyDifference);
+        assertTrue(maxValueDifference < 1e-6f, "values differ by " + maxValueDifference);
+    }
+
+    @Test
+    void encodesEachChunkOnce() {
+        Random random = new Random(7);
+        IntList prefix = new IntList();
+        prefix.add(beginOfText);
+        IntList first = randomTokens(random, 32);
+        IntList second = randomTokens(random, 32);
+        DocumentCache cache = new DocumentCache(model, prefix, BATCH_SIZE, Integer.MAX_VALUE);
+        Llama.State state = model.createNewState(BATCH_SIZE);
+        List<DocumentCache.Segment> segments = List.of(DocumentCache.Segment.text(prefix),
+                DocumentCache.Segment.document(first), DocumentCache.Segment.document(second));
+
+        cache.prefill(state, 0, segments);
+        cache.prefill(state, 0, segments.reversed());
+        assertEquals(2, cache.misses());
+        assertEquals(2, cache.hits());
+        assertEquals(64, cache.cachedTokens());
+    }
+
+    private static void ingest(Llama.State state, int position, IntList tokens) {
+        for (int i = 0; i < tokens.size(); i += state.batchsize) {
+            int nTokens = Math.min(state.batchsize, tokens.size() - i);
+            int[] batch = state.tokenBuffer(nTokens);
+            for (int j = 0; j < nTokens; j++) {
+                batch[j] = tokens.get(i + j);
+            }
+            Llama.forward(model, state, batch, position + i, false);
+        }
+    }
+
+    private static IntList randomTokens(Random random, int count) {
+        IntList tokens = new IntList(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(random.nextInt(256));
+        }
+        return tokens;
+    }
+}
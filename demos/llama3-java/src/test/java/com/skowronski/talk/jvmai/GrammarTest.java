@@ -0,0 +1,71 @@
+package com.skowronski.talk.jvmai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Token masks against {@link java.util.regex}: along a matching response, a token is allowed exactly when the text
+ * so far followed by the token is a match or the prefix of one, the stop token exactly when the text is a match.
+ */
+class GrammarTest {
+
+    private static final Tokenizer tokenizer = SmallModel.get().tokenizer();
+    private static final int endToken = tokenizer.getSpecialTokens().get("<|eot_id|>");
+
+    @Test
+    void maskAdmitsTheTokensMatchingTheRegex() {
+        assertMasksMatch("[a-z]+ [0-9]{1,3}", "hello 42");
+        assertMasksMatch("(yes|no|maybe)!", "maybe!");
+        assertMasksMatch("\\{\"id\": [1-9][0-9]*, \"tags\": \\[(\"[a-z]+\"(, \"[a-z]+\")*)?\\]\\}",
+                "{\"id\": 12, \"tags\": [\"ab\", \"c\"]}");
+        assertMasksMatch("\\d+(\\.\\d+)? (cm|m|km)", "3.25 km");
+    }
+
+    private static void assertMasksMatch(String regex, String response) {
+        BitSet stopTokens = new BitSet();
+        stopTokens.set(endToken);
+        TokenGrammar grammar = new TokenGrammar(Grammar.regex(regex), tokenizer, tokenizer.getVocabulary().size(), stopTokens, endToken);
+        Pattern pattern = Pattern.compile(regex);
+        Tokenizer.TokenBytes tokenBytes = tokenizer.tokenBytes();
+        int state = grammar.grammar().startState();
+        String text = "";
+        for (int next : tokenizer.encode(response)) {
+            String prefix = text;
+            long[] bits = grammar.mask(state).bits();
+            int allowed = 0;
+            for (int token = 0; token < tokenizer.getVocabulary().size(); token++) {
+                boolean expected;
+                if (tokenizer.isSpecialToken(token)) {
+                    expected = token == endToken && pattern.matcher(prefix).matches();
+                } else {
+                    String tokenText = tokenBytes.toString(token);
+                    // the regexes are ASCII, a token with other bytes never fits
+                    expected = !tokenText.isEmpty() && tokenText.chars().allMatch(c -> c < 0x80) && isPrefixOfMatch(pattern, prefix + tokenText);
+                }
+                boolean actual = (bits[token >>> 6] & 1L << token) != 0;
+                assertEquals(expected, actual, "/" + regex + "/ after '" + prefix + "': " + grammar.describe(token));
+                if (actual) {
+                    allowed++;
+                }
+            }
+            assertTrue(allowed > 0);
+            state = grammar.next(state, next);
+            text += tokenBytes.toString(next);
+            assertTrue(state >= 0, "'" + text + "' rejected");
+        }
+        assertEquals(response, text);
+        assertTrue(grammar.grammar().isAccepting(state));
+        assertTrue((grammar.mask(state).bits()[endToken >>> 6] & 1L << endToken) != 0);
+    }
+
+    private static boolean isPrefixOfMatch(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        return matcher.matches() || matcher.hitEnd();
+    }
+}
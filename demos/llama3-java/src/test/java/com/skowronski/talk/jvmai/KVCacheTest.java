@@ -0,0 +1,135 @@
+package com.skowronski.talk.jvmai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Copy-on-write of the paged KV cache: a fork shares the pages of its prefix, copies one before writing it, and the
+ * reference counts go back to 1 once the fork is released.
+ */
+class KVCacheTest {
+
+    private static final int LAYERS = 2;
+    private static final int KV_DIM = 8;
+
+    @Test
+    void writingToAForkLeavesTheParentUnchanged() {
+        KVCache parent = new KVCache(LAYERS, 3 * KVCache.PAGE_SIZE, KV_DIM);
+        int length = KVCache.PAGE_SIZE + 36;
+        fill(parent, 0, length, 1);
+        float[] before = snapshot(parent, length);
+
+        KVCache fork = parent.fork(length);
+        assertSame(parent.pages[0], fork.pages[0]);
+        assertSame(parent.pages[1], fork.pages[1]);
+        assertNull(fork.pages[2]);
+        assertEquals(2, parent.pages[0].references.get());
+        assertEquals(2, parent.pages[1].references.get());
+
+        // the fork writes after the shared prefix: the page holding the end of the prefix is copied
+        fork.prepareWrite(length, length + 10);
+        fill(fork, length, length + 10, 2);
+        assertSame(parent.pages[0], fork.pages[0]);
+        assertNotSame(parent.pages[1], fork.pages[1]);
+        assertEquals(1, parent.pages[1].references.get());
+        assertArrayEquals(before, snapshot(parent, length));
+        assertArrayEquals(before, snapshot(fork, length));
+
+        // the parent writes its page in place, the fork's copy is unchanged
+        parent.prepareWrite(length, length + 10);
+        fill(parent, length, length + 10, 3);
+        assertEquals(2, fork.pages[1].keys[0].getFloat((length & KVCache.PAGE_MASK) * KV_DIM), 0);
+
+        // writing a page shared by both copies it
+        fork.prepareWrite(10, 11);
+        fill(fork, 10, 11, 4);
+        assertNotSame(parent.pages[0], fork.pages[0]);
+        assertArrayEquals(before, snapshot(parent, length));
+
+        fork.release();
+        for (KVCache.Page page : parent.pages) {
+            assertEquals(1, page.references.get());
+        }
+    }
+
+    @Test
+    void forkedStatesDecodeWithoutTouchingTheParentPages() {
+        Llama model = SmallModel.get();
+        Random random = new Random(3);
+        Llama.State parent = model.createNewState(16);
+        int length = KVCache.PAGE_SIZE + 6;
+        int position = 0;
+        while (position < length) {
+            int nTokens = Math.min(parent.batchsize, length - position);
+            int[] batch = parent.tokenBuffer(nTokens);
+            for (int i = 0; i < nTokens; i++) {
+                batch[i] = random.nextInt(256);
+            }
+            Llama.forward(model, parent, batch, position, false);
+            position += nTokens;
+        }
+        int kvDim = parent.kvCache.pages[0].keys[0].size() / KVCache.PAGE_SIZE;
+        float[] before = snapshot(parent.kvCache, length, kvDim);
+
+        Llama.State[] forks = {parent.fork(length, 1), parent.fork(length, 1)};
+        for (int step = 0; step < 8; step++) {
+            for (Llama.State fork : forks) {
+                int[] token = fork.tokenBuffer(1);
+                token[0] = random.nextInt(256);
+                Llama.forward(model, fork, token, length + step, true);
+            }
+        }
+        assertArrayEquals(before, snapshot(parent.kvCache, length, kvDim));
+        assertArrayEquals(before, snapshot(forks[0].kvCache, length, kvDim));
+        assertEquals(3, parent.kvCache.pages[0].references.get());
+        assertEquals(1, parent.kvCache.pages[1].references.get());
+
+        for (Llama.State fork : forks) {
+            fork.kvCache.release();
+        }
+        for (KVCache.Page page : parent.kvCache.pages) {
+            assertEquals(1, page.references.get());
+        }
+    }
+
+    private static void fill(KVCache cache, int from, int to, int value) {
+        for (int position = from; position < to; position++) {
+            KVCache.Page page = cache.page(position);
+            int offset = (position & KVCache.PAGE_MASK) * KV_DIM;
+            for (int l = 0; l < LAYERS; l++) {
+                for (int i = 0; i < KV_DIM; i++) {
+                    page.keys[l].setFloat(offset + i, value);
+                    page.values[l].setFloat(offset + i, -value);
+                }
+            }
+        }
+    }
+
+    private static float[] snapshot(KVCache cache, int length) {
+        return snapshot(cache, length, KV_DIM);
+    }
+
+    private static float[] snapshot(KVCache cache, int length, int kvDim) {
+        int layers = cache.pages[0].keys.length;
+        float[] floats = new float[2 * layers * length * kvDim];
+        int n = 0;
+        for (int position = 0; position < length; position++) {
+            KVCache.Page page = cache.page(position);
+            int offset = (position & KVCache.PAGE_MASK) * kvDim;
+            for (int l = 0; l < layers; l++) {
+                for (int i = 0; i < kvDim; i++) {
+                    floats[n++] = page.keys[l].getFloat(offset + i);
+                    floats[n++] = page.values[l].getFloat(offset + i);
+                }
+            }
+        }
+        return floats;
+    }
+}
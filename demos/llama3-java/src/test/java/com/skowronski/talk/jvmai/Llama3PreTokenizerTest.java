@@ -0,0 +1,85 @@
+package com.skowronski.talk.jvmai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * {@link Llama3PreTokenizer#chunkEnd} splits text exactly like {@link Llama3PreTokenizer#PATTERN}, on the text the
+ * tokenizer sees (UTF-8 bytes mapped by {@link Tokenizer#BYTE_ENCODER}) as well as on raw text.
+ */
+class Llama3PreTokenizerTest {
+
+    private static final Pattern PATTERN = Pattern.compile(Llama3PreTokenizer.PATTERN);
+
+    private static final List<String> TEXTS = List.of(
+            "Hello world, this is a test.",
+            "I'm sure they'll say we've done it, he'd agree it's THEIR'S or YOU'RE 'S 'LL",
+            "don't 're've 'x ' 's",
+            "1 12 123 1234 12345 3.14159 -42 1,000,000 v2.0",
+            "٣٤٥ ⅫⅪ ½¾ x²",
+            "  leading and trailing  ",
+            "tabs\tand\t\tnewlines\n\nand\r\nwindows\r\n\r\n  indented\n    code\n",
+            "trailing newline run   \n  \n",
+            "a   \n   b",
+            "     ",
+            "\n",
+            "   x",
+            "!!! ??? ... --- +++\n\n",
+            "foo.bar(baz);\n    return x;\n}",
+            "日本語のテキスト、中文文本。한국어",
+            "emoji 😀😃 👍🏽 family 👨\u200D👩\u200D👧 flags 🇫🇷",
+            "mixed日本english123中文",
+            "non\u00A0breaking\u3000space\u2028separator\u000B\u000Cform",
+            "lone \uD800 high, lone \uDC00 low, reversed \uDC00\uD800, pair 😀",
+            "accents: café, naïve, Ångström, İstanbul",
+            ""
+    );
+
+    // the interesting classes: letters, numbers, whitespace, punctuation, contractions, surrogates
+    private static final String[] PIECES = {
+            "a", "Z", "é", "中", "ß", " ", "  ", "\n", "\r", "\t", "\u000B", "\f", "\u00A0", "'", "'s", "'LL", "'ve",
+            "1", "9", "٣", "Ⅻ", "½", "!", ".", "-", "😀", "\uD800", "\uDC00", "\u200D"
+    };
+
+    @Test
+    void splitsLikeThePattern() {
+        for (String text : TEXTS) {
+            assertSameChunks(text);
+            assertSameChunks(Tokenizer.byteEncode(text));
+        }
+    }
+
+    @Test
+    void splitsRandomTextLikeThePattern() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = random.nextInt(20); j >= 0; j--) {
+                text.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            assertSameChunks(text.toString());
+            assertSameChunks(Tokenizer.byteEncode(text.toString()));
+        }
+    }
+
+    private static void assertSameChunks(String text) {
+        List<String> expected = new ArrayList<>();
+        Matcher matcher = PATTERN.matcher(text);
+        while (matcher.find()) {
+            expected.add(matcher.group());
+        }
+        List<String> actual = new ArrayList<>();
+        for (int start = 0, end; start < text.length(); start = end) {
+            end = Llama3PreTokenizer.chunkEnd(text, start);
+            actual.add(text.substring(start, end));
+        }
+        assertEquals(expected, actual, () -> "chunks of " + text.codePoints().mapToObj(Integer::toHexString).toList());
+    }
+}
@@ -0,0 +1,101 @@
+package com.skowronski.talk.jvmai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sequences batched by the {@link Scheduler}, their prompts ingested in chunks between decode steps, or preempted and
+ * resumed, generate the same tokens as alone.
+ */
+class SchedulerTest {
+
+    private static final Llama model = SmallModel.get();
+    private static final int beginOfText = SmallModel.beginOfText();
+    private static final BitSet noStopTokens = new BitSet();
+
+    @Test
+    void batchedSequencesGenerateAsAlone() {
+        Random random = new Random(11);
+        // a small budget: the longer prompts are ingested over several steps, next to decoding sequences
+        Scheduler scheduler = new Scheduler(model, 8, 3, Long.MAX_VALUE);
+        List<IntList> prompts = new ArrayList<>();
+        List<Scheduler.Sequence> sequences = new ArrayList<>();
+        int[] promptLengths = {3, 40, 1, 75, 17};
+        for (int i = 0; i < promptLengths.length; i++) {
+            IntList prompt = prompt(random, promptLengths[i]);
+            prompts.add(prompt);
+            sequences.add(scheduler.submit(prompt, Sampler.ARGMAX, 20 + 5 * i, noStopTokens, null));
+        }
+        scheduler.run();
+        for (int i = 0; i < sequences.size(); i++) {
+            IntList generated = sequences.get(i).completion.join();
+            assertArrayEquals(generateAlone(prompts.get(i), 20 + 5 * i).toArray(), generated.toArray(), "sequence " + i);
+        }
+        assertTrue(scheduler.stats().running() == 0 && scheduler.stats().committedBytes() == 0);
+    }
+
+    @Test
+    void preemptedSequenceResumesWithTheSameTokens() {
+        Random random = new Random(5);
+        Llama.Configuration config = model.configuration();
+        int kvDim = config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        long pageBytes = 2L * config.numberOfLayers * KVCache.PAGE_SIZE * kvDim * Float.BYTES;
+        // room for the low priority sequence alone, to its end
+        Scheduler scheduler = new Scheduler(model, 16, 2, Llama.State.bufferBytes(config, 1) + 2 * pageBytes);
+        IntList lowPrompt = prompt(random, 30);
+        IntList lowTokens = new IntList();
+        Scheduler.Sequence low = scheduler.submit(lowPrompt, Sampler.ARGMAX, 60, noStopTokens, lowTokens::add,
+                Scheduler.Priority.LOW, Long.MAX_VALUE);
+        while (low.generatedTokens.size() < 10) {
+            scheduler.step();
+        }
+        IntList highPrompt = prompt(random, 10);
+        Scheduler.Sequence high = scheduler.submit(highPrompt, Sampler.ARGMAX, 20, noStopTokens, null,
+                Scheduler.Priority.HIGH, Long.MAX_VALUE);
+        scheduler.run();
+
+        assertEquals(1, scheduler.stats().preempted());
+        assertArrayEquals(generateAlone(highPrompt, 20).toArray(), high.completion.join().toArray());
+        IntList expected = generateAlone(lowPrompt, 60);
+        assertArrayEquals(expected.toArray(), low.completion.join().toArray());
+        // the tokens ingested again on resumption are not reported twice
+        assertArrayEquals(expected.toArray(), lowTokens.toArray());
+    }
+
+    @Test
+    void maxTokensIsValidated() {
+        Scheduler scheduler = new Scheduler(model, 16, 1, Long.MAX_VALUE);
+        IntList prompt = prompt(new Random(1), 200);
+        assertThrows(IllegalArgumentException.class, () -> scheduler.submit(prompt, Sampler.ARGMAX, 0, noStopTokens, null));
+        // negative: up to the end of the context
+        Scheduler.Sequence sequence = scheduler.submit(prompt, Sampler.ARGMAX, -1, noStopTokens, null);
+        scheduler.run();
+        assertEquals(SmallModel.CONTEXT_LENGTH - prompt.size() + 1, sequence.completion.join().size());
+    }
+
+    private static IntList prompt(Random random, int length) {
+        IntList prompt = new IntList(length);
+        prompt.add(beginOfText);
+        for (int i = 1; i < length; i++) {
+            prompt.add(random.nextInt(256));
+        }
+        return prompt;
+    }
+
+    private static IntList generateAlone(IntList prompt, int maxTokens) {
+        IntList generated = new IntList();
+        // without context shifting, generation stops at a position: the last prompt position gives the first token
+        Llama.generateTokens(model, model.createNewState(16), 0, prompt, noStopTokens, null, prompt.size() - 1 + maxTokens, -1, Sampler.ARGMAX,
+                false, null, generated);
+        return generated;
+    }
+}
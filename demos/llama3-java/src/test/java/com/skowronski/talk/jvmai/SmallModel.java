@@ -0,0 +1,44 @@
+package com.skowronski.talk.jvmai;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The small random-weight model the tests run on: a {@link SyntheticModel} of 2 layers, dim 128, 4 heads (2 KV heads),
+ * a 512-token vocabulary and {@link #CONTEXT_LENGTH} positions, Q8_0. Generated once per test run in a temporary
+ * directory, deleted on exit.
+ */
+final class SmallModel {
+    static final int CONTEXT_LENGTH = 256;
+
+    private static Llama model;
+
+    private SmallModel() {
+    }
+
+    static synchronized Llama get() {
+        if (model == null) {
+            try {
+                Path directory = Files.createTempDirectory("llama3-test");
+                Path modelPath = directory.resolve("synthetic.gguf");
+                // deleted in reverse order: the files, then the directory
+                directory.toFile().deleteOnExit();
+                modelPath.toFile().deleteOnExit();
+                TokenizerSnapshot.sidecarPath(modelPath).toFile().deleteOnExit();
+                SyntheticModel.main(new String[]{"-o", modelPath.toString(), "--dim", "128", "--hidden-dim", "256",
+                        "--layers", "2", "--heads", "4", "--kv-heads", "2", "--vocab", "512",
+                        "--context", String.valueOf(CONTEXT_LENGTH), "-t", "Q8_0"});
+                model = ModelLoader.loadModel(modelPath, CONTEXT_LENGTH, true);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return model;
+    }
+
+    static int beginOfText() {
+        return get().tokenizer().getSpecialTokens().get("<|begin_of_text|>");
+    }
+}
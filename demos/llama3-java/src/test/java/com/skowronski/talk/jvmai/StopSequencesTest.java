@@ -0,0 +1,107 @@
+package com.skowronski.talk.jvmai;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stop strings spanning several tokens: the response ends right before the stop string, and streaming never prints
+ * the bytes that could still be the beginning of one.
+ */
+class StopSequencesTest {
+
+    private static final Tokenizer tokenizer = SmallModel.get().tokenizer();
+    private static final StopSequences stopSequences = new StopSequences(List.of("\n\nUser:", "é!", "STOP"));
+
+    @Test
+    void stopStringSplitAcrossTokensIsCutAndNotPrinted() {
+        assertStopsAtEverySplit("Hello world", "\n\nUser:", " and more");
+        assertStopsAtEverySplit("Un café", "é!", " merci");
+        assertStopsAtEverySplit("no \n\nUse here, ", "STOP", "");
+        assertStopsAtEverySplit("", "STOP", "STOP");
+    }
+
+    @Test
+    void stopStringSplitAcrossGeneratedTokens() {
+        String response = "Sure, here it is.\n\nUser: what else?";
+        int[] tokens = tokenizer.encode(response);
+        Tokenizer.TokenBytes tokenBytes = tokenizer.tokenBytes();
+        List<byte[]> chunks = new ArrayList<>();
+        for (int token : tokens) {
+            chunks.add(Arrays.copyOfRange(tokenBytes.bytes(), tokenBytes.offset(token), tokenBytes.offset(token) + tokenBytes.length(token)));
+        }
+        assertStops(chunks, "Sure, here it is.");
+
+        StopSequences.Matcher matcher = stopSequences.matcher();
+        int stopAt = -1;
+        for (int i = 0; i < tokens.length && stopAt < 0; i++) {
+            if (matcher.accept(tokenBytes.bytes(), tokenBytes.offset(tokens[i]), tokenBytes.length(tokens[i]))) {
+                stopAt = i;
+            }
+        }
+        assertEquals("Sure, here it is.", matcher.text());
+        // the stop string is not a single token of the test vocabulary
+        assertTrue(stopAt > 0 && !tokenBytes.toString(tokens[stopAt]).contains("\n\nUser:"));
+    }
+
+    @Test
+    void heldBackBytesArePrintedWhenNoStopStringFollows() {
+        String response = "almost \n\nUse";
+        StopSequences.Matcher matcher = stopSequences.matcher();
+        StreamingDecoder decoder = new StreamingDecoder(tokenizer);
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(printed, true, StandardCharsets.UTF_8);
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        assertFalse(matcher.accept(bytes, 0, bytes.length));
+        matcher.print(decoder, out);
+        assertEquals("almost ", printed.toString(StandardCharsets.UTF_8));
+        matcher.flush(decoder, out);
+        assertEquals(response, printed.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Feeds {@code before + stop + after} cut in two at every byte, then byte by byte.
+     */
+    private static void assertStopsAtEverySplit(String before, String stop, String after) {
+        byte[] bytes = (before + stop + after).getBytes(StandardCharsets.UTF_8);
+        for (int cut = 1; cut < bytes.length; cut++) {
+            assertStops(List.of(Arrays.copyOfRange(bytes, 0, cut), Arrays.copyOfRange(bytes, cut, bytes.length)), before);
+        }
+        List<byte[]> single = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i++) {
+            single.add(Arrays.copyOfRange(bytes, i, i + 1));
+        }
+        assertStops(single, before);
+    }
+
+    /**
+     * Streams the chunks like the CLI does: accept, then print what is safe, flush at the end.
+     */
+    private static void assertStops(List<byte[]> chunks, String expected) {
+        StopSequences.Matcher matcher = stopSequences.matcher();
+        StreamingDecoder decoder = new StreamingDecoder(tokenizer);
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(printed, true, StandardCharsets.UTF_8);
+        for (byte[] chunk : chunks) {
+            if (matcher.accept(chunk, 0, chunk.length)) {
+                break;
+            }
+            matcher.print(decoder, out);
+            String soFar = printed.toString(StandardCharsets.UTF_8);
+            assertTrue(expected.startsWith(soFar), "printed '" + soFar + "' beyond '" + expected + "'");
+        }
+        assertTrue(matcher.matched());
+        matcher.flush(decoder, out);
+        assertEquals(expected, matcher.text());
+        assertEquals(expected, printed.toString(StandardCharsets.UTF_8));
+    }
+}